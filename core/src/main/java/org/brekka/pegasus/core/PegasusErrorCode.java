@@ -15,6 +15,18 @@ public enum PegasusErrorCode implements ErrorCode {
     PG103,
     PG104,
     PG105,
+    /**
+     * Invalid IP address or CIDR block
+     */
+    PG106,
+    /**
+     * Requested byte range is not within the file
+     */
+    PG107,
+    /**
+     * Too many ranges of the same file are being decrypted at once
+     */
+    PG108,
 
     PG200,
     PG265,
@@ -3,7 +3,10 @@
  */
 package org.brekka.pegasus.core.dao;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.brekka.commons.persistence.dao.EntityDAO;
@@ -31,10 +34,36 @@ public interface AllocationDAO extends EntityDAO<UUID, Allocation> {
     <T extends Allocation> T retrieveByToken(Token token, Class<T> expectedType);
 
     /**
+     * Lock and return the oldest expired allocations that are not yet deleted, skipping any already locked by another
+     * transaction, so that concurrent reapers each get a different set. Only those in the specified
+     * {@link org.brekka.pegasus.core.model.ReaperLease} slots are considered.
+     *
      * @param maxAllocationCount
+     * @param slots
      * @return
      */
-    List<Allocation> retrieveOldestExpired(int maxAllocationCount);
+    List<Allocation> claimOldestExpired(int maxAllocationCount, Collection<Integer> slots);
+
+    /**
+     * @return the number of allocations that have expired but are not yet deleted.
+     */
+    long countExpired();
+
+    /**
+     * @return the expiry date of the longest expired allocation that is not yet deleted, or null if there is none.
+     */
+    Date retrieveOldestExpiry();
+
+    /**
+     * Retrieve the ids and expiry dates of the allocations that are not yet deleted and expire within the range, soonest
+     * first.
+     *
+     * @param from inclusive, or null for all up to <code>until</code>.
+     * @param until exclusive
+     * @param maxCount
+     * @return expiry date by id, in order of expiry.
+     */
+    Map<UUID, Date> retrieveExpiring(Date from, Date until, int maxCount);
 
     int retrieveDerivedFromListingRowCount(Dispatch derivedFrom);
 
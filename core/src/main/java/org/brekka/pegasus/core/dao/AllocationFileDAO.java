@@ -3,7 +3,10 @@
  */
 package org.brekka.pegasus.core.dao;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.brekka.commons.persistence.dao.EntityDAO;
@@ -24,24 +27,75 @@ public interface AllocationFileDAO extends EntityDAO<UUID, AllocationFile> {
     List<AllocationFile> retrieveByAllocation(Allocation allocation);
 
     /**
+     * Lock and return the oldest expired allocation files that are not yet deleted, skipping any already locked by another
+     * transaction, so that concurrent reapers each get a different set. Only those in the specified
+     * {@link org.brekka.pegasus.core.model.ReaperLease} slots are considered.
+     *
      * @param maxFileCount
+     * @param slots
      * @return
      */
-    List<AllocationFile> retrieveOldestExpired(int maxFileCount);
+    List<AllocationFile> claimOldestExpired(int maxFileCount, Collection<Integer> slots);
 
     /**
-     * Find all allocation files that are not deleted and have the specified cryped file id.
-     * @param cryptedFileId
+     * Retrieve the allocation file, locking it until the end of the transaction so that others changing anything
+     * related to it wait their turn.
+     *
+     * @param allocationFileId
      * @return
      */
-    List<AllocationFile> retrieveActiveForCryptedFile(CryptedFile cryptedFile);
+    AllocationFile retrieveByIdForUpdate(UUID allocationFileId);
 
     /**
-     * @param cryptedFileId
+     * @return the number of allocation files that have expired but are not yet deleted.
+     */
+    long countExpired();
+
+    /**
+     * @return the expiry date of the longest expired allocation file that is not yet deleted, or null if there is none.
+     */
+    Date retrieveOldestExpiry();
+
+    /**
+     * Retrieve the ids and expiry dates of the allocation files that are not yet deleted and expire within the range, soonest
+     * first.
+     *
+     * @param from inclusive, or null for all up to <code>until</code>.
+     * @param until exclusive
+     * @param maxCount
+     * @return expiry date by id, in order of expiry.
+     */
+    Map<UUID, Date> retrieveExpiring(Date from, Date until, int maxCount);
+
+    /**
+     * Count the allocation files that are not deleted and have the specified cryped file.
+     * @param cryptedFile
      * @return
      */
-    List<AllocationFile> retrieveActiveForAllocation(Allocation allocation);
+    int countActiveForCryptedFile(CryptedFile cryptedFile);
+
+    /**
+     * @param allocation
+     * @return
+     */
+    int countActiveForAllocation(Allocation allocation);
 
     
     void refresh(AllocationFile allocationFile);
+
+    /**
+     * Add to the download counter of the specified file in a single statement, without loading it.
+     * @param allocationFileId
+     * @param count the number of downloads to add
+     */
+    void incrementDownloadCount(UUID allocationFileId, int count);
+
+    /**
+     * Add one to the download counter of the specified file, but only if it is still below the maximum, in a single
+     * statement.
+     * @param allocationFileId
+     * @param maxDownloads
+     * @return true if the counter was incremented.
+     */
+    boolean reserveDownload(UUID allocationFileId, int maxDownloads);
 }
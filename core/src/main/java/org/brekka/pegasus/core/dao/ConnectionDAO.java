@@ -16,6 +16,7 @@
 
 package org.brekka.pegasus.core.dao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -39,6 +40,25 @@ public interface ConnectionDAO extends EntityDAO<UUID, Connection<?, ?, ?>>  {
      */
     List<Connection<?, ?, ?>> identifyConnectionsBetween(KeySafe<?> keySafe, Actor contextMember);
 
+    /**
+     * Identify the connections to any of the key safes in one go, with their sources already loaded.
+     *
+     * @param keySafes
+     * @param contextMember
+     * @return
+     */
+    List<Connection<?, ?, ?>> identifyConnectionsBetween(Collection<? extends KeySafe<?>> keySafes, Actor contextMember);
+
+    /**
+     * Count how many of the connections still exist and are usable by the member, on the same terms as
+     * {@link #identifyConnectionsBetween(Collection, Actor)}.
+     *
+     * @param connectionIds
+     * @param contextMember
+     * @return
+     */
+    int countConnectionsAvailableTo(Collection<UUID> connectionIds, Actor contextMember);
+
     <Target extends KeySafe<?>, T extends Connection<Actor, KeySafe<? extends Actor>, Target>> List<T> 
             retrieveConnectionsByTarget(Target target, Class<T> expected);
     
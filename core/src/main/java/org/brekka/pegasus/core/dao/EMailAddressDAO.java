@@ -3,6 +3,8 @@
  */
 package org.brekka.pegasus.core.dao;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 import org.brekka.commons.persistence.dao.EntityDAO;
@@ -20,4 +22,10 @@ public interface EMailAddressDAO extends EntityDAO<UUID, EMailAddress> {
      */
     EMailAddress retrieveByHash(byte[] hash);
 
+    /**
+     * @param hashes
+     * @return the active addresses matching any of the hashes.
+     */
+    List<EMailAddress> retrieveByHashes(Collection<byte[]> hashes);
+
 }
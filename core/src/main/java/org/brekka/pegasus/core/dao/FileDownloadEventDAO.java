@@ -10,6 +10,7 @@ import org.brekka.commons.persistence.dao.EntityDAO;
 import org.brekka.pegasus.core.model.Allocation;
 import org.brekka.pegasus.core.model.AllocationFile;
 import org.brekka.pegasus.core.model.FileDownloadEvent;
+import org.brekka.pegasus.core.model.Member;
 import org.brekka.pegasus.core.model.Transfer;
 
 /**
@@ -26,4 +27,11 @@ public interface FileDownloadEventDAO extends EntityDAO<UUID, FileDownloadEvent>
     int fileDownloadCount(AllocationFile bundleFile, Transfer transfer);
 
     List<FileDownloadEvent> retrieveFileDownloads(Allocation allocation);
+
+    /**
+     * Retrieve the most recent download of the file made up of ranges that has not yet covered the whole file, for
+     * the remote user identified by the address, user agent and member (which may be null).
+     */
+    FileDownloadEvent retrieveOpenRangeDownload(AllocationFile transferFile, String remoteAddress, String userAgent,
+            Member member);
 }
@@ -9,6 +9,7 @@ import java.util.UUID;
 import org.brekka.commons.persistence.dao.EntityDAO;
 import org.brekka.pegasus.core.model.Firewall;
 import org.brekka.pegasus.core.model.FirewallRule;
+import org.brekka.pegasus.core.model.NetworkGroup;
 
 /**
  * @author Andrew Taylor (andrew@brekka.org)
@@ -23,4 +24,11 @@ public interface FirewallRuleDAO extends EntityDAO<UUID, FirewallRule> {
      * @return
      */
     List<FirewallRule> retrieveForFirewall(Firewall firewall);
+
+    /**
+     * Retrieve the rules (from any firewall) that apply to the specified network group.
+     * @param networkGroup
+     * @return
+     */
+    List<FirewallRule> retrieveForNetworkGroup(NetworkGroup networkGroup);
 }
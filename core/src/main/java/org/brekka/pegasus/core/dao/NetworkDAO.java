@@ -3,6 +3,7 @@
  */
 package org.brekka.pegasus.core.dao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -22,4 +23,23 @@ public interface NetworkDAO extends EntityDAO<UUID, Network> {
      */
     List<Network> retrieveForGroup(NetworkGroup group);
 
+    /**
+     * Retrieve the networks belonging to any of the specified groups in a single query.
+     * @param groups
+     * @return
+     */
+    List<Network> retrieveForGroups(Collection<NetworkGroup> groups);
+
+    /**
+     * Create many networks, written in JDBC batches.
+     * @param networks
+     */
+    void createAll(List<Network> networks);
+
+    /**
+     * Delete the networks with the specified ids using as few statements as possible.
+     * @param networkIds
+     */
+    void deleteAll(List<UUID> networkIds);
+
 }
@@ -0,0 +1,70 @@
+/**
+ * 
+ */
+package org.brekka.pegasus.core.dao;
+
+import java.util.List;
+
+/**
+ * Maintains the {@link org.brekka.pegasus.core.model.ReaperNode}s and {@link org.brekka.pegasus.core.model.ReaperLease}s.
+ * All times are taken from the database clock so that nodes do not need synchronised clocks.
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public interface ReaperLeaseDAO {
+
+    /**
+     * Record the node as alive for the next <code>ttlMillis</code>, and forget nodes that have lapsed.
+     * 
+     * @param nodeId
+     * @param ttlMillis
+     */
+    void checkIn(String nodeId, int ttlMillis);
+
+    /**
+     * Remove the node and release its leases.
+     * 
+     * @param nodeId
+     */
+    void checkOut(String nodeId);
+
+    /**
+     * @return the number of nodes that have not lapsed.
+     */
+    int countLiveNodes();
+
+    /**
+     * Create any of the first <code>slotCount</code> slots that do not exist yet.
+     * 
+     * @param slotCount
+     */
+    void createSlots(int slotCount);
+
+    /**
+     * Extend all leases held by the node.
+     * 
+     * @param nodeId
+     * @param ttlMillis
+     * @return the slots held, in order.
+     */
+    List<Integer> renew(String nodeId, int ttlMillis);
+
+    /**
+     * Take up to <code>maxCount</code> slots that are released or have lapsed, skipping any being taken by another
+     * node at the same time.
+     * 
+     * @param nodeId
+     * @param maxCount
+     * @param ttlMillis
+     * @return the number of slots taken.
+     */
+    int claim(String nodeId, int maxCount, int ttlMillis);
+
+    /**
+     * Give up the node's leases on the specified slots.
+     * 
+     * @param nodeId
+     * @param slots
+     */
+    void release(String nodeId, List<Integer> slots);
+}
@@ -0,0 +1,55 @@
+/**
+ * 
+ */
+package org.brekka.pegasus.core.dao;
+
+import java.util.UUID;
+
+/**
+ * Maintains the {@link org.brekka.pegasus.core.model.ReferenceCount}s of crypted files and allocations.
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public interface ReferenceCountDAO {
+
+    /**
+     * Record that allocation files referencing the crypted file have been created. If the crypted file is not yet
+     * counted, the count is taken from the allocation files instead (which must include the new ones, so the session
+     * is flushed first).
+     * 
+     * @param cryptedFileId
+     * @param added the number of allocation files created.
+     */
+    void addCryptedFileReferences(UUID cryptedFileId, int added);
+
+    /**
+     * As {@link #addCryptedFileReferences(UUID, int)}, for the allocation.
+     * 
+     * @param allocationId
+     * @param added
+     */
+    void addAllocationReferences(UUID allocationId, int added);
+
+    /**
+     * Record that one allocation file referencing the crypted file is being deleted.
+     * 
+     * @param cryptedFileId
+     * @return the number of references remaining, or null if the crypted file is not counted.
+     */
+    Integer removeCryptedFileReference(UUID cryptedFileId);
+
+    /**
+     * As {@link #removeCryptedFileReference(UUID)}, for the allocation.
+     * 
+     * @param allocationId
+     * @return
+     */
+    Integer removeAllocationReference(UUID allocationId);
+
+    /**
+     * Recompute every count from the allocation files. Blocks changes to the counts until the transaction ends.
+     * 
+     * @return the number of counts held.
+     */
+    int recount();
+}
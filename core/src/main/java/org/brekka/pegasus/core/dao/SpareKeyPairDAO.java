@@ -0,0 +1,44 @@
+/**
+ * 
+ */
+package org.brekka.pegasus.core.dao;
+
+import java.util.UUID;
+
+/**
+ * Maintains the {@link org.brekka.pegasus.core.model.SpareKeyPair}s. Spares are identified by the key pair protecting
+ * them and the principal owning them, which is null for all but the key pairs of vaults.
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public interface SpareKeyPairDAO {
+
+    /**
+     * Remove one spare with the specified protector and owner, skipping any being claimed by another transaction at the
+     * same time. Should the transaction roll back, the spare is available again.
+     * 
+     * @param protectorKeyPairId
+     * @param ownerPrincipalId
+     * @return the id of the key pair or null if there are no spares.
+     */
+    UUID claim(UUID protectorKeyPairId, UUID ownerPrincipalId);
+
+    /**
+     * @param keyPairId
+     * @param protectorKeyPairId
+     * @param ownerPrincipalId
+     */
+    void create(UUID keyPairId, UUID protectorKeyPairId, UUID ownerPrincipalId);
+
+    /**
+     * @param protectorKeyPairId
+     * @param ownerPrincipalId
+     * @return the number of spares with the specified protector and owner.
+     */
+    int count(UUID protectorKeyPairId, UUID ownerPrincipalId);
+
+    /**
+     * @return the number of spares for all protectors.
+     */
+    long countAll();
+}
@@ -4,6 +4,7 @@
 package org.brekka.pegasus.core.dao;
 
 import java.io.InputStream;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
@@ -38,4 +39,25 @@ public interface XmlEntityDAO extends EntityDAO<UUID, XmlEntity<?>> {
      * @return
      */
     List<XmlEntity<?>> retrieveBySerial(UUID serial);
+
+    /**
+     * Retrieve a range of versions of a series, in version order.
+     *
+     * @param serial
+     * @param fromVersion the first version (inclusive)
+     * @param toVersion the last version (inclusive)
+     * @return
+     */
+    List<XmlEntity<?>> retrieveBySerialVersions(UUID serial, int fromVersion, int toVersion);
+
+    /**
+     * Identify versions that are no longer needed to reconstruct any later version of their series, because a full
+     * document was written after them before <code>supersededBefore</code>. Versions still referred to by any entity
+     * are left out.
+     *
+     * @param supersededBefore
+     * @param maxResults
+     * @return the ids, oldest first.
+     */
+    List<UUID> retrieveSupersededIds(Date supersededBefore, int maxResults);
 }
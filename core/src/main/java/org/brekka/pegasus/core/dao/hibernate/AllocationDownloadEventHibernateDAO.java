@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.dao.hibernate;
+
+import org.brekka.pegasus.core.dao.AllocationDownloadEventDAO;
+import org.brekka.pegasus.core.model.AllocationDownloadEvent;
+import org.springframework.stereotype.Repository;
+
+/**
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Repository
+public class AllocationDownloadEventHibernateDAO extends AbstractPegasusHibernateDAO<AllocationDownloadEvent> implements
+        AllocationDownloadEventDAO {
+
+    /* (non-Javadoc)
+     * @see org.brekka.commons.persistence.dao.impl.AbstractIdentifiableEntityHibernateDAO#type()
+     */
+    @Override
+    protected Class<AllocationDownloadEvent> type() {
+        return AllocationDownloadEvent.class;
+    }
+}
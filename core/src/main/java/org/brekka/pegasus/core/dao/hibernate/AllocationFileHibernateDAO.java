@@ -4,12 +4,21 @@
 package org.brekka.pegasus.core.dao.hibernate;
 
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.brekka.paveway.core.model.CryptedFile;
 import org.brekka.pegasus.core.dao.AllocationFileDAO;
 import org.brekka.pegasus.core.model.Allocation;
 import org.brekka.pegasus.core.model.AllocationFile;
+import org.brekka.pegasus.core.model.ReaperLease;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
 
@@ -48,44 +57,148 @@ public class AllocationFileHibernateDAO extends AbstractPegasusHibernateDAO<Allo
     }
 
     /* (non-Javadoc)
-     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#retrieveOldestExpired(int)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#claimOldestExpired(int, java.util.Collection)
      */
     @SuppressWarnings("unchecked")
     @Override
-    public List<AllocationFile> retrieveOldestExpired(final int maxFileCount) {
-        return getCurrentSession().createQuery(
-                "select af from AllocationFile af " +
-                " where af.deleted is null " +
-                "   and af.expires < :now " +
-                " order by expires asc "
+    public List<AllocationFile> claimOldestExpired(final int maxFileCount, final Collection<Integer> slots) {
+        // HQL has no equivalent of SKIP LOCKED (PostgreSQL 9.5+)
+        return getCurrentSession().createSQLQuery(
+                "select {af.*} from \"Pegasus\".\"AllocationFile\" af " +
+                " where af.\"Deleted\" is null " +
+                "   and af.\"Expires\" < :now " +
+                "   and mod(get_byte(uuid_send(af.\"ID\"), 15), :slotCount) in (:slots) " +
+                " order by af.\"Expires\" asc " +
+                " limit :max " +
+                "   for update skip locked"
             )
+            .addEntity("af", AllocationFile.class)
             .setParameter("now", new Timestamp(System.currentTimeMillis()))
-            .setMaxResults(maxFileCount)
+            .setInteger("slotCount", ReaperLease.SLOT_COUNT)
+            .setParameterList("slots", slots)
+            .setInteger("max", maxFileCount)
             .list();
     }
 
     /* (non-Javadoc)
-     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#retrieveActiveForCryptedFile(java.util.UUID)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#countExpired()
+     */
+    @Override
+    public long countExpired() {
+        Number count = (Number) getCurrentSession().createQuery(
+                "select count(af) from AllocationFile af " +
+                " where af.deleted is null " +
+                "   and af.expires < :now "
+            )
+            .setParameter("now", new Timestamp(System.currentTimeMillis()))
+            .uniqueResult();
+        return count.longValue();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#retrieveOldestExpiry()
+     */
+    @Override
+    public Date retrieveOldestExpiry() {
+        return (Date) getCurrentSession().createQuery(
+                "select min(af.expires) from AllocationFile af " +
+                " where af.deleted is null " +
+                "   and af.expires < :now "
+            )
+            .setParameter("now", new Timestamp(System.currentTimeMillis()))
+            .uniqueResult();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#retrieveExpiring(java.util.Date, java.util.Date, int)
      */
     @SuppressWarnings("unchecked")
     @Override
-    public List<AllocationFile> retrieveActiveForCryptedFile(final CryptedFile cryptedFile) {
-        return getCurrentSession().createCriteria(AllocationFile.class)
+    public Map<UUID, Date> retrieveExpiring(final Date from, final Date until, final int maxCount) {
+        Query query = getCurrentSession().createQuery(
+                "select af.id, af.expires from AllocationFile af " +
+                " where af.deleted is null " +
+                "   and af.expires < :until " +
+                (from != null ? "   and af.expires >= :from " : "") +
+                " order by af.expires asc "
+            )
+            .setTimestamp("until", until)
+            .setMaxResults(maxCount);
+        if (from != null) {
+            query.setTimestamp("from", from);
+        }
+        List<Object[]> rows = query.list();
+        Map<UUID, Date> expiring = new LinkedHashMap<>(rows.size() * 2);
+        for (Object[] row : rows) {
+            expiring.put((UUID) row[0], (Date) row[1]);
+        }
+        return expiring;
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#countActiveForCryptedFile(org.brekka.paveway.core.model.CryptedFile)
+     */
+    @Override
+    public int countActiveForCryptedFile(final CryptedFile cryptedFile) {
+        Number count = (Number) getCurrentSession().createCriteria(AllocationFile.class)
                 .add(Restrictions.eq("cryptedFile", cryptedFile))
                 .add(Restrictions.isNull("deleted"))
-                .list();
+                .setProjection(Projections.rowCount())
+                .uniqueResult();
+        return count.intValue();
     }
 
     /* (non-Javadoc)
-     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#retrieveActiveForAllocation(org.brekka.pegasus.core.model.Allocation)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#countActiveForAllocation(org.brekka.pegasus.core.model.Allocation)
      */
-    @SuppressWarnings("unchecked")
     @Override
-    public List<AllocationFile> retrieveActiveForAllocation(final Allocation allocation) {
-        return getCurrentSession().createCriteria(AllocationFile.class)
+    public int countActiveForAllocation(final Allocation allocation) {
+        Number count = (Number) getCurrentSession().createCriteria(AllocationFile.class)
                 .add(Restrictions.eq("allocation", allocation))
                 .add(Restrictions.isNull("deleted"))
-                .list();
+                .setProjection(Projections.rowCount())
+                .uniqueResult();
+        return count.intValue();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#retrieveByIdForUpdate(java.util.UUID)
+     */
+    @Override
+    public AllocationFile retrieveByIdForUpdate(final UUID allocationFileId) {
+        return (AllocationFile) getCurrentSession().get(AllocationFile.class, allocationFileId, LockOptions.UPGRADE);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#incrementDownloadCount(java.util.UUID, int)
+     */
+    @Override
+    public void incrementDownloadCount(final UUID allocationFileId, final int count) {
+        getCurrentSession().createQuery(
+                "update AllocationFile " +
+                "   set downloadCount = downloadCount + :count " +
+                " where id = :id "
+            )
+            .setInteger("count", count)
+            .setParameter("id", allocationFileId)
+            .executeUpdate();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationFileDAO#reserveDownload(java.util.UUID, int)
+     */
+    @Override
+    public boolean reserveDownload(final UUID allocationFileId, final int maxDownloads) {
+        int updated = getCurrentSession().createQuery(
+                "update AllocationFile " +
+                "   set downloadCount = downloadCount + 1 " +
+                " where id = :id " +
+                "   and downloadCount < :maxDownloads "
+            )
+            .setParameter("id", allocationFileId)
+            .setInteger("maxDownloads", maxDownloads)
+            .executeUpdate();
+        return updated == 1;
     }
 
     /* (non-Javadoc)
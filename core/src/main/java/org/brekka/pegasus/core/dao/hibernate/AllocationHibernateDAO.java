@@ -4,13 +4,19 @@
 package org.brekka.pegasus.core.dao.hibernate;
 
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.brekka.commons.persistence.model.ListingCriteria;
 import org.brekka.commons.persistence.support.HibernateUtils;
 import org.brekka.pegasus.core.dao.AllocationDAO;
 import org.brekka.pegasus.core.model.Allocation;
 import org.brekka.pegasus.core.model.Dispatch;
+import org.brekka.pegasus.core.model.ReaperLease;
 import org.brekka.pegasus.core.model.Token;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
@@ -41,22 +47,84 @@ public class AllocationHibernateDAO extends AbstractPegasusHibernateDAO<Allocati
     }
 
     /* (non-Javadoc)
-     * @see org.brekka.pegasus.core.dao.AllocationDAO#retrieveOldestExpired(int)
+     * @see org.brekka.pegasus.core.dao.AllocationDAO#claimOldestExpired(int, java.util.Collection)
      */
     @SuppressWarnings("unchecked")
     @Override
-    public List<Allocation> retrieveOldestExpired(final int maxAllocationCount) {
-        return getCurrentSession().createQuery(
-                "select a from Allocation a " +
-                " where a.deleted is null " +
-                "   and a.expires < :now " +
-                " order by expires asc "
+    public List<Allocation> claimOldestExpired(final int maxAllocationCount, final Collection<Integer> slots) {
+        // HQL has no equivalent of SKIP LOCKED (PostgreSQL 9.5+)
+        return getCurrentSession().createSQLQuery(
+                "select {a.*} from \"Pegasus\".\"Allocation\" a " +
+                " where a.\"Deleted\" is null " +
+                "   and a.\"Expires\" < :now " +
+                "   and mod(get_byte(uuid_send(a.\"ID\"), 15), :slotCount) in (:slots) " +
+                " order by a.\"Expires\" asc " +
+                " limit :max " +
+                "   for update skip locked"
             )
+            .addEntity("a", Allocation.class)
             .setParameter("now", new Timestamp(System.currentTimeMillis()))
-            .setMaxResults(maxAllocationCount)
+            .setInteger("slotCount", ReaperLease.SLOT_COUNT)
+            .setParameterList("slots", slots)
+            .setInteger("max", maxAllocationCount)
             .list();
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationDAO#countExpired()
+     */
+    @Override
+    public long countExpired() {
+        Number count = (Number) getCurrentSession().createQuery(
+                "select count(a) from Allocation a " +
+                " where a.deleted is null " +
+                "   and a.expires < :now "
+            )
+            .setParameter("now", new Timestamp(System.currentTimeMillis()))
+            .uniqueResult();
+        return count.longValue();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationDAO#retrieveOldestExpiry()
+     */
+    @Override
+    public Date retrieveOldestExpiry() {
+        return (Date) getCurrentSession().createQuery(
+                "select min(a.expires) from Allocation a " +
+                " where a.deleted is null " +
+                "   and a.expires < :now "
+            )
+            .setParameter("now", new Timestamp(System.currentTimeMillis()))
+            .uniqueResult();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.AllocationDAO#retrieveExpiring(java.util.Date, java.util.Date, int)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<UUID, Date> retrieveExpiring(final Date from, final Date until, final int maxCount) {
+        Query query = getCurrentSession().createQuery(
+                "select a.id, a.expires from Allocation a " +
+                " where a.deleted is null " +
+                "   and a.expires < :until " +
+                (from != null ? "   and a.expires >= :from " : "") +
+                " order by a.expires asc "
+            )
+            .setTimestamp("until", until)
+            .setMaxResults(maxCount);
+        if (from != null) {
+            query.setTimestamp("from", from);
+        }
+        List<Object[]> rows = query.list();
+        Map<UUID, Date> expiring = new LinkedHashMap<>(rows.size() * 2);
+        for (Object[] row : rows) {
+            expiring.put((UUID) row[0], (Date) row[1]);
+        }
+        return expiring;
+    }
+
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.dao.AllocationDAO#retrieveDerivedFromListing(org.brekka.pegasus.core.model.Dispatch, org.brekka.commons.persistence.model.ListingCriteria)
      */
@@ -16,7 +16,10 @@
 
 package org.brekka.pegasus.core.dao.hibernate;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import org.brekka.pegasus.core.dao.ConnectionDAO;
 import org.brekka.pegasus.core.model.Actor;
@@ -45,22 +48,56 @@ public class ConnectionHibernateDAO extends AbstractPegasusHibernateDAO<Connecti
     /**
      * 
      */
-    @SuppressWarnings("unchecked")
     @Override
     public List<Connection<?, ?, ?>> identifyConnectionsBetween(KeySafe<?> keySafe, Actor contextMember) {
+        return identifyConnectionsBetween(Collections.singleton(keySafe), contextMember);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ConnectionDAO#identifyConnectionsBetween(java.util.Collection, org.brekka.pegasus.core.model.Actor)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Connection<?, ?, ?>> identifyConnectionsBetween(Collection<? extends KeySafe<?>> keySafes,
+            Actor contextMember) {
+        if (keySafes.isEmpty()) {
+            return Collections.emptyList();
+        }
         return getCurrentSession().createQuery(
             "select conn " +
             "  from Connection as conn " +
             " join conn.owner as owner " +
-            " join conn.source as source " +
-            " where conn.target = :target" +
+            " join fetch conn.source as source " +
+            " where conn.target in (:targets)" +
             "   and (owner = :member" +
             "    or owner in (from Associate as assoc where assoc.member = :member)" +
             "    or owner in (select assoc.organization from Associate as assoc where assoc.member = :member))")
-            .setEntity("target", keySafe)
+            .setParameterList("targets", keySafes)
             .setEntity("member", contextMember)
             .list();
     }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ConnectionDAO#countConnectionsAvailableTo(java.util.Collection, org.brekka.pegasus.core.model.Actor)
+     */
+    @Override
+    public int countConnectionsAvailableTo(Collection<UUID> connectionIds, Actor contextMember) {
+        if (connectionIds.isEmpty()) {
+            return 0;
+        }
+        Number count = (Number) getCurrentSession().createQuery(
+            "select count(conn) " +
+            "  from Connection as conn " +
+            " join conn.owner as owner " +
+            " where conn.id in (:ids)" +
+            "   and (owner = :member" +
+            "    or owner in (from Associate as assoc where assoc.member = :member)" +
+            "    or owner in (select assoc.organization from Associate as assoc where assoc.member = :member))")
+            .setParameterList("ids", connectionIds)
+            .setEntity("member", contextMember)
+            .uniqueResult();
+        return count.intValue();
+    }
     
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.dao.ConnectionDAO#retrieveConnectionsByTarget(org.brekka.pegasus.core.model.KeySafe, java.lang.Class)
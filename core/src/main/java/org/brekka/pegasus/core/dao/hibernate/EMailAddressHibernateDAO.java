@@ -3,6 +3,10 @@
  */
 package org.brekka.pegasus.core.dao.hibernate;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 import org.brekka.pegasus.core.dao.EMailAddressDAO;
 import org.brekka.pegasus.core.model.EMailAddress;
 import org.hibernate.criterion.Restrictions;
@@ -32,4 +36,19 @@ public class EMailAddressHibernateDAO extends AbstractPegasusHibernateDAO<EMailA
                 .add(Restrictions.eq("active", Boolean.TRUE))
                 .uniqueResult();
     }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.EMailAddressDAO#retrieveByHashes(java.util.Collection)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<EMailAddress> retrieveByHashes(final Collection<byte[]> hashes) {
+        if (hashes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return getCurrentSession().createCriteria(EMailAddress.class)
+                .add(Restrictions.in("hash", hashes))
+                .add(Restrictions.eq("active", Boolean.TRUE))
+                .list();
+    }
 }
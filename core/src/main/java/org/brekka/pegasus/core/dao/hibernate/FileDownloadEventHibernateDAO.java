@@ -9,8 +9,12 @@ import org.brekka.pegasus.core.dao.FileDownloadEventDAO;
 import org.brekka.pegasus.core.model.Allocation;
 import org.brekka.pegasus.core.model.AllocationFile;
 import org.brekka.pegasus.core.model.FileDownloadEvent;
+import org.brekka.pegasus.core.model.Member;
 import org.brekka.pegasus.core.model.Transfer;
+import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -57,4 +61,23 @@ public class FileDownloadEventHibernateDAO extends AbstractPegasusHibernateDAO<F
         query.setEntity("allocation", allocation);
         return query.list();
     }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.FileDownloadEventDAO#retrieveOpenRangeDownload(org.brekka.pegasus.core.model.AllocationFile, java.lang.String, java.lang.String, org.brekka.pegasus.core.model.Member)
+     */
+    @Override
+    public FileDownloadEvent retrieveOpenRangeDownload(AllocationFile transferFile, String remoteAddress,
+            String userAgent, Member member) {
+        Criteria criteria = getCurrentSession().createCriteria(FileDownloadEvent.class)
+                .add(Restrictions.eq("transferFile", transferFile))
+                .add(Restrictions.isNull("completed"))
+                .add(Restrictions.isNotNull("servedRanges"))
+                .add(Restrictions.eq("remoteAddress", remoteAddress));
+        criteria.add(userAgent == null ? Restrictions.isNull("userAgent") : Restrictions.eq("userAgent", userAgent));
+        criteria.add(member == null ? Restrictions.isNull("member") : Restrictions.eq("member", member));
+        return (FileDownloadEvent) criteria
+                .addOrder(Order.desc("initiated"))
+                .setMaxResults(1)
+                .uniqueResult();
+    }
 }
@@ -8,6 +8,7 @@ import java.util.List;
 import org.brekka.pegasus.core.dao.FirewallRuleDAO;
 import org.brekka.pegasus.core.model.Firewall;
 import org.brekka.pegasus.core.model.FirewallRule;
+import org.brekka.pegasus.core.model.NetworkGroup;
 import org.hibernate.SQLQuery;
 import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
@@ -57,4 +58,14 @@ public class FirewallRuleHibernateDAO extends AbstractPegasusHibernateDAO<Firewa
                 .list();
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.FirewallRuleDAO#retrieveForNetworkGroup(org.brekka.pegasus.core.model.NetworkGroup)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<FirewallRule> retrieveForNetworkGroup(NetworkGroup networkGroup) {
+        return getCurrentSession().createCriteria(FirewallRule.class)
+                .add(Restrictions.eq("networkGroup", networkGroup))
+                .list();
+    }
 }
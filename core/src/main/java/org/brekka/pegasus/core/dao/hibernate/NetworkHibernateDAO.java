@@ -3,11 +3,16 @@
  */
 package org.brekka.pegasus.core.dao.hibernate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import org.brekka.pegasus.core.dao.NetworkDAO;
 import org.brekka.pegasus.core.model.Network;
 import org.brekka.pegasus.core.model.NetworkGroup;
+import org.hibernate.Session;
 import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
 
@@ -18,6 +23,13 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class NetworkHibernateDAO extends AbstractPegasusHibernateDAO<Network> implements NetworkDAO {
 
+    /**
+     * Matches hibernate.jdbc.batch_size.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    private static final int MAX_IN_SIZE = 1000;
+
     /* (non-Javadoc)
      * @see org.brekka.commons.persistence.dao.impl.AbstractIdentifiableEntityHibernateDAO#type()
      */
@@ -36,4 +48,63 @@ public class NetworkHibernateDAO extends AbstractPegasusHibernateDAO<Network> im
                 .add(Restrictions.eq("networkGroup", group))
                 .list();
     }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.NetworkDAO#retrieveForGroups(java.util.Collection)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Network> retrieveForGroups(Collection<NetworkGroup> groups) {
+        if (groups.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return getCurrentSession().createCriteria(Network.class)
+                .add(Restrictions.in("networkGroup", groups))
+                .list();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.NetworkDAO#createAll(java.util.List)
+     */
+    @Override
+    public void createAll(List<Network> networks) {
+        Session session = getCurrentSession();
+        List<Network> pending = new ArrayList<>(BATCH_SIZE);
+        for (Network network : networks) {
+            create(network);
+            pending.add(network);
+            if (pending.size() == BATCH_SIZE) {
+                flushAndEvict(session, pending);
+            }
+        }
+        flushAndEvict(session, pending);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.NetworkDAO#deleteAll(java.util.List)
+     */
+    @Override
+    public void deleteAll(List<UUID> networkIds) {
+        for (int i = 0; i < networkIds.size(); i += MAX_IN_SIZE) {
+            List<UUID> chunk = networkIds.subList(i, Math.min(i + MAX_IN_SIZE, networkIds.size()));
+            getCurrentSession().createQuery("delete from Network where id in (:ids)")
+                .setParameterList("ids", chunk)
+                .executeUpdate();
+        }
+    }
+
+    /**
+     * Write out the pending inserts as one batch, then drop them from the session so it does not grow with the
+     * number of networks.
+     */
+    private static void flushAndEvict(Session session, List<Network> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        session.flush();
+        for (Network network : pending) {
+            session.evict(network);
+        }
+        pending.clear();
+    }
 }
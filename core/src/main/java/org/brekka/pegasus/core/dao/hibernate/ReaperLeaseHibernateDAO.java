@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package org.brekka.pegasus.core.dao.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brekka.pegasus.core.dao.ReaperLeaseDAO;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Native SQL throughout, for the database clock, upserts and SKIP LOCKED (PostgreSQL 9.5+).
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Repository
+public class ReaperLeaseHibernateDAO implements ReaperLeaseDAO {
+
+    private static final String EXPIRES = "(now() + :ttl * interval '1 millisecond')";
+
+    @Autowired
+    private SessionFactory pegasusSessionFactory;
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReaperLeaseDAO#checkIn(java.lang.String, int)
+     */
+    @Override
+    public void checkIn(final String nodeId, final int ttlMillis) {
+        getCurrentSession().createSQLQuery(
+                "delete from \"Pegasus\".\"ReaperNode\" " +
+                " where \"Expires\" < now() "
+            )
+            .executeUpdate();
+        getCurrentSession().createSQLQuery(
+                "insert into \"Pegasus\".\"ReaperNode\" (\"NodeID\", \"Expires\") " +
+                "     values (:node, " + EXPIRES + ") " +
+                "on conflict (\"NodeID\") do update set \"Expires\" = excluded.\"Expires\" "
+            )
+            .setString("node", nodeId)
+            .setInteger("ttl", ttlMillis)
+            .executeUpdate();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReaperLeaseDAO#checkOut(java.lang.String)
+     */
+    @Override
+    public void checkOut(final String nodeId) {
+        getCurrentSession().createSQLQuery(
+                "update \"Pegasus\".\"ReaperLease\" " +
+                "   set \"Owner\" = null, \"Expires\" = null " +
+                " where \"Owner\" = :node "
+            )
+            .setString("node", nodeId)
+            .executeUpdate();
+        getCurrentSession().createSQLQuery(
+                "delete from \"Pegasus\".\"ReaperNode\" " +
+                " where \"NodeID\" = :node "
+            )
+            .setString("node", nodeId)
+            .executeUpdate();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReaperLeaseDAO#countLiveNodes()
+     */
+    @Override
+    public int countLiveNodes() {
+        Number count = (Number) getCurrentSession().createSQLQuery(
+                "select count(*) from \"Pegasus\".\"ReaperNode\" " +
+                " where \"Expires\" > now() "
+            )
+            .uniqueResult();
+        return count.intValue();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReaperLeaseDAO#createSlots(int)
+     */
+    @Override
+    public void createSlots(final int slotCount) {
+        getCurrentSession().createSQLQuery(
+                "insert into \"Pegasus\".\"ReaperLease\" (\"Slot\") " +
+                "     select s from generate_series(0, :last) s " +
+                "on conflict (\"Slot\") do nothing "
+            )
+            .setInteger("last", slotCount - 1)
+            .executeUpdate();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReaperLeaseDAO#renew(java.lang.String, int)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Integer> renew(final String nodeId, final int ttlMillis) {
+        getCurrentSession().createSQLQuery(
+                "update \"Pegasus\".\"ReaperLease\" " +
+                "   set \"Expires\" = " + EXPIRES +
+                " where \"Owner\" = :node "
+            )
+            .setString("node", nodeId)
+            .setInteger("ttl", ttlMillis)
+            .executeUpdate();
+        List<Number> slots = getCurrentSession().createSQLQuery(
+                "select \"Slot\" from \"Pegasus\".\"ReaperLease\" " +
+                " where \"Owner\" = :node " +
+                " order by \"Slot\" "
+            )
+            .setString("node", nodeId)
+            .list();
+        List<Integer> result = new ArrayList<>(slots.size());
+        for (Number slot : slots) {
+            result.add(slot.intValue());
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReaperLeaseDAO#claim(java.lang.String, int, int)
+     */
+    @Override
+    public int claim(final String nodeId, final int maxCount, final int ttlMillis) {
+        return getCurrentSession().createSQLQuery(
+                "update \"Pegasus\".\"ReaperLease\" " +
+                "   set \"Owner\" = :node, \"Expires\" = " + EXPIRES +
+                " where \"Slot\" in ( " +
+                "       select \"Slot\" from \"Pegasus\".\"ReaperLease\" " +
+                "        where \"Owner\" is null " +
+                "           or \"Expires\" < now() " +
+                "        order by \"Slot\" " +
+                "        limit :max " +
+                "          for update skip locked) "
+            )
+            .setString("node", nodeId)
+            .setInteger("ttl", ttlMillis)
+            .setInteger("max", maxCount)
+            .executeUpdate();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReaperLeaseDAO#release(java.lang.String, java.util.List)
+     */
+    @Override
+    public void release(final String nodeId, final List<Integer> slots) {
+        getCurrentSession().createSQLQuery(
+                "update \"Pegasus\".\"ReaperLease\" " +
+                "   set \"Owner\" = null, \"Expires\" = null " +
+                " where \"Owner\" = :node " +
+                "   and \"Slot\" in (:slots) "
+            )
+            .setString("node", nodeId)
+            .setParameterList("slots", slots)
+            .executeUpdate();
+    }
+
+    protected Session getCurrentSession() {
+        return pegasusSessionFactory.getCurrentSession();
+    }
+}
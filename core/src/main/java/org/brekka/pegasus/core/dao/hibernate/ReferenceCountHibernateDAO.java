@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package org.brekka.pegasus.core.dao.hibernate;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.brekka.pegasus.core.dao.ReferenceCountDAO;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.type.PostgresUUIDType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Native SQL, so that counts are changed atomically in the database rather than read, modified and written back
+ * (PostgreSQL 9.5+ for the upserts).
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Repository
+public class ReferenceCountHibernateDAO implements ReferenceCountDAO {
+
+    @Autowired
+    private SessionFactory pegasusSessionFactory;
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReferenceCountDAO#addCryptedFileReferences(java.util.UUID, int)
+     */
+    @Override
+    public void addCryptedFileReferences(final UUID cryptedFileId, final int added) {
+        add(cryptedFileId, added, "CryptedFileID");
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReferenceCountDAO#addAllocationReferences(java.util.UUID, int)
+     */
+    @Override
+    public void addAllocationReferences(final UUID allocationId, final int added) {
+        add(allocationId, added, "AllocationID");
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReferenceCountDAO#removeCryptedFileReference(java.util.UUID)
+     */
+    @Override
+    public Integer removeCryptedFileReference(final UUID cryptedFileId) {
+        return remove(cryptedFileId);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReferenceCountDAO#removeAllocationReference(java.util.UUID)
+     */
+    @Override
+    public Integer removeAllocationReference(final UUID allocationId) {
+        return remove(allocationId);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.ReferenceCountDAO#recount()
+     */
+    @Override
+    public int recount() {
+        Session session = getCurrentSession();
+        // Writers wait for the recount, readers are unaffected
+        session.createSQLQuery("lock table \"Pegasus\".\"ReferenceCount\" in exclusive mode").executeUpdate();
+        session.createSQLQuery("delete from \"Pegasus\".\"ReferenceCount\"").executeUpdate();
+        int count = session.createSQLQuery(
+                "insert into \"Pegasus\".\"ReferenceCount\" (\"ID\", \"Count\") " +
+                "     select \"CryptedFileID\", count(*) from \"Pegasus\".\"AllocationFile\" " +
+                "      where \"Deleted\" is null " +
+                "        and \"CryptedFileID\" is not null " +
+                "      group by \"CryptedFileID\" "
+            )
+            .executeUpdate();
+        count += session.createSQLQuery(
+                "insert into \"Pegasus\".\"ReferenceCount\" (\"ID\", \"Count\") " +
+                "     select \"AllocationID\", count(*) from \"Pegasus\".\"AllocationFile\" " +
+                "      where \"Deleted\" is null " +
+                "      group by \"AllocationID\" "
+            )
+            .executeUpdate();
+        return count;
+    }
+
+    private void add(final UUID id, final int added, final String column) {
+        Session session = getCurrentSession();
+        // The new allocation files must be visible to the count
+        session.flush();
+        session.createSQLQuery(
+                "insert into \"Pegasus\".\"ReferenceCount\" (\"ID\", \"Count\") " +
+                "     select :id, count(*) from \"Pegasus\".\"AllocationFile\" " +
+                "      where \"" + column + "\" = :id " +
+                "        and \"Deleted\" is null " +
+                "on conflict (\"ID\") do update set \"Count\" = \"ReferenceCount\".\"Count\" + :added "
+            )
+            .setParameter("id", id, PostgresUUIDType.INSTANCE)
+            .setInteger("added", added)
+            .executeUpdate();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Integer remove(final UUID id) {
+        Session session = getCurrentSession();
+        List<Number> remaining = session.createSQLQuery(
+                "update \"Pegasus\".\"ReferenceCount\" " +
+                "   set \"Count\" = \"Count\" - 1 " +
+                " where \"ID\" = :id " +
+                "returning \"Count\" "
+            )
+            .setParameter("id", id, PostgresUUIDType.INSTANCE)
+            .list();
+        if (remaining.isEmpty()) {
+            return null;
+        }
+        int count = remaining.get(0).intValue();
+        if (count <= 0) {
+            session.createSQLQuery(
+                    "delete from \"Pegasus\".\"ReferenceCount\" " +
+                    " where \"ID\" = :id "
+                )
+                .setParameter("id", id, PostgresUUIDType.INSTANCE)
+                .executeUpdate();
+        }
+        return count;
+    }
+
+    protected Session getCurrentSession() {
+        return pegasusSessionFactory.getCurrentSession();
+    }
+}
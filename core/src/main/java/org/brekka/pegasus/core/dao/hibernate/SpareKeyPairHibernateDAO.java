@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package org.brekka.pegasus.core.dao.hibernate;
+
+import java.util.UUID;
+
+import org.brekka.pegasus.core.dao.SpareKeyPairDAO;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.type.PostgresUUIDType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Native SQL, for SKIP LOCKED (PostgreSQL 9.5+) and to remove and return a spare in one statement.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Repository
+public class SpareKeyPairHibernateDAO implements SpareKeyPairDAO {
+
+    @Autowired
+    private SessionFactory pegasusSessionFactory;
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.SpareKeyPairDAO#claim(java.util.UUID, java.util.UUID)
+     */
+    @Override
+    public UUID claim(final UUID protectorKeyPairId, final UUID ownerPrincipalId) {
+        return (UUID) getCurrentSession().createSQLQuery(
+                "delete from \"Pegasus\".\"SpareKeyPair\" " +
+                " where \"KeyPairID\" = ( " +
+                "       select \"KeyPairID\" from \"Pegasus\".\"SpareKeyPair\" " +
+                "        where \"ProtectorKeyPairID\" = :protector " +
+                "          and \"OwnerPrincipalID\" is not distinct from :owner " +
+                "        limit 1 " +
+                "          for update skip locked) " +
+                "returning \"KeyPairID\" "
+            )
+            .addScalar("KeyPairID", PostgresUUIDType.INSTANCE)
+            .setParameter("protector", protectorKeyPairId, PostgresUUIDType.INSTANCE)
+            .setParameter("owner", ownerPrincipalId, PostgresUUIDType.INSTANCE)
+            .uniqueResult();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.SpareKeyPairDAO#create(java.util.UUID, java.util.UUID, java.util.UUID)
+     */
+    @Override
+    public void create(final UUID keyPairId, final UUID protectorKeyPairId, final UUID ownerPrincipalId) {
+        getCurrentSession().createSQLQuery(
+                "insert into \"Pegasus\".\"SpareKeyPair\" " +
+                "       (\"KeyPairID\", \"ProtectorKeyPairID\", \"OwnerPrincipalID\", \"Created\") " +
+                "values (:id, :protector, :owner, now()) "
+            )
+            .setParameter("id", keyPairId, PostgresUUIDType.INSTANCE)
+            .setParameter("protector", protectorKeyPairId, PostgresUUIDType.INSTANCE)
+            .setParameter("owner", ownerPrincipalId, PostgresUUIDType.INSTANCE)
+            .executeUpdate();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.SpareKeyPairDAO#count(java.util.UUID, java.util.UUID)
+     */
+    @Override
+    public int count(final UUID protectorKeyPairId, final UUID ownerPrincipalId) {
+        Number count = (Number) getCurrentSession().createSQLQuery(
+                "select count(*) from \"Pegasus\".\"SpareKeyPair\" " +
+                " where \"ProtectorKeyPairID\" = :protector " +
+                "   and \"OwnerPrincipalID\" is not distinct from :owner "
+            )
+            .setParameter("protector", protectorKeyPairId, PostgresUUIDType.INSTANCE)
+            .setParameter("owner", ownerPrincipalId, PostgresUUIDType.INSTANCE)
+            .uniqueResult();
+        return count.intValue();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.SpareKeyPairDAO#countAll()
+     */
+    @Override
+    public long countAll() {
+        Number count = (Number) getCurrentSession().createSQLQuery(
+                "select count(*) from \"Pegasus\".\"SpareKeyPair\" "
+            )
+            .uniqueResult();
+        return count.longValue();
+    }
+
+    protected Session getCurrentSession() {
+        return pegasusSessionFactory.getCurrentSession();
+    }
+}
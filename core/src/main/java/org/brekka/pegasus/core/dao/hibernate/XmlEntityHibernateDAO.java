@@ -5,6 +5,8 @@ package org.brekka.pegasus.core.dao.hibernate;
 
 import java.io.InputStream;
 import java.sql.Blob;
+import java.sql.Timestamp;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
@@ -14,6 +16,7 @@ import org.brekka.pegasus.core.model.KeySafe;
 import org.brekka.pegasus.core.model.XmlEntity;
 import org.hibernate.Hibernate;
 import org.hibernate.Session;
+import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.engine.jdbc.LobCreator;
 import org.springframework.stereotype.Repository;
@@ -24,6 +27,14 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class XmlEntityHibernateDAO extends AbstractPegasusHibernateDAO<XmlEntity<?>> implements XmlEntityDAO {
 
+    /**
+     * Entities that refer to an XML entity through their <code>xml</code> property. A version they still refer to is
+     * never superseded.
+     */
+    private static final String[] OWNER_ENTITIES = {
+        "Allocation", "Division", "EMailMessage", "Invitation", "Organization", "Profile", "Robot", "Template"
+    };
+
     /* (non-Javadoc)
      * @see org.brekka.commons.persistence.dao.impl.AbstractIdentifiableEntityHibernateDAO#type()
      */
@@ -75,4 +86,41 @@ public class XmlEntityHibernateDAO extends AbstractPegasusHibernateDAO<XmlEntity
                 .add(Restrictions.eq("serial", serial))
                 .list();
     }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.XmlEntityDAO#retrieveBySerialVersions(java.util.UUID, int, int)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<XmlEntity<?>> retrieveBySerialVersions(UUID serial, int fromVersion, int toVersion) {
+        return getCurrentSession().createCriteria(XmlEntity.class)
+                .add(Restrictions.eq("serial", serial))
+                .add(Restrictions.between("version", fromVersion, toVersion))
+                .addOrder(Order.asc("version"))
+                .list();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.dao.XmlEntityDAO#retrieveSupersededIds(java.util.Date, int)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<UUID> retrieveSupersededIds(Date supersededBefore, int maxResults) {
+        StringBuilder hql = new StringBuilder(
+                "select x.id from XmlEntity x " +
+                " where exists (" +
+                "   select s.id from XmlEntity s " +
+                "    where s.serial = x.serial " +
+                "      and s.version > x.version " +
+                "      and (s.deltaDepth is null or s.deltaDepth = 0) " +
+                "      and s.created < :supersededBefore) ");
+        for (String owner : OWNER_ENTITIES) {
+            hql.append("   and not exists (select o.id from ").append(owner).append(" o where o.xml = x) ");
+        }
+        hql.append(" order by x.created asc");
+        return getCurrentSession().createQuery(hql.toString())
+                .setParameter("supersededBefore", new Timestamp(supersededBefore.getTime()))
+                .setMaxResults(maxResults)
+                .list();
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.brekka.pegasus.core.PegasusConstants;
+import org.hibernate.annotations.Index;
+
+/**
+ * Tracks the download of all files of an allocation as a single archive.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Entity
+@Table(name="`AllocationDownloadEvent`", schema=PegasusConstants.SCHEMA)
+public class AllocationDownloadEvent extends RemoteUserEvent {
+
+    /**
+     * Serial UID
+     */
+    private static final long serialVersionUID = 6160962378120914837L;
+
+    /**
+     * The allocation whose files were downloaded
+     */
+    @ManyToOne()
+    @JoinColumn(name="`AllocationID`", nullable=false)
+    @Index(name="IDX_AllocationDownloadEvent_01")
+    private Allocation allocation;
+
+    /**
+     * The number of files included in the archive
+     */
+    @Column(name="`FileCount`")
+    private Integer fileCount;
+
+    /**
+     * The moment the last byte was sent
+     */
+    @Column(name="`Completed`")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date completed;
+
+    public Allocation getAllocation() {
+        return this.allocation;
+    }
+
+    public void setAllocation(final Allocation allocation) {
+        this.allocation = allocation;
+    }
+
+    public Integer getFileCount() {
+        return this.fileCount;
+    }
+
+    public void setFileCount(final Integer fileCount) {
+        this.fileCount = fileCount;
+    }
+
+    public Date getCompleted() {
+        return this.completed;
+    }
+
+    public void setCompleted(final Date completed) {
+        this.completed = completed;
+    }
+}
@@ -46,6 +46,19 @@ public class FileDownloadEvent extends RemoteUserEvent {
     @Column(name="`Completed`")
     @Temporal(TemporalType.TIMESTAMP)
     private Date completed;
+    
+    /**
+     * For a download made up of ranges, the parts of the file served so far as a sorted list of non-overlapping
+     * 'start-end' pairs (end exclusive), separated by commas. Null for a download of the whole file.
+     */
+    @Column(name="`ServedRanges`", length=4000)
+    private String servedRanges;
+    
+    /**
+     * For a download made up of ranges, the number of ranges still being served.
+     */
+    @Column(name="`OpenRanges`")
+    private Integer openRanges;
 
 
 
@@ -63,5 +76,21 @@ public class FileDownloadEvent extends RemoteUserEvent {
 
     public void setCompleted(Date completed) {
         this.completed = completed;
-    } 
+    }
+
+    public String getServedRanges() {
+        return servedRanges;
+    }
+
+    public void setServedRanges(String servedRanges) {
+        this.servedRanges = servedRanges;
+    }
+
+    public Integer getOpenRanges() {
+        return openRanges;
+    }
+
+    public void setOpenRanges(Integer openRanges) {
+        this.openRanges = openRanges;
+    }
 }
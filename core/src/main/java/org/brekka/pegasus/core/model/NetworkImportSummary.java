@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.model;
+
+import java.util.List;
+
+/**
+ * The outcome of importing a set of networks into a {@link NetworkGroup}: how the networks of the group changed, and
+ * which of the submitted blocks could not be used.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class NetworkImportSummary {
+
+    private final int submitted;
+
+    private final List<String> rejected;
+
+    private final List<String> added;
+
+    private final List<String> removed;
+
+    private final int unchanged;
+
+    public NetworkImportSummary(final int submitted, final List<String> rejected, final List<String> added,
+            final List<String> removed, final int unchanged) {
+        this.submitted = submitted;
+        this.rejected = rejected;
+        this.added = added;
+        this.removed = removed;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * @return the number of blocks passed in.
+     */
+    public int getSubmitted() {
+        return this.submitted;
+    }
+
+    /**
+     * @return the blocks that could not be parsed, as given.
+     */
+    public List<String> getRejected() {
+        return this.rejected;
+    }
+
+    /**
+     * @return the blocks of the networks created.
+     */
+    public List<String> getAdded() {
+        return this.added;
+    }
+
+    /**
+     * @return the blocks of existing networks that were removed, having been merged into larger blocks.
+     */
+    public List<String> getRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * @return the number of existing networks that were kept as they were.
+     */
+    public int getUnchanged() {
+        return this.unchanged;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("NetworkImportSummary [submitted=%d, rejected=%d, added=%d, removed=%d, unchanged=%d]",
+                this.submitted, this.rejected.size(), this.added.size(), this.removed.size(), this.unchanged);
+    }
+}
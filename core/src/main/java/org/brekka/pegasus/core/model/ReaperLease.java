@@ -0,0 +1,93 @@
+/**
+ * 
+ */
+package org.brekka.pegasus.core.model;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.brekka.pegasus.core.PegasusConstants;
+import org.hibernate.annotations.AccessType;
+
+/**
+ * Ownership of one slot of the work of the reaper. Allocations and allocation files are divided between the slots by
+ * id, and only the node holding the lease on a slot clears them.
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Entity
+@Table(name="`ReaperLease`", schema=PegasusConstants.SCHEMA)
+public class ReaperLease implements Serializable {
+
+    /**
+     * Serial UID
+     */
+    private static final long serialVersionUID = 2709127423850329171L;
+
+    /**
+     * The number of slots the work is divided into, which limits how many nodes can share it. Must be the same on
+     * every node, and no more than 256.
+     */
+    public static final int SLOT_COUNT = 64;
+
+    @Id
+    @AccessType("property")
+    @Column(name="`Slot`")
+    private int slot;
+
+    /**
+     * The node holding the lease, null if released.
+     */
+    @Column(name="`Owner`", length=64)
+    private String owner;
+
+    /**
+     * When the lease lapses unless renewed, by the database clock.
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="`Expires`")
+    private Date expires;
+
+    /**
+     * Determine the slot of the entity with the specified id. Uses the last byte of the id (random for version 4 ids),
+     * matching <code>get_byte(uuid_send(id), 15) % SLOT_COUNT</code> in the database.
+     * 
+     * @param id
+     * @return the slot
+     */
+    public static int slotOf(final UUID id) {
+        return (int) (id.getLeastSignificantBits() & 0xFF) % SLOT_COUNT;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(final int slot) {
+        this.slot = slot;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(final String owner) {
+        this.owner = owner;
+    }
+
+    public Date getExpires() {
+        return expires;
+    }
+
+    public void setExpires(final Date expires) {
+        this.expires = expires;
+    }
+}
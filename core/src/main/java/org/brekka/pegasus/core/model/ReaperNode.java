@@ -0,0 +1,61 @@
+/**
+ * 
+ */
+package org.brekka.pegasus.core.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.brekka.pegasus.core.PegasusConstants;
+import org.hibernate.annotations.AccessType;
+
+/**
+ * A node taking part in reaping. Each node keeps its entry alive while running, so the others know how many to share
+ * the {@link ReaperLease}s with.
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Entity
+@Table(name="`ReaperNode`", schema=PegasusConstants.SCHEMA)
+public class ReaperNode implements Serializable {
+
+    /**
+     * Serial UID
+     */
+    private static final long serialVersionUID = -6313797315870393372L;
+
+    @Id
+    @AccessType("property")
+    @Column(name="`NodeID`", length=64)
+    private String nodeId;
+
+    /**
+     * When the node is considered gone unless it checks in again, by the database clock.
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="`Expires`", nullable=false)
+    private Date expires;
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(final String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public Date getExpires() {
+        return expires;
+    }
+
+    public void setExpires(final Date expires) {
+        this.expires = expires;
+    }
+}
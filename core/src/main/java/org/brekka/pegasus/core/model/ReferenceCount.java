@@ -0,0 +1,61 @@
+/**
+ * 
+ */
+package org.brekka.pegasus.core.model;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.brekka.pegasus.core.PegasusConstants;
+import org.hibernate.annotations.AccessType;
+import org.hibernate.annotations.Type;
+
+/**
+ * The number of active (not deleted) {@link AllocationFile}s referencing a crypted file or an allocation, so that
+ * clearing a file can tell whether it was the last without loading the others. Maintained in SQL only, rows are
+ * removed once the count reaches zero.
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Entity
+@Table(name="`ReferenceCount`", schema=PegasusConstants.SCHEMA)
+public class ReferenceCount implements Serializable {
+
+    /**
+     * Serial UID
+     */
+    private static final long serialVersionUID = 8312260907151939216L;
+
+    /**
+     * Id of the crypted file or allocation referenced.
+     */
+    @Id
+    @AccessType("property")
+    @Type(type="pg-uuid")
+    @Column(name="`ID`")
+    private UUID id;
+
+    @Column(name="`Count`", nullable=false)
+    private int count;
+
+    public UUID getId() {
+        return id;
+    }
+
+    public void setId(final UUID id) {
+        this.id = id;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(final int count) {
+        this.count = count;
+    }
+}
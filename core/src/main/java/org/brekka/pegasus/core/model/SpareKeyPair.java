@@ -0,0 +1,96 @@
+/**
+ * 
+ */
+package org.brekka.pegasus.core.model;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.brekka.pegasus.core.PegasusConstants;
+import org.hibernate.annotations.AccessType;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Type;
+
+/**
+ * A Phalanx key pair generated ahead of time, already protected by the key pair (and owned by the principal) that
+ * will protect it once used. Each is used at most once, by being removed from here.
+ * 
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Entity
+@Table(name="`SpareKeyPair`", schema=PegasusConstants.SCHEMA)
+public class SpareKeyPair implements Serializable {
+
+    /**
+     * Serial UID
+     */
+    private static final long serialVersionUID = 4402915834906274710L;
+
+    /**
+     * Id of the key pair in Phalanx.
+     */
+    @Id
+    @AccessType("property")
+    @Type(type="pg-uuid")
+    @Column(name="`KeyPairID`")
+    private UUID keyPairId;
+
+    /**
+     * The key pair protecting the private key of this one.
+     */
+    @Type(type="pg-uuid")
+    @Column(name="`ProtectorKeyPairID`", nullable=false)
+    @Index(name="IDX_SpareKeyPair_Protector")
+    private UUID protectorKeyPairId;
+
+    /**
+     * The principal owning the key pair, only set for key pairs of a vault.
+     */
+    @Type(type="pg-uuid")
+    @Column(name="`OwnerPrincipalID`")
+    private UUID ownerPrincipalId;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="`Created`", nullable=false)
+    private Date created;
+
+    public UUID getKeyPairId() {
+        return keyPairId;
+    }
+
+    public void setKeyPairId(final UUID keyPairId) {
+        this.keyPairId = keyPairId;
+    }
+
+    public UUID getProtectorKeyPairId() {
+        return protectorKeyPairId;
+    }
+
+    public void setProtectorKeyPairId(final UUID protectorKeyPairId) {
+        this.protectorKeyPairId = protectorKeyPairId;
+    }
+
+    public UUID getOwnerPrincipalId() {
+        return ownerPrincipalId;
+    }
+
+    public void setOwnerPrincipalId(final UUID ownerPrincipalId) {
+        this.ownerPrincipalId = ownerPrincipalId;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(final Date created) {
+        this.created = created;
+    }
+}
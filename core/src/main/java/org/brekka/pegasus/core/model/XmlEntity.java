@@ -9,6 +9,8 @@ import java.util.UUID;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
@@ -88,6 +90,21 @@ public class XmlEntity<T extends XmlObject> extends SnapshotEntity<UUID> impleme
     @Column(name="`Profile`", updatable=false)
     private int profile;
 
+    /**
+     * How the document is encoded. Null for entities written before the format was recorded.
+     */
+    @Column(name="`Format`", length=12, updatable=false)
+    @Enumerated(EnumType.STRING)
+    private XmlEntityFormat format;
+
+    /**
+     * Number of deltas between this version and the last full document of the series. When greater than zero the
+     * data holds the line delta from the previous version rather than a complete document. Null for entities written
+     * before deltas were introduced.
+     */
+    @Column(name="`DeltaDepth`", updatable=false)
+    private Integer deltaDepth;
+
     /**
      * The encryption initialization vector used for the profile encryption (if encrypted).
      */
@@ -212,6 +229,40 @@ public class XmlEntity<T extends XmlObject> extends SnapshotEntity<UUID> impleme
         this.profile = profile;
     }
 
+    /**
+     * @return the format, never null.
+     */
+    public XmlEntityFormat getFormat() {
+        if (this.format == null) {
+            return XmlEntityFormat.GZIP_XML;
+        }
+        return this.format;
+    }
+
+    /**
+     * @param format the format to set
+     */
+    public void setFormat(final XmlEntityFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the deltaDepth, zero when the data is a complete document.
+     */
+    public int getDeltaDepth() {
+        if (this.deltaDepth == null) {
+            return 0;
+        }
+        return this.deltaDepth;
+    }
+
+    /**
+     * @param deltaDepth the deltaDepth to set
+     */
+    public void setDeltaDepth(final int deltaDepth) {
+        this.deltaDepth = deltaDepth;
+    }
+
     /* (non-Javadoc)
      * @see org.brekka.phoenix.api.CryptoSpec#getCryptoProfile()
      */
@@ -309,6 +360,8 @@ public class XmlEntity<T extends XmlObject> extends SnapshotEntity<UUID> impleme
         .append("id", this.id)
         .append("profile", this.profile)
         .append("version", this.version)
+        .append("format", this.format)
+        .append("deltaDepth", this.deltaDepth)
         .append("external", this.externalData)
         .append("cryptedDataId", this.cryptedDataId)
         .append("keySafe", (this.keySafe != null ? this.keySafe.getId() : null))
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.model;
+
+/**
+ * How the document of an {@link XmlEntity} is encoded before any encryption.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public enum XmlEntityFormat {
+    /**
+     * Pretty printed XML compressed with GZIP. Used by all entities written before the format was recorded.
+     */
+    GZIP_XML,
+
+    /**
+     * Compact XML compressed with deflate, at the configured level.
+     */
+    DEFLATE_XML,
+
+    /**
+     * Compact XML without compression, for documents too small to benefit from it.
+     */
+    PLAIN_XML
+}
@@ -3,6 +3,7 @@
  */
 package org.brekka.pegasus.core.services;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -24,10 +25,53 @@ public interface AllocationService {
      */
     void incrementDownloadCounter(AllocationFile allocationFile);
 
+    /**
+     * Count a download of the file before it is sent, as long as the file has not already reached its maximum number of
+     * downloads. The counter is checked and incremented in a single statement, so concurrent downloads cannot both take
+     * the last one. The file does not expire until {@link #completeReservedDownload(AllocationFile, boolean)}.
+     *
+     * @return true if the download was counted, false if there are none left.
+     */
+    boolean reserveDownload(AllocationFile allocationFile);
+
+    /**
+     * Finish a download counted by {@link #reserveDownload(AllocationFile)}. When delivered, the file expires if that was
+     * its last permitted download, otherwise the download is given back.
+     */
+    void completeReservedDownload(AllocationFile allocationFile, boolean delivered);
+
     void clearAllocation(Allocation allocation);
 
     void clearAllocationFile(AllocationFile file);
 
+    /**
+     * Clear a batch of the oldest expired allocations in a transaction of its own. Allocations being cleared by other
+     * transactions are skipped.
+     *
+     * @param maxCount the maximum number of allocations to clear.
+     * @param slots only clear allocations in these reaper lease slots.
+     * @return the number cleared, zero once there are none left to claim.
+     */
+    int clearExpiredAllocations(int maxCount, Collection<Integer> slots);
+
+    /**
+     * Clear a batch of the oldest expired allocation files in a transaction of its own. Files being cleared by other
+     * transactions are skipped.
+     *
+     * @param maxCount the maximum number of files to clear.
+     * @param slots only clear files in these reaper lease slots.
+     * @return the number cleared, zero once there are none left to claim.
+     */
+    int clearExpiredAllocationFiles(int maxCount, Collection<Integer> slots);
+
+    /**
+     * Recompute the counts of the active allocation files referencing each crypted file and allocation, correcting any
+     * that have drifted. Changes to the counts wait until it completes.
+     *
+     * @return the number of counts held.
+     */
+    int recountReferences();
+
     /**
      * @param fileId
      * @return
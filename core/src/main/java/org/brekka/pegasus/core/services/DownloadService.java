@@ -4,7 +4,10 @@
 package org.brekka.pegasus.core.services;
 
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
+import org.brekka.pegasus.core.model.Allocation;
 import org.brekka.pegasus.core.model.AllocationFile;
 
 /**
@@ -15,6 +18,33 @@ public interface DownloadService {
 
     InputStream download(AllocationFile file, ProgressCallback progressCallback);
     
+    /**
+     * Write the decrypted content of the file directly to the target channel (typically the socket channel of the
+     * response), avoiding the need for the caller to copy the stream.
+     * 
+     * @return the number of bytes written
+     */
+    long download(AllocationFile file, ProgressCallback progressCallback, WritableByteChannel target);
+    
+    /**
+     * Download part of a file, for resuming an interrupted download or fetching segments in parallel. The parts served
+     * to the same remote user are recorded against one download event, which is counted once they cover the whole
+     * file and none of its ranges are still being served. Only a limited number of ranges not starting at zero are
+     * served at once for each file.
+     * 
+     * @param offset the position of the first byte to return
+     * @param length the maximum number of bytes to return
+     */
+    InputStream download(AllocationFile file, long offset, long length, ProgressCallback progressCallback);
+    
+    /**
+     * Write all available files of the (unlocked) allocation to the output stream as a ZIP archive. Files that have
+     * expired or reached their maximum number of downloads are left out. The stream is not closed.
+     * 
+     * @return the number of files included
+     */
+    int downloadBundle(Allocation allocation, OutputStream out);
+    
     interface ProgressCallback {
         void update(long current, long total);
     }
@@ -3,6 +3,9 @@
  */
 package org.brekka.pegasus.core.services;
 
+import java.util.Collection;
+import java.util.Map;
+
 import org.brekka.pegasus.core.model.DomainName;
 import org.brekka.pegasus.core.model.EMailAddress;
 import org.brekka.pegasus.core.model.Member;
@@ -34,4 +37,22 @@ public interface EMailAddressService {
      * @return
      */
     EMailAddress retrieveByAddress(String recipientEMail);
+
+    /**
+     * Retrieve the addresses that are known to the system from a list, in a single lookup.
+     *
+     * @param addresses
+     * @return the addresses found, keyed by the address as given. Unknown addresses are omitted.
+     */
+    Map<String, EMailAddress> retrieveByAddresses(Collection<String> addresses);
+
+    /**
+     * @return the number of addresses whose hash was found in the digest cache, since the service was last configured.
+     */
+    long getDigestCacheHitCount();
+
+    /**
+     * @return the number of addresses whose hash had to be derived, since the service was last configured.
+     */
+    long getDigestCacheMissCount();
 }
@@ -4,9 +4,12 @@
 package org.brekka.pegasus.core.services;
 
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.brekka.pegasus.core.model.AgreementAcceptedEvent;
 import org.brekka.pegasus.core.model.Allocation;
+import org.brekka.pegasus.core.model.AllocationDownloadEvent;
 import org.brekka.pegasus.core.model.AllocationFile;
 import org.brekka.pegasus.core.model.FileDownloadEvent;
 import org.brekka.pegasus.core.model.Transfer;
@@ -26,6 +29,48 @@ public interface EventService {
     
     void completeEvent(FileDownloadEvent event);
     
+    /**
+     * Prepare a download event for the current user without saving it, so that it can be recorded later via
+     * {@link #recordFileDownloads(List, List, Map)}.
+     */
+    FileDownloadEvent prepareFileDownloadEvent(AllocationFile transferFile);
+    
+    /**
+     * Save a batch of download events and download counter increments in one transaction.
+     * 
+     * @param begun events prepared by {@link #prepareFileDownloadEvent(AllocationFile)} that have yet to be saved.
+     * @param completed events that have been completed since they were saved, must not also appear in begun.
+     * @param downloadCounts the number of completed downloads to add, per allocation file id.
+     */
+    void recordFileDownloads(List<FileDownloadEvent> begun, List<FileDownloadEvent> completed, 
+            Map<UUID, Integer> downloadCounts);
+    
+    /**
+     * Record the start of a range of the file being served to the current user. Ranges served to the same remote user
+     * are recorded against the same event until together they cover the whole file.
+     * 
+     * @return the event to pass to {@link #endRangeDownload(FileDownloadEvent, long, long, long)}.
+     */
+    FileDownloadEvent beginRangeDownload(AllocationFile transferFile);
+    
+    /**
+     * Record that a range begun by {@link #beginRangeDownload(AllocationFile)} has finished.
+     * 
+     * @param offset the position of the first byte of the range
+     * @param served the number of bytes of the range actually sent
+     * @param fileLength the length of the whole file
+     * @return true exactly once for each event, when the ranges served cover the whole file and none are still open.
+     *         The caller should then count the download against the file.
+     */
+    boolean endRangeDownload(FileDownloadEvent event, long offset, long served, long fileLength);
+    
+    /**
+     * Record the start of a download of all files of an allocation in one go.
+     */
+    AllocationDownloadEvent beginAllocationDownloadEvent(Allocation allocation);
+    
+    void completeEvent(AllocationDownloadEvent event, int fileCount);
+    
     void agreementAccepted(Transfer transfer);
 
     /**
@@ -3,6 +3,7 @@
  */
 package org.brekka.pegasus.core.services;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -12,6 +13,7 @@ import org.brekka.pegasus.core.model.FirewallRule;
 import org.brekka.pegasus.core.model.Network;
 import org.brekka.pegasus.core.model.NetworkGroup;
 import org.brekka.pegasus.core.model.NetworkGroupCategory;
+import org.brekka.pegasus.core.model.NetworkImportSummary;
 import org.brekka.xml.pegasus.v2.config.FirewallType;
 
 /**
@@ -32,6 +34,17 @@ public interface FirewallService {
     
     List<Network> createNetworks(List<String> cidrBlocks, NetworkGroup inGroup);
 
+    /**
+     * Add the blocks to the group in bulk. The blocks are merged with those already in the group into the smallest set
+     * of blocks covering the same addresses, so existing networks may be replaced by larger ones. Blocks that cannot be
+     * parsed are skipped and reported in the summary, null entries are ignored.
+     *
+     * @param cidrBlocks
+     * @param inGroup
+     * @return what changed
+     */
+    NetworkImportSummary importNetworks(Collection<String> cidrBlocks, NetworkGroup inGroup);
+
     Firewall createFirewall(UUID owningEntityId, String name, FirewallAction firewallAction);
     
     Firewall retrieveConfiguredFirewall(FirewallType firewallConfig);
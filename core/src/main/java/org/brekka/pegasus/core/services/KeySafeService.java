@@ -9,6 +9,7 @@ import org.brekka.pegasus.core.model.Actor;
 import org.brekka.pegasus.core.model.KeySafe;
 import org.brekka.phalanx.api.model.CryptedData;
 import org.brekka.phalanx.api.model.KeyPair;
+import org.brekka.phalanx.api.model.PrivateKeyToken;
 
 /**
  * @author Andrew Taylor (andrew@brekka.org)
@@ -33,6 +34,15 @@ public interface KeySafeService {
      */
     byte[] release(UUID cryptedDataId, KeySafe<?> keySafe);
 
+    /**
+     * Resolve the private key of the current member that can release keys protected by <code>keySafe</code>.
+     * Allows many keys protected by the same keySafe to be released without walking the key chain each time.
+     * 
+     * @param keySafe
+     * @return
+     */
+    PrivateKeyToken resolvePrivateKey(KeySafe<?> keySafe);
+
     /**
      * @param protectWith
      * @return
@@ -52,4 +62,14 @@ public interface KeySafeService {
      */
     KeySafe<? extends Actor> retrieveById(UUID id);
 
+    /**
+     * @return the number of times the route from a member to a key safe was found in the key chain route cache.
+     */
+    long getKeyChainRouteCacheHitCount();
+
+    /**
+     * @return the number of times the route from a member to a key safe had to be resolved by walking the key chain.
+     */
+    long getKeyChainRouteCacheMissCount();
+
 }
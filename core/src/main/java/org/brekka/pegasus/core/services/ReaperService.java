@@ -19,4 +19,54 @@ public interface ReaperService {
      * Clear the allocation files
      */
     void clearAllocationFiles();
+
+    /**
+     * Load upcoming expiries, and clear anything that expired without being noticed (such as on another node).
+     */
+    void reconcile();
+
+    /**
+     * Recompute the reference counts used to decide when crypted files and allocations can be deleted.
+     */
+    void repairReferenceCounts();
+
+    /**
+     * @return the number of allocations cleared since starting.
+     */
+    long getClearedAllocationCount();
+
+    /**
+     * @return the number of allocation files cleared since starting.
+     */
+    long getClearedAllocationFileCount();
+
+    /**
+     * @return the number of allocations cleared per minute by each thread while it is busy.
+     */
+    double getAllocationThroughputPerMinute();
+
+    /**
+     * @return the number of allocation files cleared per minute by each thread while it is busy.
+     */
+    double getAllocationFileThroughputPerMinute();
+
+    /**
+     * @return the number of expired allocations waiting to be cleared.
+     */
+    long getAllocationBacklog();
+
+    /**
+     * @return the number of expired allocation files waiting to be cleared.
+     */
+    long getAllocationFileBacklog();
+
+    /**
+     * @return how long ago the longest waiting allocation expired, zero if none are waiting.
+     */
+    long getAllocationLagMillis();
+
+    /**
+     * @return how long ago the longest waiting allocation file expired, zero if none are waiting.
+     */
+    long getAllocationFileLagMillis();
 }
@@ -3,6 +3,7 @@
  */
 package org.brekka.pegasus.core.services;
 
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
@@ -67,4 +68,25 @@ public interface XmlEntityService {
      * @param xmlEntityId
      */
     void delete(UUID xmlEntityId);
+    
+    /**
+     * Identify versions that have been superseded by a full version of their series since before
+     * <code>supersededBefore</code>, and that nothing refers to any more. They are no longer needed to reconstruct
+     * later versions.
+     * @param supersededBefore
+     * @param maxResults
+     * @return the ids of the versions, oldest first.
+     */
+    List<UUID> retrieveSupersededVersions(Date supersededBefore, int maxResults);
+
+    /**
+     * @return the number of times a parsed bean was found in the bean cache, since the cache was last configured.
+     */
+    long getBeanCacheHitCount();
+
+    /**
+     * @return the number of times a cacheable bean was not in the bean cache and had to be parsed again, since the
+     * cache was last configured.
+     */
+    long getBeanCacheMissCount();
 }
@@ -20,7 +20,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 
 import org.apache.commons.lang3.StringUtils;
@@ -113,12 +116,13 @@ public abstract class AbstractEMailSendingService implements EMailSendingService
         EMailMessage message = new EMailMessage();
         message.setId(UUID.randomUUID());
         message.setOwner(member);
-        message.setSender(toAddress(sender));
+        Map<String, EMailAddress> addresses = resolveAddresses(sender, recipients);
+        message.setSender(toAddress(sender, addresses));
 
         List<EMailRecipient> eMailRecipientList = new ArrayList<>();
         for (String recipient : recipients) {
             EMailRecipient eMailRecipient = new EMailRecipient();
-            eMailRecipient.setAddress(toAddress(recipient));
+            eMailRecipient.setAddress(toAddress(recipient, addresses));
             eMailRecipient.setMessage(message);
             eMailRecipientList.add(eMailRecipient);
         }
@@ -208,13 +212,33 @@ public abstract class AbstractEMailSendingService implements EMailSendingService
 
 
     /**
-     * @param sender
+     * Look up the sender and all recipients at once.
+     *
+     * @return the known addresses keyed by lower case address.
+     */
+    private Map<String, EMailAddress> resolveAddresses(final String sender, final Collection<String> recipients) {
+        List<String> all = new ArrayList<>(recipients.size() + 1);
+        all.add(sender);
+        all.addAll(recipients);
+        Map<String, EMailAddress> found = this.eMailAddressService.retrieveByAddresses(all);
+        Map<String, EMailAddress> addresses = new HashMap<>();
+        for (Entry<String, EMailAddress> entry : found.entrySet()) {
+            addresses.put(entry.getKey().toLowerCase(), entry.getValue());
+        }
+        return addresses;
+    }
+
+    /**
+     * @param address
+     * @param addresses those already known, which addresses created here are added to.
      * @return
      */
-    private EMailAddress toAddress(final String address) {
-        EMailAddress eMailAddress = this.eMailAddressService.retrieveByAddress(address);
+    private EMailAddress toAddress(final String address, final Map<String, EMailAddress> addresses) {
+        String key = address.toLowerCase();
+        EMailAddress eMailAddress = addresses.get(key);
         if (eMailAddress == null) {
             eMailAddress = this.eMailAddressService.createEMail(address, null, false);
+            addresses.put(key, eMailAddress);
         }
         return eMailAddress;
     }
@@ -16,7 +16,13 @@
 
 package org.brekka.pegasus.core.services.impl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
 import org.brekka.commons.persistence.support.EntityUtils;
@@ -53,58 +59,46 @@ abstract class AbstractKeySafeServiceSupport {
     @Autowired
     protected MemberService memberService;
 
-    protected PrivateKeyToken resolvePrivateKeyFor(final KeySafe<?> keySafe, final AuthenticatedMemberBase<?> currentMember) {
-        KeySafe<?> nKeySafe = EntityUtils.narrow(keySafe, KeySafe.class);
-        PrivateKeyToken privateKeyToken;
+    @Autowired
+    protected KeyChainRouteCache keyChainRouteCache;
 
-        Actor contextMember = currentMember.getMember();
-        Actor keySafeOwner = nKeySafe.getOwner();
-        if (EntityUtils.identityEquals(keySafeOwner, contextMember)) {
-            /*
-             * The user owns this keySafe that means it is their personal chain. Simply walk up the chain to get to the
-             * vault.
-             */
-            privateKeyToken = traverseChain(nKeySafe, currentMember);
-        } else {
-            /*
-             * Not a personal chain. Check to see if there are any connections from this keysafe to the current user or
-             * to organizations they are members of
-             */
-            List<Connection<?, ?, ?>> connectionList = connectionDAO.identifyConnectionsBetween(nKeySafe, contextMember);
-            PrivateKeyToken found = null;
-            for (Connection<?, ?, ?> connection : connectionList) {
-                KeySafe<?> source = connection.getSource();
-                found = resolveAndUnlock(source, connection.getKeyPairId(), currentMember);
-                if (found != null) {
-                    // We have found a private key that we can decrypt the connection with
-                    break;
-                }
-            }
+    @Autowired
+    protected KeyPairPool keyPairPool;
 
-            if (found == null) {
-                // Still not found
-                if (nKeySafe instanceof Division) {
-                    Division<?> division = (Division<?>) nKeySafe;
-                    /*
-                     * Try the division parent
-                     */
-                    KeySafe<?> parent = division.getParent();
-                    if (parent != null) {
-                        found = resolveAndUnlock(parent, division.getKeyPairId(), currentMember);
-                    }
-                } else {
-                    throw new PegasusException(PegasusErrorCode.PG701,
-                            "Unable to handle keySafe type '%s' at this location", nKeySafe.getClass().getName());
-                }
+    protected PrivateKeyToken resolvePrivateKeyFor(final KeySafe<?> keySafe, final AuthenticatedMemberBase<?> currentMember) {
+        KeySafe<?> nKeySafe = EntityUtils.narrow(keySafe, KeySafe.class);
+        KeyChainRoute route = keyChainRouteCache.get(currentMember, nKeySafe.getId());
+        if (route != null
+                && !isAvailable(route, currentMember.getMember())) {
+            route = null;
+        }
+        if (route == null) {
+            long generation = keyChainRouteCache.currentGeneration();
+            RouteResolver resolver = new RouteResolver(currentMember, generation);
+            route = resolver.resolve(nKeySafe);
+            // Keep the routes found along the way too, other key safes are likely to share them
+            for (Entry<UUID, KeyChainRoute> entry : resolver.resolved.entrySet()) {
+                keyChainRouteCache.retain(currentMember, entry.getKey(), entry.getValue(), generation);
             }
+        }
+        return unlock(route, currentMember);
+    }
 
-            if (found == null) {
-                throw new PegasusException(PegasusErrorCode.PG700,
-                        "Unable to locate a chain of keys that will unlock the keySafe '%s'", nKeySafe.getId());
-            }
-            privateKeyToken = found;
+    /**
+     * Connections can be removed, or the member can leave the organization that owns them, on any node. The
+     * generation of {@link KeyChainRouteCache} only moves on for changes made on this one, so the connections of a
+     * cached route are checked again before it is followed.
+     *
+     * @param route
+     * @param contextMember
+     * @return true if every connection along the route can still be used by the member.
+     */
+    private boolean isAvailable(final KeyChainRoute route, final Actor contextMember) {
+        List<UUID> connectionIds = route.getConnectionIds();
+        if (connectionIds.isEmpty()) {
+            return true;
         }
-        return privateKeyToken;
+        return connectionDAO.countConnectionsAvailableTo(connectionIds, contextMember) == connectionIds.size();
     }
 
     protected <Owner extends Actor, Source extends KeySafe<? extends Actor>,
@@ -126,11 +120,11 @@ abstract class AbstractKeySafeServiceSupport {
             Vault vault = (Vault) nKeySafe;
             AuthenticatedPrincipal vaultKey = getVaultKey(vault);
             KeyPair vaultKeyPair = vaultKey.getDefaultPrivateKey().getKeyPair();
-            keyPair = phalanxService.generateKeyPair(vaultKeyPair);
+            keyPair = keyPairPool.generateKeyPair(vaultKeyPair);
         } else if (nKeySafe instanceof Division) {
             Division<?> division = (Division<?>) nKeySafe;
             IdentityKeyPair identityKeyPair = new IdentityKeyPair(division.getKeyPairId());
-            keyPair = phalanxService.generateKeyPair(identityKeyPair);
+            keyPair = keyPairPool.generateKeyPair(identityKeyPair);
         } else {
             throw new IllegalStateException("Unknown keySafe type: " + nKeySafe.getClass().getName());
         }
@@ -170,45 +164,33 @@ abstract class AbstractKeySafeServiceSupport {
     }
 
     /**
-     * Shortcut for personal chains that avoids the connections lookup.
-     * 
-     * @param keySafe
-     * @return
+     * Follow the route from the last key that is already unlocked, decrypting each key pair after it.
+     *
+     * @param route
+     * @param currentMember
+     * @return the private key at the end of the route.
      */
-    private PrivateKeyToken traverseChain(final KeySafe<?> keySafe, final AuthenticatedMemberBase<?> currentMember) {
-        KeySafe<?> nKeySafe = EntityUtils.narrow(keySafe, KeySafe.class);
-        PrivateKeyToken privateKeyToken;
-        if (nKeySafe instanceof Vault) {
-            Vault vault = (Vault) nKeySafe;
-            AuthenticatedPrincipal vaultKey = currentMember.getVaultKey(vault);
+    private PrivateKeyToken unlock(final KeyChainRoute route, final AuthenticatedMemberBase<?> currentMember) {
+        List<UUID> keyPairIds = route.getKeyPairIds();
+        PrivateKeyToken privateKeyToken = null;
+        int next = keyPairIds.size();
+        while (privateKeyToken == null && next > 0) {
+            privateKeyToken = currentMember.getPrivateKey(new IdentityKeyPair(keyPairIds.get(--next)));
+        }
+        if (privateKeyToken == null) {
+            AuthenticatedPrincipal vaultKey = currentMember.getVaultKey(route.getVaultId());
             if (vaultKey == null) {
                 throw new PegasusException(PegasusErrorCode.PG704,
-                        "Vault '%s' is not currently available. Most likely it needs to be unlocked.", vault.getId());
+                        "Vault '%s' is not currently available. Most likely it needs to be unlocked.", route.getVaultId());
             }
             privateKeyToken = vaultKey.getDefaultPrivateKey();
-        } else if (nKeySafe instanceof Division) {
-            Division<?> division = (Division<?>) nKeySafe;
-
-            // Check the parent
-            KeySafe<?> parent = division.getParent();
-            if (parent != null) {
-                KeyPair keyPair = new IdentityKeyPair(division.getKeyPairId());
-                PrivateKeyToken parentPrivateKey = currentMember.getPrivateKey(keyPair);
-                if (parentPrivateKey == null) {
-                    parentPrivateKey = traverseChain(parent, currentMember);
-                    privateKeyToken = phalanxService.decryptKeyPair(keyPair, parentPrivateKey);
-                    currentMember.retainPrivateKey(keyPair, privateKeyToken);
-                } else {
-                    privateKeyToken = parentPrivateKey;
-                }
-            } else {
-                throw new PegasusException(PegasusErrorCode.PG702,
-                        "Reached end of personal chain for actor '%s' without finding a key", currentMember.getMember()
-                        .getId());
-            }
         } else {
-            throw new PegasusException(PegasusErrorCode.PG703, "Unable to handle keySafe type '%s' at this location",
-                    nKeySafe.getClass().getName());
+            next++;
+        }
+        for (int i = next; i < keyPairIds.size(); i++) {
+            KeyPair keyPair = new IdentityKeyPair(keyPairIds.get(i));
+            privateKeyToken = phalanxService.decryptKeyPair(keyPair, privateKeyToken);
+            currentMember.retainPrivateKey(keyPair, privateKeyToken);
         }
         return privateKeyToken;
     }
@@ -230,4 +212,132 @@ abstract class AbstractKeySafeServiceSupport {
         }
         return authenticatedPrincipal;
     }
+
+    /**
+     * Works out the {@link KeyChainRoute} for a key safe from the connections and divisions leading to it, without
+     * touching any keys. Routes the member already has are reused. Connections are fetched for a key safe and all of
+     * its division ancestors at once, as the ancestors are where the search continues when there are none.
+     */
+    private class RouteResolver {
+
+        private final AuthenticatedMemberBase<?> currentMember;
+
+        private final Actor contextMember;
+
+        private final long generation;
+
+        private final Map<UUID, List<Connection<?, ?, ?>>> connections = new HashMap<>();
+
+        private final Map<UUID, KeyChainRoute> resolved = new HashMap<>();
+
+        private final Set<UUID> visiting = new HashSet<>();
+
+        RouteResolver(final AuthenticatedMemberBase<?> currentMember, final long generation) {
+            this.currentMember = currentMember;
+            this.contextMember = currentMember.getMember();
+            this.generation = generation;
+        }
+
+        KeyChainRoute resolve(final KeySafe<?> keySafe) {
+            KeySafe<?> nKeySafe = EntityUtils.narrow(keySafe, KeySafe.class);
+            UUID keySafeId = nKeySafe.getId();
+            KeyChainRoute route = resolved.get(keySafeId);
+            if (route == null) {
+                route = currentMember.getKeyChainRoute(keySafeId, generation);
+                if (route != null
+                        && !isAvailable(route, contextMember)) {
+                    route = null;
+                }
+            }
+            if (route != null) {
+                return route;
+            }
+            if (!visiting.add(keySafeId)) {
+                throw new PegasusException(PegasusErrorCode.PG700,
+                        "Unable to locate a chain of keys that will unlock the keySafe '%s'", keySafeId);
+            }
+            if (EntityUtils.identityEquals(nKeySafe.getOwner(), contextMember)) {
+                /*
+                 * The user owns this keySafe that means it is their personal chain. Simply walk up the chain to get to
+                 * the vault.
+                 */
+                route = resolvePersonal(nKeySafe);
+            } else {
+                route = resolveConnected(nKeySafe);
+            }
+            visiting.remove(keySafeId);
+            resolved.put(keySafeId, route);
+            return route;
+        }
+
+        /**
+         * Shortcut for personal chains that avoids the connections lookup.
+         */
+        private KeyChainRoute resolvePersonal(final KeySafe<?> keySafe) {
+            KeySafe<?> nKeySafe = EntityUtils.narrow(keySafe, KeySafe.class);
+            if (nKeySafe instanceof Vault) {
+                return KeyChainRoute.fromVault(nKeySafe.getId());
+            }
+            if (nKeySafe instanceof Division) {
+                Division<?> division = (Division<?>) nKeySafe;
+                KeySafe<?> parent = division.getParent();
+                if (parent == null) {
+                    throw new PegasusException(PegasusErrorCode.PG702,
+                            "Reached end of personal chain for actor '%s' without finding a key", contextMember.getId());
+                }
+                return resolvePersonal(parent).extend(division.getKeyPairId());
+            }
+            throw new PegasusException(PegasusErrorCode.PG703, "Unable to handle keySafe type '%s' at this location",
+                    nKeySafe.getClass().getName());
+        }
+
+        /**
+         * Not a personal chain. Check to see if there are any connections from this keysafe to the current user or to
+         * organizations they are members of
+         */
+        private KeyChainRoute resolveConnected(final KeySafe<?> keySafe) {
+            List<Connection<?, ?, ?>> connectionList = connectionsTo(keySafe);
+            if (!connectionList.isEmpty()) {
+                Connection<?, ?, ?> connection = connectionList.get(0);
+                return resolve(connection.getSource()).extendThrough(connection.getId(), connection.getKeyPairId());
+            }
+            if (keySafe instanceof Division) {
+                Division<?> division = (Division<?>) keySafe;
+                /*
+                 * Try the division parent
+                 */
+                KeySafe<?> parent = division.getParent();
+                if (parent != null) {
+                    return resolve(parent).extend(division.getKeyPairId());
+                }
+            } else {
+                throw new PegasusException(PegasusErrorCode.PG701,
+                        "Unable to handle keySafe type '%s' at this location", keySafe.getClass().getName());
+            }
+            throw new PegasusException(PegasusErrorCode.PG700,
+                    "Unable to locate a chain of keys that will unlock the keySafe '%s'", keySafe.getId());
+        }
+
+        private List<Connection<?, ?, ?>> connectionsTo(final KeySafe<?> keySafe) {
+            List<Connection<?, ?, ?>> connectionList = connections.get(keySafe.getId());
+            if (connectionList != null) {
+                return connectionList;
+            }
+            List<KeySafe<?>> toFetch = new ArrayList<>();
+            KeySafe<?> current = keySafe;
+            while (current != null
+                    && !connections.containsKey(current.getId())
+                    && !EntityUtils.identityEquals(current.getOwner(), contextMember)) {
+                toFetch.add(current);
+                connections.put(current.getId(), new ArrayList<Connection<?, ?, ?>>());
+                KeySafe<?> nCurrent = EntityUtils.narrow(current, KeySafe.class);
+                current = (nCurrent instanceof Division ? ((Division<?>) nCurrent).getParent() : null);
+            }
+            List<Connection<?, ?, ?>> found = connectionDAO.identifyConnectionsBetween(toFetch, contextMember);
+            for (Connection<?, ?, ?> connection : found) {
+                connections.get(connection.getTarget().getId()).add(connection);
+            }
+            return connections.get(keySafe.getId());
+        }
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the digests derived from e-mail addresses and domain names, as deriving them is deliberately slow. The
+ * least recently used are dropped once full.
+ *
+ * Entries are not keyed by the address itself, but by an HMAC of it under a random key that only lives as long as
+ * this cache. A heap dump therefore holds digests and HMACs, which are no more use for identifying addresses than what
+ * is already in the database.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class AddressDigestCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(AddressDigestCache.this.key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+    };
+
+    private final Cache<ByteBuffer, byte[]> digests;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    AddressDigestCache(final int maxEntries) {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+        this.digests = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .build();
+    }
+
+    /**
+     * @param value the normalised (lower case) address or domain.
+     * @return a copy of the digest, or null if not known.
+     */
+    byte[] get(final String value) {
+        byte[] digest = this.digests.getIfPresent(keyFor(value));
+        if (digest == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        return digest.clone();
+    }
+
+    void put(final String value, final byte[] digest) {
+        this.digests.put(keyFor(value), digest.clone());
+    }
+
+    long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    long getMissCount() {
+        return this.missCount.get();
+    }
+
+    private ByteBuffer keyFor(final String value) {
+        Mac mac = this.macs.get();
+        return ByteBuffer.wrap(mac.doFinal(value.getBytes(Charsets.UTF_8)));
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.brekka.pegasus.core.services.impl;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -26,6 +27,7 @@ import org.brekka.paveway.core.dao.CryptedFileDAO;
 import org.brekka.paveway.core.model.CryptedFile;
 import org.brekka.pegasus.core.dao.AllocationDAO;
 import org.brekka.pegasus.core.dao.AllocationFileDAO;
+import org.brekka.pegasus.core.dao.ReferenceCountDAO;
 import org.brekka.pegasus.core.event.AllocationFileDeleteEvent;
 import org.brekka.pegasus.core.model.AccessorContext;
 import org.brekka.pegasus.core.model.Allocation;
@@ -63,6 +65,9 @@ public class AllocationServiceImpl extends AllocationServiceSupport implements A
     @Autowired
     private AllocationDAO allocationDAO;
 
+    @Autowired
+    private ReferenceCountDAO referenceCountDAO;
+
     @Autowired
     private KeySafeService keySafeService;
 
@@ -92,10 +97,50 @@ public class AllocationServiceImpl extends AllocationServiceSupport implements A
         if (downloadCount == maxDownloads) {
             // Mark this file for deletion
             managed.setExpires(new Date());
+            this.expiryScheduler.allocationFileExpires(managed.getId(), managed.getExpires());
         }
         this.allocationFileDAO.update(managed);
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.AllocationService#reserveDownload(org.brekka.pegasus.core.model.AllocationFile)
+     */
+    @Override
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public boolean reserveDownload(final AllocationFile allocationFile) {
+        FileType xml = allocationFile.getXml();
+        int maxDownloads = Integer.MAX_VALUE;
+        if (xml.isSetMaxDownloads()) {
+            maxDownloads = xml.getMaxDownloads();
+        }
+        return this.allocationFileDAO.reserveDownload(allocationFile.getId(), maxDownloads);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.AllocationService#completeReservedDownload(org.brekka.pegasus.core.model.AllocationFile, boolean)
+     */
+    @Override
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public void completeReservedDownload(final AllocationFile allocationFile, final boolean delivered) {
+        if (!delivered) {
+            this.allocationFileDAO.incrementDownloadCount(allocationFile.getId(), -1);
+            return;
+        }
+        FileType xml = allocationFile.getXml();
+        if (!xml.isSetMaxDownloads()) {
+            return;
+        }
+        AllocationFile managed = this.allocationFileDAO.retrieveById(allocationFile.getId());
+        Date now = new Date();
+        if (managed.getDownloadCount() >= xml.getMaxDownloads()
+                && (managed.getExpires() == null || managed.getExpires().after(now))) {
+            // Mark this file for deletion
+            managed.setExpires(now);
+            this.expiryScheduler.allocationFileExpires(managed.getId(), managed.getExpires());
+            this.allocationFileDAO.update(managed);
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.AllocationService#retrieveFile(java.util.UUID)
      */
@@ -184,6 +229,7 @@ public class AllocationServiceImpl extends AllocationServiceSupport implements A
         managed.setExpires(expiryDate);
 
         this.allocationDAO.update(managed);
+        this.expiryScheduler.allocationExpires(managed.getId(), expiryDate);
     }
 
     /**
@@ -195,6 +241,41 @@ public class AllocationServiceImpl extends AllocationServiceSupport implements A
         clearAllocationFile(file, true);
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.AllocationService#clearExpiredAllocations(int, java.util.Collection)
+     */
+    @Override
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public int clearExpiredAllocations(final int maxCount, final Collection<Integer> slots) {
+        List<Allocation> allocationList = this.allocationDAO.claimOldestExpired(maxCount, slots);
+        for (Allocation allocation : allocationList) {
+            clearAllocation(allocation);
+        }
+        return allocationList.size();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.AllocationService#clearExpiredAllocationFiles(int, java.util.Collection)
+     */
+    @Override
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public int clearExpiredAllocationFiles(final int maxCount, final Collection<Integer> slots) {
+        List<AllocationFile> allocationFileList = this.allocationFileDAO.claimOldestExpired(maxCount, slots);
+        for (AllocationFile allocationFile : allocationFileList) {
+            clearAllocationFile(allocationFile, true);
+        }
+        return allocationFileList.size();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.AllocationService#recountReferences()
+     */
+    @Override
+    @Transactional
+    public int recountReferences() {
+        return this.referenceCountDAO.recount();
+    }
+
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.DispatchService#updateDetails(org.brekka.pegasus.core.model.Dispatch, org.brekka.xml.pegasus.v2.model.DetailsType)
      */
@@ -259,25 +340,32 @@ public class AllocationServiceImpl extends AllocationServiceSupport implements A
      */
     protected void clearAllocationFile(final AllocationFile file, final boolean deleteAllocationIfPossible) {
         AllocationFile allocationFile = this.allocationFileDAO.retrieveById(file.getId());
-        this.applicationEventPublisher.publishEvent(new AllocationFileDeleteEvent(allocationFile));
-
         if (allocationFile.getDeleted() != null) {
             // Already deleted
             return;
         }
+        this.applicationEventPublisher.publishEvent(new AllocationFileDeleteEvent(allocationFile));
         CryptedFile cryptedFile = allocationFile.getCryptedFile();
-        List<AllocationFile> active = this.allocationFileDAO.retrieveActiveForCryptedFile(cryptedFile);
-        boolean canDeleteCryptedFile = active.size() == 1;
+        Integer remaining = this.referenceCountDAO.removeCryptedFileReference(cryptedFile.getId());
+        if (remaining == null) {
+            // Not counted yet, this file is still active
+            remaining = this.allocationFileDAO.countActiveForCryptedFile(cryptedFile) - 1;
+        }
+        boolean canDeleteCryptedFile = remaining == 0;
+
+        // Always count the allocation down, even when it will not be deleted here
+        Allocation allocation = allocationFile.getAllocation();
+        remaining = this.referenceCountDAO.removeAllocationReference(allocation.getId());
+        if (remaining == null) {
+            remaining = this.allocationFileDAO.countActiveForAllocation(allocation) - 1;
+        }
 
         // Check whether we can delete the rest of the allocation also
-        if (deleteAllocationIfPossible) {
-            Allocation allocation = allocationFile.getAllocation();
-            active = this.allocationFileDAO.retrieveActiveForAllocation(allocation);
-            if (active.size() == 1) {
-                // Make the allocation as expired. The reaper will pick it up soon
-                allocation.setExpires(new Date());
-                this.allocationDAO.update(allocation);
-            }
+        if (deleteAllocationIfPossible && remaining == 0) {
+            // Make the allocation as expired. The reaper will pick it up soon
+            allocation.setExpires(new Date());
+            this.allocationDAO.update(allocation);
+            this.expiryScheduler.allocationExpires(allocation.getId(), allocation.getExpires());
         }
         allocationFile.setDeleted(new Date());
         allocationFile.setCryptedFile(null);
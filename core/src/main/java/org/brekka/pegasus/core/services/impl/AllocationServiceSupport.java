@@ -21,7 +21,9 @@ import static org.brekka.pegasus.core.utils.PegasusUtils.checkNotNull;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.brekka.commons.persistence.support.EntityUtils;
@@ -36,6 +38,7 @@ import org.brekka.pegasus.core.PegasusErrorCode;
 import org.brekka.pegasus.core.PegasusException;
 import org.brekka.pegasus.core.dao.AllocationDAO;
 import org.brekka.pegasus.core.dao.AllocationFileDAO;
+import org.brekka.pegasus.core.dao.ReferenceCountDAO;
 import org.brekka.pegasus.core.event.AllocationFileCreateEvent;
 import org.brekka.pegasus.core.model.AccessorContext;
 import org.brekka.pegasus.core.model.Allocation;
@@ -105,9 +108,15 @@ class AllocationServiceSupport {
     @Autowired
     private CryptedFileDAO cryptedFileDAO;
 
+    @Autowired
+    private ReferenceCountDAO referenceCountDAO;
+
     @Autowired
     protected XmlEntityService xmlEntityService;
 
+    @Autowired
+    protected ExpiryScheduler expiryScheduler;
+
     @Autowired
     private ApplicationEventPublisher applicationEventPublisher;
 
@@ -294,6 +303,28 @@ class AllocationServiceSupport {
             }
         }
         allocation.setFiles(allocationFiles);
+        countReferences(allocation, allocationFiles);
+    }
+
+    /**
+     * Count the new allocation files against their crypted files and the allocation. The allocation must already have
+     * been created.
+     */
+    private void countReferences(final Allocation allocation, final List<AllocationFile> allocationFiles) {
+        if (allocationFiles.isEmpty()) {
+            return;
+        }
+        // The same crypted file may appear more than once
+        Map<UUID, Integer> added = new LinkedHashMap<>();
+        for (AllocationFile allocationFile : allocationFiles) {
+            UUID cryptedFileId = allocationFile.getCryptedFile().getId();
+            Integer count = added.get(cryptedFileId);
+            added.put(cryptedFileId, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<UUID, Integer> entry : added.entrySet()) {
+            this.referenceCountDAO.addCryptedFileReferences(entry.getKey(), entry.getValue());
+        }
+        this.referenceCountDAO.addAllocationReferences(allocation.getId(), allocationFiles.size());
     }
 
 
@@ -178,6 +178,7 @@ public class AnonymousTransferServiceImpl extends AllocationServiceSupport imple
         AnonymousTransfer transfer = retrieveByToken(token, AnonymousTransfer.class, true);
         transfer.setExpires(new Date());
         this.anonymousTransferDAO.update(transfer);
+        this.expiryScheduler.allocationExpires(transfer.getId(), transfer.getExpires());
     }
 
 
@@ -234,6 +235,7 @@ public class AnonymousTransferServiceImpl extends AllocationServiceSupport imple
 
         this.anonymousTransferDAO.create(anonTransfer);
         createAllocationFiles(anonTransfer);
+        this.expiryScheduler.allocationExpires(anonTransfer.getId(), anonTransfer.getExpires());
 
         this.eventService.transferCreated(anonTransfer);
         return anonTransfer;
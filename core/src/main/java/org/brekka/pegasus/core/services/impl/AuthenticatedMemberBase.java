@@ -17,9 +17,12 @@
 package org.brekka.pegasus.core.services.impl;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 import org.brekka.pegasus.core.PegasusErrorCode;
 import org.brekka.pegasus.core.PegasusException;
@@ -31,7 +34,9 @@ import org.brekka.pegasus.core.model.Profile;
 import org.brekka.pegasus.core.model.Vault;
 import org.brekka.pegasus.core.model.XmlEntity;
 import org.brekka.pegasus.core.services.MemberService;
+import org.brekka.pegasus.core.utils.DataKeyCache;
 import org.brekka.pegasus.core.utils.EntityUnlockKeyCache;
+import org.brekka.pegasus.core.utils.EntityUnlockKeyCache.EvictionListener;
 import org.brekka.phalanx.api.model.AuthenticatedPrincipal;
 import org.brekka.phalanx.api.model.KeyPair;
 import org.brekka.phalanx.api.model.PrivateKeyToken;
@@ -84,6 +89,24 @@ public abstract class AuthenticatedMemberBase<T extends Member> implements Authe
      */
     private final EntityUnlockKeyCache<PrivateKeyToken> privateKeyCache = new EntityUnlockKeyCache<>();
 
+    /**
+     * Symmetric keys released from Phalanx crypted data, to avoid repeating the asymmetric decryption.
+     */
+    private final DataKeyCache dataKeyCache = new DataKeyCache();
+
+    /**
+     * The policy the key caches were last configured with.
+     */
+    private transient volatile UnlockKeyPolicy unlockKeyPolicy;
+
+    /**
+     * Routes from key safes back to a vault, only valid for the generation they were resolved in. See
+     * {@link KeyChainRouteCache}.
+     */
+    private transient Map<UUID, KeyChainRoute> keyChainRoutes;
+
+    private transient long keyChainRouteGeneration;
+
     /**
      * Essentially a cache of expensive to generate values (non-serializable).
      */
@@ -171,7 +194,11 @@ public abstract class AuthenticatedMemberBase<T extends Member> implements Authe
      * @see org.brekka.pegasus.core.model.AuthenticatedMember#getVault(java.util.UUID)
      */
     AuthenticatedPrincipal getVaultKey(final Vault vault) {
-        return this.vaultKeyCache.get(vault.getId());
+        return getVaultKey(vault.getId());
+    }
+
+    AuthenticatedPrincipal getVaultKey(final UUID vaultId) {
+        return this.vaultKeyCache.get(vaultId);
     }
 
     /**
@@ -194,6 +221,60 @@ public abstract class AuthenticatedMemberBase<T extends Member> implements Authe
         this.privateKeyCache.put(keyPair.getId(), privateKeyToken);
     }
 
+    /**
+     * Only to be consulted once the route to the key safe has been resolved in the current generation, via
+     * {@link KeyChainRouteCache}, as moving to a new generation is what clears out keys released through removed
+     * connections.
+     */
+    byte[] getDataKey(final UUID keySafeId, final UUID cryptedDataId) {
+        return this.dataKeyCache.get(keySafeId, cryptedDataId);
+    }
+
+    synchronized void retainDataKey(final UUID keySafeId, final UUID cryptedDataId, final byte[] key,
+            final long generation) {
+        if (generation < this.keyChainRouteGeneration) {
+            // Released before connections were removed
+            return;
+        }
+        this.dataKeyCache.put(keySafeId, cryptedDataId, key);
+    }
+
+    synchronized KeyChainRoute getKeyChainRoute(final UUID keySafeId, final long generation) {
+        if (generation > this.keyChainRouteGeneration) {
+            moveToGeneration(generation);
+        }
+        if (this.keyChainRoutes == null
+                || this.keyChainRouteGeneration != generation) {
+            return null;
+        }
+        return this.keyChainRoutes.get(keySafeId);
+    }
+
+    synchronized void retainKeyChainRoute(final UUID keySafeId, final KeyChainRoute route, final long generation) {
+        if (generation < this.keyChainRouteGeneration) {
+            // Resolved before connections were removed
+            return;
+        }
+        if (generation > this.keyChainRouteGeneration) {
+            moveToGeneration(generation);
+        }
+        if (this.keyChainRoutes == null) {
+            this.keyChainRoutes = new HashMap<>();
+        }
+        this.keyChainRoutes.put(keySafeId, route);
+    }
+
+    /**
+     * Connections have been removed since the routes were resolved, so drop them along with any data keys that may
+     * have been released by following them, and anything opened with those keys.
+     */
+    private void moveToGeneration(final long generation) {
+        this.keyChainRoutes = null;
+        this.keyChainRouteGeneration = generation;
+        this.context.remove(XmlEntityBeanCache.CONTEXT_KEY);
+        this.dataKeyCache.clear();
+    }
+
     /**
      * @param activeActor the activeActor to set
      */
@@ -201,14 +282,47 @@ public abstract class AuthenticatedMemberBase<T extends Member> implements Authe
         this.activeActor = activeActor;
     }
 
+    /**
+     * Bring the limits of the vault and private key caches in line with the policy, if not already.
+     *
+     * @param policy
+     */
+    void applyUnlockKeyPolicy(final UnlockKeyPolicy policy) {
+        if (this.unlockKeyPolicy == policy) {
+            return;
+        }
+        final EvictionListener<AuthenticatedPrincipal> vaultKeyEvictionListener = policy.getVaultKeyEvictionListener();
+        this.vaultKeyCache.configure(policy.getMaxEntries(), policy.getIdleTimeoutMillis(),
+                new EvictionListener<AuthenticatedPrincipal>() {
+                    @Override
+                    public void evicted(final UUID vaultId, final AuthenticatedPrincipal authenticatedPrincipal) {
+                        // Same as closing the vault
+                        AuthenticatedMemberBase.this.context.remove(XmlEntityBeanCache.CONTEXT_KEY);
+                        AuthenticatedMemberBase.this.dataKeyCache.clear();
+                        if (vaultKeyEvictionListener != null) {
+                            vaultKeyEvictionListener.evicted(vaultId, authenticatedPrincipal);
+                        }
+                    }
+                });
+        // Private key tokens only reference keys held by Phalanx, dropping the reference is all there is to do
+        this.privateKeyCache.configure(policy.getMaxEntries(), policy.getIdleTimeoutMillis(), null);
+        this.unlockKeyPolicy = policy;
+    }
+
     /**
      * @return
      */
     synchronized List<AuthenticatedPrincipal> clearVaults() {
+        // Anything opened with the vault keys should no longer be readable
+        this.context.remove(XmlEntityBeanCache.CONTEXT_KEY);
+        this.dataKeyCache.clear();
         return this.vaultKeyCache.clear();
     }
 
     synchronized void clearVault(final Vault vault) {
+        this.context.remove(XmlEntityBeanCache.CONTEXT_KEY);
+        // Can't tell which keys came through this vault
+        this.dataKeyCache.clear();
         this.vaultKeyCache.remove(vault.getId());
     }
 
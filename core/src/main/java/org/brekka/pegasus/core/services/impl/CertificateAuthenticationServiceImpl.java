@@ -16,11 +16,16 @@
 
 package org.brekka.pegasus.core.services.impl;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +49,11 @@ import org.springframework.security.authentication.DisabledException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * Implementation of the digital certificate service.
@@ -73,6 +83,17 @@ public class CertificateAuthenticationServiceImpl implements CertificateAuthenti
      * The list of certificate subject DN patterns to allow access.
      */
     private List<Pattern> allowedSubjectDistinguishedNamePatterns;
+
+    /**
+     * Ids of the certificates found by previous authentications, by certificate signature, so that clients that
+     * reconnect often skip the key derivation and the subject lookup. The certificate itself is still loaded each time,
+     * so disabling it on any node takes effect straight away. Replaced whenever the configuration changes.
+     */
+    private volatile Cache<ByteBuffer, CachedCertificate> certificateCache = newCertificateCache();
+
+    private final AtomicLong cacheHitCount = new AtomicLong();
+
+    private final AtomicLong cacheMissCount = new AtomicLong();
     
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.CertificateAuthenticationService#authenticate(java.security.cert.X509Certificate)
@@ -82,6 +103,26 @@ public class CertificateAuthenticationServiceImpl implements CertificateAuthenti
     public DigitalCertificate authenticate(X509Certificate certificate) throws BadCredentialsException, DisabledException {
         byte[] signature = certificate.getSignature();
         String subjectDN = certificate.getSubjectDN().getName();
+        Cache<ByteBuffer, CachedCertificate> cache = this.certificateCache;
+        ByteBuffer cacheKey = ByteBuffer.wrap(signature);
+        CachedCertificate cached = cache.getIfPresent(cacheKey);
+        if (cached != null
+                && cached.subjectDN.equals(subjectDN)) {
+            DigitalCertificate digitalCertificate = digitalCertificateDAO.retrieveById(cached.digitalCertificateId);
+            if (digitalCertificate != null
+                    && Arrays.equals(cached.distinguishedNameDigest,
+                            digitalCertificate.getCertificateSubject().getDistinguishedNameDigest())) {
+                cacheHitCount.incrementAndGet();
+                check(digitalCertificate);
+                CertificateSubject certificateSubject = digitalCertificate.getCertificateSubject();
+                certificateSubject.setCommonName(cached.commonName);
+                certificateSubject.setDistinguishedName(subjectDN);
+                return digitalCertificate;
+            }
+            // Deleted or moved to another subject since
+            cache.invalidate(cacheKey);
+        }
+        cacheMissCount.incrementAndGet();
         String commonName = null;
         
         Matcher matcher = matchAllowedSubjectDN(subjectDN, allowedSubjectDistinguishedNamePatterns);
@@ -114,7 +155,21 @@ public class CertificateAuthenticationServiceImpl implements CertificateAuthenti
             digitalCertificateDAO.create(digitalCertificate);
         }
         
-        // Perform some checks
+        check(digitalCertificate);
+        
+        // Both of these are transient
+        certificateSubject.setCommonName(commonName);
+        certificateSubject.setDistinguishedName(subjectDN);
+        cacheOnCommit(cache, cacheKey, new CachedCertificate(digitalCertificate, subjectDN, commonName));
+        return digitalCertificate;
+    }
+    
+    /**
+     * Perform some checks
+     * 
+     * @param digitalCertificate
+     */
+    protected void check(DigitalCertificate digitalCertificate) {
         if (BooleanUtils.isNotTrue(digitalCertificate.getActive())) {
             throw new DisabledException(String.format(
                     "The certficate with id '%s' has been disabled", digitalCertificate.getId()));
@@ -123,11 +178,6 @@ public class CertificateAuthenticationServiceImpl implements CertificateAuthenti
             throw new CredentialsExpiredException(String.format(
                     "The certficate with id '%s' expired %tF", digitalCertificate.getId(), digitalCertificate.getExpires()));
         }
-        
-        // Both of these are transient
-        certificateSubject.setCommonName(commonName);
-        certificateSubject.setDistinguishedName(subjectDN);
-        return digitalCertificate;
     }
     
     /* (non-Javadoc)
@@ -149,6 +199,20 @@ public class CertificateAuthenticationServiceImpl implements CertificateAuthenti
         managed.setActive(Boolean.valueOf(enabled));
         digitalCertificateDAO.update(managed);
     }
+
+    /**
+     * @return the number of authentications answered from the cache.
+     */
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    /**
+     * @return the number of authentications that had to derive the digest and lookup the certificate.
+     */
+    public long getCacheMissCount() {
+        return cacheMissCount.get();
+    }
     
     @ConfigurationListener
     public void configure(@Configured
@@ -160,8 +224,31 @@ public class CertificateAuthenticationServiceImpl implements CertificateAuthenti
             allowedSubjectDistinguishedNamePatterns.add(Pattern.compile(patternString));
         }
         this.allowedSubjectDistinguishedNamePatterns = allowedSubjectDistinguishedNamePatterns;
+        // Both the digests and the allowed subjects may have changed
+        this.certificateCache = newCertificateCache();
+    }
+
+    /**
+     * Only cache once committed, so a certificate created by a transaction that is then rolled back is never looked
+     * up from the cache.
+     *
+     * @param cache
+     * @param cacheKey
+     * @param cached
+     */
+    private void cacheOnCommit(final Cache<ByteBuffer, CachedCertificate> cache, final ByteBuffer cacheKey,
+            final CachedCertificate cached) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            cache.put(cacheKey, cached);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                cache.put(cacheKey, cached);
+            }
+        });
     }
-    
 
     /**
      * @param subjectDN
@@ -182,4 +269,37 @@ public class CertificateAuthenticationServiceImpl implements CertificateAuthenti
         }
         return positiveMatcher;
     }
+
+    private static Cache<ByteBuffer, CachedCertificate> newCertificateCache() {
+        return CacheBuilder.newBuilder()
+                .maximumSize(CachedCertificate.MAX_ENTRIES)
+                .expireAfterWrite(CachedCertificate.MAX_AGE_MINUTES, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * What is needed to find the certificate again without deriving the subject digest, but not the entities
+     * themselves.
+     */
+    private static final class CachedCertificate {
+
+        private static final int MAX_ENTRIES = 10000;
+
+        private static final long MAX_AGE_MINUTES = 5;
+
+        private final UUID digitalCertificateId;
+
+        private final byte[] distinguishedNameDigest;
+
+        private final String subjectDN;
+
+        private final String commonName;
+
+        CachedCertificate(final DigitalCertificate digitalCertificate, final String subjectDN, final String commonName) {
+            this.digitalCertificateId = digitalCertificate.getId();
+            this.distinguishedNameDigest = digitalCertificate.getCertificateSubject().getDistinguishedNameDigest();
+            this.subjectDN = subjectDN;
+            this.commonName = commonName;
+        }
+    }
 }
@@ -44,6 +44,9 @@ public class ConnectionServiceImpl implements ConnectionService, ApplicationList
 
     @Autowired
     private ConnectionDAO connectionDAO;
+
+    @Autowired
+    private KeyChainRouteCache keyChainRouteCache;
     
     /* (non-Javadoc)
      * @see org.springframework.context.ApplicationListener#onApplicationEvent(org.springframework.context.ApplicationEvent)
@@ -54,9 +57,11 @@ public class ConnectionServiceImpl implements ConnectionService, ApplicationList
         if (event instanceof VaultDeleteEvent) {
             VaultDeleteEvent vaultDeleteEvent = (VaultDeleteEvent) event;
             connectionDAO.deleteWithSourceKeySafe(vaultDeleteEvent.getVault());
+            keyChainRouteCache.invalidateAll();
         } else if (event instanceof AssociateDeleteEvent) {
             AssociateDeleteEvent associateDeleteEvent = (AssociateDeleteEvent) event;
             connectionDAO.deleteWithOwner(associateDeleteEvent.getAssociate());
+            keyChainRouteCache.invalidateAll();
         }
     }
     
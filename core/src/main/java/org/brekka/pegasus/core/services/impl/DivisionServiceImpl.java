@@ -149,6 +149,7 @@ public class DivisionServiceImpl extends AbstractKeySafeServiceSupport implement
     @Transactional()
     public void removeEnlistment(final Associate associate) {
         connectionDAO.deleteWithOwner(associate);
+        keyChainRouteCache.invalidateAll();
     }
 
     /* (non-Javadoc)
@@ -164,11 +165,11 @@ public class DivisionServiceImpl extends AbstractKeySafeServiceSupport implement
         if (nParent instanceof Division) {
             Division<T> division = Division.class.cast(nParent);
             IdentityKeyPair identityKeyPair = new IdentityKeyPair(division.getKeyPairId());
-            divisionKeyPair = phalanxService.generateKeyPair(identityKeyPair);
+            divisionKeyPair = keyPairPool.generateKeyPair(identityKeyPair);
         } else if (nParent instanceof Vault) {
             Vault vault = Vault.class.cast(nParent);
             KeyPair keyPair = vault.getAuthenticatedPrincipal().getPrincipal().getDefaultKeyPair();
-            divisionKeyPair = phalanxService.generateKeyPair(keyPair);
+            divisionKeyPair = keyPairPool.generateKeyPair(keyPair);
             privateKey = phalanxService.decryptKeyPair(divisionKeyPair, vault.getAuthenticatedPrincipal().getDefaultPrivateKey());
         } else {
             throw new PegasusException(PegasusErrorCode.PG701,
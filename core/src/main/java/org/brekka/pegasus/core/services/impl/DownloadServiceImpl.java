@@ -18,9 +18,38 @@ package org.brekka.pegasus.core.services.impl;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.PreDestroy;
 
 import org.brekka.paveway.core.model.CryptedFile;
 import org.brekka.paveway.core.services.PavewayService;
+import org.brekka.pegasus.core.PegasusErrorCode;
+import org.brekka.pegasus.core.PegasusException;
+import org.brekka.pegasus.core.model.Allocation;
+import org.brekka.pegasus.core.model.AllocationDownloadEvent;
 import org.brekka.pegasus.core.model.AllocationFile;
 import org.brekka.pegasus.core.model.FileDownloadEvent;
 import org.brekka.pegasus.core.services.AllocationService;
@@ -33,7 +62,17 @@ import org.brekka.phoenix.api.services.SymmetricCryptoService;
 import org.brekka.xml.pegasus.v2.model.FileType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Provide the ability to download with events.
@@ -44,6 +83,39 @@ import org.springframework.transaction.annotation.Transactional;
 @Transactional
 public class DownloadServiceImpl implements DownloadService {
 
+    /**
+     * Size of the buffer used to transfer to a channel. Large enough to keep the number of channel writes low.
+     */
+    private static final int TRANSFER_BUFFER_SIZE = (1 << 16);
+
+    /**
+     * Number of ranges of one file that may be decrypted at the same time, other than those starting at zero. Each
+     * has to decrypt everything before it, so parallel segment clients would otherwise cost the square of the size.
+     */
+    private static final int MAX_CONCURRENT_RANGES = 2;
+
+    /**
+     * Number of bundle archives written at the same time. Further bundles wait for a writer to become free.
+     */
+    private static final int MAX_BUNDLE_WRITERS = 16;
+
+    /**
+     * Permits for the ranges being decrypted, per file. Held weakly so that files no longer downloaded drop out.
+     */
+    private final LoadingCache<UUID, Semaphore> rangePermits = CacheBuilder.newBuilder()
+            .weakValues()
+            .build(new CacheLoader<UUID, Semaphore>() {
+                @Override
+                public Semaphore load(UUID allocationFileId) {
+                    return new Semaphore(MAX_CONCURRENT_RANGES);
+                }
+            });
+
+    /**
+     * Compresses and writes bundle archives, while the requesting thread decrypts the next part.
+     */
+    private final ExecutorService bundleWriters = newBundleWriters();
+
     @Autowired
     private PavewayService pavewayService;
     
@@ -59,6 +131,12 @@ public class DownloadServiceImpl implements DownloadService {
     @Autowired
     private AllocationService allocationService;
     
+    @Autowired
+    private FileDownloadRecorder fileDownloadRecorder;
+    
+    @Autowired
+    private PlatformTransactionManager pegasusTransactionManager;
+    
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.DownloadService#download(
      *      org.brekka.xml.pegasus.v1.model.FileType, java.lang.String, 
@@ -68,20 +146,196 @@ public class DownloadServiceImpl implements DownloadService {
     @Transactional()
     public InputStream download(AllocationFile file, ProgressCallback progressCallback) {
         FileType fileType = file.getXml();
-        FileDownloadEvent event = eventService.beginFileDownloadEvent(file);
+        FileDownloadRecorder.Download download = fileDownloadRecorder.begin(file);
         CryptedFile cryptedFile = pavewayService.retrieveCryptedFileById(file.getCryptedFile().getId());
         CryptoProfile cryptoProfile = cryptoProfileService.retrieveProfile(cryptedFile.getProfile());
         SecretKey secretKey = symmetricCryptoService.toSecretKey(fileType.getKey(), cryptoProfile);
         cryptedFile.setSecretKey(secretKey);
         InputStream is = pavewayService.download(cryptedFile);
-        return new EventInputStream(is, file, event, cryptedFile.getOriginalLength(), progressCallback);
+        return new EventInputStream(is, file, download, cryptedFile.getOriginalLength(), progressCallback);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.DownloadService#download(org.brekka.pegasus.core.model.AllocationFile, 
+     *      long, long, org.brekka.pegasus.core.services.DownloadService.ProgressCallback)
+     */
+    @Override
+    @Transactional()
+    public InputStream download(AllocationFile file, long offset, long length, ProgressCallback progressCallback) {
+        FileType fileType = file.getXml();
+        CryptedFile cryptedFile = pavewayService.retrieveCryptedFileById(file.getCryptedFile().getId());
+        long originalLength = cryptedFile.getOriginalLength();
+        if (offset < 0 || length < 0 || offset > originalLength) {
+            throw new PegasusException(PegasusErrorCode.PG107, 
+                    "Range %d+%d is outside of allocation file '%s' (%d bytes)", offset, length, file.getId(), originalLength);
+        }
+        long rangeLength = Math.min(length, originalLength - offset);
+        
+        Semaphore permits = null;
+        if (offset > 0) {
+            permits = rangePermits.getUnchecked(file.getId());
+            if (!permits.tryAcquire()) {
+                throw new PegasusException(PegasusErrorCode.PG108, 
+                        "Already decrypting %d ranges of allocation file '%s'", MAX_CONCURRENT_RANGES, file.getId());
+            }
+        }
+        try {
+            CryptoProfile cryptoProfile = cryptoProfileService.retrieveProfile(cryptedFile.getProfile());
+            SecretKey secretKey = symmetricCryptoService.toSecretKey(fileType.getKey(), cryptoProfile);
+            cryptedFile.setSecretKey(secretKey);
+            InputStream is = pavewayService.download(cryptedFile);
+            FileDownloadEvent event = eventService.beginRangeDownload(file);
+            return new RangeInputStream(is, file, event, permits, offset, rangeLength, originalLength, 
+                    progressCallback);
+        } catch (RuntimeException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.DownloadService#downloadBundle(org.brekka.pegasus.core.model.Allocation, java.io.OutputStream)
+     */
+    @Override
+    @Transactional()
+    public int downloadBundle(Allocation allocation, OutputStream out) {
+        Map<String, FileType> fileTypes = new HashMap<>();
+        for (FileType fileType : allocation.bundle().getFileList()) {
+            fileTypes.put(fileType.getUUID(), fileType);
+        }
+        AllocationDownloadEvent event = eventService.beginAllocationDownloadEvent(allocation);
+        Date now = new Date();
+        List<AllocationFile> files = new ArrayList<>();
+        for (AllocationFile file : allocation.getFiles()) {
+            if (file.getDeleted() != null) {
+                // Reaped files no longer have a crypted file
+                continue;
+            }
+            FileType fileType = fileTypes.get(file.getCryptedFile().getId().toString());
+            if (fileType == null
+                    || (file.getExpires() != null && file.getExpires().before(now))) {
+                continue;
+            }
+            file.setXml(fileType);
+            // Take the download now, so that another bundle or download cannot also take the last one
+            if (allocationService.reserveDownload(file)) {
+                files.add(file);
+            }
+        }
+        
+        ZipPipeline pipeline = new ZipPipeline(out);
+        Future<?> writer = bundleWriters.submit(pipeline);
+        Set<String> entryNames = new HashSet<>();
+        boolean written = false;
+        try {
+            for (AllocationFile file : files) {
+                FileType fileType = file.getXml();
+                CryptedFile cryptedFile = pavewayService.retrieveCryptedFileById(file.getCryptedFile().getId());
+                CryptoProfile cryptoProfile = cryptoProfileService.retrieveProfile(cryptedFile.getProfile());
+                SecretKey secretKey = symmetricCryptoService.toSecretKey(fileType.getKey(), cryptoProfile);
+                cryptedFile.setSecretKey(secretKey);
+                pipeline.beginEntry(entryName(fileType.getName(), entryNames));
+                try (InputStream is = pavewayService.download(cryptedFile)) {
+                    pipeline.copy(is);
+                }
+            }
+            pipeline.finish();
+            writer.get();
+            pipeline.checkFailure();
+            written = true;
+        } catch (IOException | ExecutionException e) {
+            throw new PegasusException(PegasusErrorCode.PG101, e, 
+                    "Failed to write the files of allocation '%s'", allocation.getId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PegasusException(PegasusErrorCode.PG101, e, 
+                    "Interrupted writing the files of allocation '%s'", allocation.getId());
+        } finally {
+            if (!written) {
+                // Otherwise the writer would wait forever for the next chunk
+                writer.cancel(true);
+            }
+            // Only expire files once the whole archive has been written, give the downloads back otherwise
+            for (AllocationFile file : files) {
+                allocationService.completeReservedDownload(file, written);
+            }
+        }
+        eventService.completeEvent(event, files.size());
+        return files.size();
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        bundleWriters.shutdownNow();
+    }
+    
+    /**
+     * Entry names must be unique within the archive, number any duplicates.
+     */
+    protected static String entryName(String name, Set<String> used) {
+        String candidate = name;
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0 ? name.substring(0, dot) : name);
+        String extension = (dot > 0 ? name.substring(dot) : "");
+        for (int i = 2; !used.add(candidate); i++) {
+            candidate = String.format("%s (%d)%s", base, i, extension);
+        }
+        return candidate;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.DownloadService#download(org.brekka.pegasus.core.model.AllocationFile, 
+     *      org.brekka.pegasus.core.services.DownloadService.ProgressCallback, java.nio.channels.WritableByteChannel)
+     */
+    @Override
+    @Transactional(propagation=Propagation.NOT_SUPPORTED)
+    public long download(final AllocationFile file, final ProgressCallback progressCallback, 
+            final WritableByteChannel target) {
+        // Only opening the stream needs a transaction, the transfer can take a long time and must not hold a connection.
+        InputStream opened = new TransactionTemplate(pegasusTransactionManager).execute(
+                new TransactionCallback<InputStream>() {
+            @Override
+            public InputStream doInTransaction(TransactionStatus status) {
+                return download(file, progressCallback);
+            }
+        });
+        byte[] transfer = new byte[TRANSFER_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(transfer);
+        long total = 0;
+        try (InputStream is = opened) {
+            int read;
+            while ((read = is.read(transfer)) != -1) {
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                total += read;
+            }
+        } catch (IOException e) {
+            throw new PegasusException(PegasusErrorCode.PG101, e, 
+                    "Failed to transfer the content of allocation file '%s'", file.getId());
+        }
+        return total;
+    }
+    
+    private static ExecutorService newBundleWriters() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_BUNDLE_WRITERS, MAX_BUNDLE_WRITERS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                    .setNameFormat("pegasus-bundle-writer-%d")
+                    .setDaemon(true)
+                    .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
     
     private class EventInputStream extends FilterInputStream {
 
         private final AllocationFile allocationFile;
         
-        private final FileDownloadEvent event;
+        private final FileDownloadRecorder.Download download;
         
         private final long expectedLength;
         
@@ -90,11 +344,11 @@ public class DownloadServiceImpl implements DownloadService {
         private long length;
         
         
-        public EventInputStream(InputStream in, AllocationFile allocationFile, FileDownloadEvent event, 
+        public EventInputStream(InputStream in, AllocationFile allocationFile, FileDownloadRecorder.Download download, 
                 long expectedLength, ProgressCallback progressCallback) {
             super(in);
             this.allocationFile = allocationFile;
-            this.event = event;
+            this.download = download;
             this.expectedLength = expectedLength;
             this.progressCallback = progressCallback;
         }
@@ -121,8 +375,7 @@ public class DownloadServiceImpl implements DownloadService {
         public void close() throws IOException {
             super.close();
             if (expectedLength == length) {
-                eventService.completeEvent(event);
-                allocationService.incrementDownloadCounter(allocationFile);
+                fileDownloadRecorder.complete(download, allocationFile);
                 if (progressCallback != null) {
                     progressCallback.update(length, expectedLength);
                 }
@@ -130,4 +383,263 @@ public class DownloadServiceImpl implements DownloadService {
         }
     }
     
+    /**
+     * Skips to the start of the range, then returns up to the length of the range. Releases the range permit (if any)
+     * and records the part of the range served when closed.
+     */
+    private class RangeInputStream extends FilterInputStream {
+        
+        private final AllocationFile allocationFile;
+        
+        private final FileDownloadEvent event;
+        
+        private final Semaphore permits;
+        
+        private final long offset;
+        
+        private final long rangeLength;
+        
+        private final long fileLength;
+        
+        private final ProgressCallback progressCallback;
+        
+        private boolean positioned;
+        
+        private boolean closed;
+        
+        private long length;
+        
+        public RangeInputStream(InputStream in, AllocationFile allocationFile, FileDownloadEvent event, 
+                Semaphore permits, long offset, long rangeLength, long fileLength, ProgressCallback progressCallback) {
+            super(in);
+            this.allocationFile = allocationFile;
+            this.event = event;
+            this.permits = permits;
+            this.offset = offset;
+            this.rangeLength = rangeLength;
+            this.fileLength = fileLength;
+            this.progressCallback = progressCallback;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int i = read(b, 0, 1);
+            return (i == -1 ? -1 : b[0] & 0xFF);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            position();
+            long remaining = rangeLength - length;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int i = super.read(b, off, (int) Math.min(len, remaining));
+            if (i != -1) {
+                length += i;
+            }
+            if (progressCallback != null) {
+                progressCallback.update(length, rangeLength);
+            }
+            return i;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#skip(long)
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            position();
+            long skipped = super.skip(Math.min(n, rangeLength - length));
+            length += skipped;
+            return skipped;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#available()
+         */
+        @Override
+        public int available() throws IOException {
+            if (!positioned) {
+                return 0;
+            }
+            return (int) Math.min(super.available(), rangeLength - length);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#markSupported()
+         */
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#close()
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+            // Record whatever part of the range was actually sent, the rest may follow in another
+            if (eventService.endRangeDownload(event, offset, length, fileLength)) {
+                allocationService.incrementDownloadCounter(allocationFile);
+            }
+        }
+        
+        /**
+         * The content is encrypted as a single stream, so everything before the range still has to be decrypted.
+         * It is discarded here rather than sent to the client.
+         */
+        private void position() throws IOException {
+            if (positioned) {
+                return;
+            }
+            positioned = true;
+            long toSkip = offset;
+            byte[] discard = null;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    if (discard == null) {
+                        discard = new byte[TRANSFER_BUFFER_SIZE];
+                    }
+                    int read = in.read(discard, 0, (int) Math.min(discard.length, toSkip));
+                    if (read == -1) {
+                        throw new IOException("Reached the end of the file before the start of the range");
+                    }
+                    skipped = read;
+                }
+                toSkip -= skipped;
+            }
+        }
+    }
+    
+    /**
+     * Hands decrypted content over to a writer thread that builds the ZIP archive. The content is passed through a
+     * small fixed set of buffers, bounding memory use and leaving the decrypting thread at most a few buffers ahead.
+     */
+    private static final class ZipPipeline implements Runnable {
+        
+        private static final int BUFFER_COUNT = 4;
+        
+        private static final Chunk FINISH = new Chunk(null, null, 0);
+        
+        private final ZipOutputStream zip;
+        
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(BUFFER_COUNT * 2);
+        
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        
+        private volatile Throwable failure;
+        
+        ZipPipeline(OutputStream out) {
+            this.zip = new ZipOutputStream(out);
+            this.zip.setLevel(Deflater.BEST_SPEED);
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                free.add(new byte[TRANSFER_BUFFER_SIZE]);
+            }
+        }
+        
+        void beginEntry(String name) throws IOException, InterruptedException {
+            put(new Chunk(name, null, 0));
+        }
+        
+        void copy(InputStream is) throws IOException, InterruptedException {
+            while (true) {
+                byte[] buffer;
+                while ((buffer = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    checkFailure();
+                }
+                int length = 0;
+                int read = 0;
+                while (length < buffer.length 
+                        && (read = is.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                }
+                if (length > 0) {
+                    put(new Chunk(null, buffer, length));
+                } else {
+                    free.add(buffer);
+                }
+                if (read == -1) {
+                    return;
+                }
+            }
+        }
+        
+        void finish() throws IOException, InterruptedException {
+            put(FINISH);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk = filled.take();
+                    if (chunk == FINISH) {
+                        // Leave the underlying stream open
+                        zip.finish();
+                        zip.flush();
+                        return;
+                    }
+                    if (chunk.entryName != null) {
+                        zip.putNextEntry(new ZipEntry(chunk.entryName));
+                    } else {
+                        zip.write(chunk.data, 0, chunk.length);
+                        free.add(chunk.data);
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // Anything else too, otherwise the decrypting thread would wait forever for a free buffer
+                failure = e;
+            }
+        }
+        
+        private void put(Chunk chunk) throws IOException, InterruptedException {
+            while (!filled.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        }
+        
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("Failed to write archive", failure);
+            }
+        }
+    }
+    
+    private static final class Chunk {
+        private final String entryName;
+        private final byte[] data;
+        private final int length;
+        
+        Chunk(String entryName, byte[] data, int length) {
+            this.entryName = entryName;
+            this.data = data;
+            this.length = length;
+        }
+    }
 }
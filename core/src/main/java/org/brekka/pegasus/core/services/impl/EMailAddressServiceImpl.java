@@ -16,8 +16,16 @@
 
 package org.brekka.pegasus.core.services.impl;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.commons.lang3.StringUtils;
 import org.brekka.pegasus.core.dao.DomainNameDAO;
@@ -61,8 +69,19 @@ public class EMailAddressServiceImpl implements EMailAddressService {
      * Will be combined with all e-mail hashes. Ensures that an attacked with access to the database will not be
      * able to identify addresses without access to this salt.
      */
+    private volatile EMailAddressServiceDocument.EMailAddressService config;
+
+    /**
+     * Hashes already derived with the current config.
+     */
+    private volatile AddressDigestCache digestCache = new AddressDigestCache(AddressDigestCache.DEFAULT_MAX_ENTRIES);
+    
     @Configured
-    private EMailAddressServiceDocument.EMailAddressService config;
+    public void configure(@Configured final EMailAddressServiceDocument.EMailAddressService config) {
+        this.config = config;
+        // Hashes derived with a previous salt/profile no longer match
+        this.digestCache = new AddressDigestCache(AddressDigestCache.DEFAULT_MAX_ENTRIES);
+    }
     
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.EMailAddressService#createEMail(java.lang.String)
@@ -108,6 +127,34 @@ public class EMailAddressServiceImpl implements EMailAddressService {
         return eMailAddress;
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.EMailAddressService#retrieveByAddresses(java.util.Collection)
+     */
+    @Override
+    @Transactional(propagation=Propagation.REQUIRED)
+    public Map<String, EMailAddress> retrieveByAddresses(Collection<String> addresses) {
+        Map<String, byte[]> hashes = new LinkedHashMap<>();
+        for (String address : addresses) {
+            if (!hashes.containsKey(address)) {
+                hashes.put(address, hash(address));
+            }
+        }
+        List<EMailAddress> found = eMailAddressDAO.retrieveByHashes(new ArrayList<>(hashes.values()));
+        Map<ByteBuffer, EMailAddress> byHash = new HashMap<>();
+        for (EMailAddress eMailAddress : found) {
+            byHash.put(ByteBuffer.wrap(eMailAddress.getHash()), eMailAddress);
+        }
+        Map<String, EMailAddress> result = new LinkedHashMap<>();
+        for (Entry<String, byte[]> entry : hashes.entrySet()) {
+            EMailAddress eMailAddress = byHash.get(ByteBuffer.wrap(entry.getValue()));
+            if (eMailAddress != null) {
+                eMailAddress.setAddress(entry.getKey());
+                result.put(entry.getKey(), eMailAddress);
+            }
+        }
+        return result;
+    }
+
     /**
      * @param domain
      * @return
@@ -126,6 +173,22 @@ public class EMailAddressServiceImpl implements EMailAddressService {
         return domainName;
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.EMailAddressService#getDigestCacheHitCount()
+     */
+    @Override
+    public long getDigestCacheHitCount() {
+        return this.digestCache.getHitCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.EMailAddressService#getDigestCacheMissCount()
+     */
+    @Override
+    public long getDigestCacheMissCount() {
+        return this.digestCache.getMissCount();
+    }
+
     /**
      * Generate the hash using the perhaps over-the-top-for-this-purpose SCrypt key derivation function.
      * @param value
@@ -133,9 +196,16 @@ public class EMailAddressServiceImpl implements EMailAddressService {
      */
     protected byte[] hash(String value) {
         value = value.toLowerCase();
+        AddressDigestCache cache = this.digestCache;
+        byte[] hash = cache.get(value);
+        if (hash != null) {
+            return hash;
+        }
         SystemDerivedKeySpecType spec = config.getSystemDerivedKeySpec();
         byte[] data = value.getBytes(Charset.forName("UTF-8"));
         DerivedKey derivedKey = derivedKeyCryptoService.apply(data, spec.getSalt(), null, CryptoProfile.Static.of(spec.getCryptoProfile()));
-        return derivedKey.getDerivedKey();
+        hash = derivedKey.getDerivedKey();
+        cache.put(value, hash);
+        return hash;
     }
 }
@@ -16,15 +16,24 @@
 
 package org.brekka.pegasus.core.services.impl;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.brekka.pegasus.core.dao.AgreementAcceptedEventDAO;
+import org.brekka.pegasus.core.dao.AllocationDownloadEventDAO;
+import org.brekka.pegasus.core.dao.AllocationFileDAO;
 import org.brekka.pegasus.core.dao.BundleCreatedEventDAO;
 import org.brekka.pegasus.core.dao.BundleUnlockEventDAO;
 import org.brekka.pegasus.core.dao.FileDownloadEventDAO;
 import org.brekka.pegasus.core.model.AgreementAcceptedEvent;
 import org.brekka.pegasus.core.model.Allocation;
+import org.brekka.pegasus.core.model.AllocationDownloadEvent;
 import org.brekka.pegasus.core.model.AllocationFile;
 import org.brekka.pegasus.core.model.AuthenticatedMember;
 import org.brekka.pegasus.core.model.FileDownloadEvent;
@@ -57,6 +66,13 @@ import org.springframework.transaction.annotation.Transactional;
 @Transactional
 public class EventServiceImpl implements EventService {
 
+    private static final Log log = LogFactory.getLog(EventServiceImpl.class);
+
+    /**
+     * Longest list of served ranges that will be recorded for a download.
+     */
+    private static final int MAX_SERVED_RANGES_LENGTH = 4000;
+
     @Autowired
     private FileDownloadEventDAO fileDownloadEventDAO;
 
@@ -69,6 +85,12 @@ public class EventServiceImpl implements EventService {
     @Autowired
     private AgreementAcceptedEventDAO agreementAcceptedEventDAO;
 
+    @Autowired
+    private AllocationDownloadEventDAO allocationDownloadEventDAO;
+
+    @Autowired
+    private AllocationFileDAO allocationFileDAO;
+
     @Autowired
     private MemberService memberService;
 
@@ -167,6 +189,171 @@ public class EventServiceImpl implements EventService {
         fileDownloadEventDAO.update(event);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brekka.pegasus.core.services.EventService#prepareFileDownloadEvent(org.brekka.pegasus.core.model.AllocationFile)
+     */
+    @Override
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public FileDownloadEvent prepareFileDownloadEvent(AllocationFile bundleFile) {
+        FileDownloadEvent event = new FileDownloadEvent();
+        event.setTransferFile(bundleFile);
+        populate(event);
+        return event;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brekka.pegasus.core.services.EventService#recordFileDownloads(java.util.List, java.util.List, java.util.Map)
+     */
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void recordFileDownloads(List<FileDownloadEvent> begun, List<FileDownloadEvent> completed,
+            Map<UUID, Integer> downloadCounts) {
+        for (FileDownloadEvent event : begun) {
+            // Will include the completion date if it completed before being saved
+            fileDownloadEventDAO.create(event);
+        }
+        for (FileDownloadEvent event : completed) {
+            if (event.getId() == null) {
+                fileDownloadEventDAO.create(event);
+            } else {
+                fileDownloadEventDAO.update(event);
+            }
+        }
+        for (Entry<UUID, Integer> entry : downloadCounts.entrySet()) {
+            allocationFileDAO.incrementDownloadCount(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brekka.pegasus.core.services.EventService#beginRangeDownload(org.brekka.pegasus.core.model.AllocationFile)
+     */
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public FileDownloadEvent beginRangeDownload(AllocationFile bundleFile) {
+        // Ranges of the same file are recorded one at a time, so that concurrent ones join the same event
+        AllocationFile locked = allocationFileDAO.retrieveByIdForUpdate(bundleFile.getId());
+        FileDownloadEvent event = new FileDownloadEvent();
+        event.setTransferFile(locked);
+        populate(event);
+        FileDownloadEvent open = fileDownloadEventDAO.retrieveOpenRangeDownload(locked, event.getRemoteAddress(),
+                event.getUserAgent(), event.getMember());
+        if (open != null) {
+            open.setOpenRanges(open.getOpenRanges() + 1);
+            fileDownloadEventDAO.update(open);
+            return open;
+        }
+        event.setServedRanges("");
+        event.setOpenRanges(1);
+        fileDownloadEventDAO.create(event);
+        return event;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brekka.pegasus.core.services.EventService#endRangeDownload(org.brekka.pegasus.core.model.FileDownloadEvent, long, long, long)
+     */
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public boolean endRangeDownload(FileDownloadEvent event, long offset, long served, long fileLength) {
+        allocationFileDAO.retrieveByIdForUpdate(event.getTransferFile().getId());
+        FileDownloadEvent managed = fileDownloadEventDAO.retrieveById(event.getId());
+        int openRanges = managed.getOpenRanges() - 1;
+        managed.setOpenRanges(openRanges);
+        String servedRanges = addRange(managed.getServedRanges(), offset, offset + served);
+        if (servedRanges.length() <= MAX_SERVED_RANGES_LENGTH) {
+            managed.setServedRanges(servedRanges);
+        } else if (log.isWarnEnabled()) {
+            log.warn(String.format("Too many separate ranges of allocation file '%s' served for download '%s', "
+                    + "ignoring %d+%d", event.getTransferFile().getId(), managed.getId(), offset, served));
+        }
+        boolean counted = false;
+        if (openRanges == 0 && managed.getCompleted() == null && covers(managed.getServedRanges(), fileLength)) {
+            // The file may expire once counted, so wait for the last range to finish even when already covered
+            managed.setCompleted(new Date());
+            counted = true;
+        }
+        fileDownloadEventDAO.update(managed);
+        return counted;
+    }
+
+    /**
+     * Add the range from start (inclusive) to end (exclusive) to the ranges in the form of
+     * {@link FileDownloadEvent#getServedRanges()}, merging any that overlap or touch.
+     */
+    static String addRange(String ranges, long start, long end) {
+        List<long[]> merged = new ArrayList<>();
+        if (!ranges.isEmpty()) {
+            for (String range : ranges.split(",")) {
+                int dash = range.indexOf('-');
+                long rangeStart = Long.parseLong(range.substring(0, dash));
+                long rangeEnd = Long.parseLong(range.substring(dash + 1));
+                merged.add(new long[] { rangeStart, rangeEnd });
+            }
+        }
+        if (end > start) {
+            int i = 0;
+            while (i < merged.size() && merged.get(i)[1] < start) {
+                i++;
+            }
+            while (i < merged.size() && merged.get(i)[0] <= end) {
+                long[] existing = merged.remove(i);
+                start = Math.min(start, existing[0]);
+                end = Math.max(end, existing[1]);
+            }
+            merged.add(i, new long[] { start, end });
+        }
+        StringBuilder sb = new StringBuilder();
+        for (long[] range : merged) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(range[0]).append('-').append(range[1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Do the ranges in the form of {@link FileDownloadEvent#getServedRanges()} cover everything up to length?
+     */
+    static boolean covers(String ranges, long length) {
+        return length == 0 || ranges.equals("0-" + length);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brekka.pegasus.core.services.EventService#beginAllocationDownloadEvent(org.brekka.pegasus.core.model.Allocation)
+     */
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public AllocationDownloadEvent beginAllocationDownloadEvent(Allocation allocation) {
+        AllocationDownloadEvent event = new AllocationDownloadEvent();
+        event.setAllocation(allocation);
+        populate(event);
+        allocationDownloadEventDAO.create(event);
+        return event;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brekka.pegasus.core.services.EventService#completeEvent(org.brekka.pegasus.core.model.AllocationDownloadEvent, int)
+     */
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void completeEvent(AllocationDownloadEvent event, int fileCount) {
+        event.setCompleted(new Date());
+        event.setFileCount(fileCount);
+        allocationDownloadEventDAO.update(event);
+    }
+
     @Override
     @Transactional()
     public void agreementAccepted(Transfer transfer) {
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.brekka.pegasus.core.dao.AllocationDAO;
+import org.brekka.pegasus.core.dao.AllocationFileDAO;
+import org.brekka.pegasus.core.support.TimingWheel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Tells the reaper when allocations and allocation files expire, so that it does not have to keep polling for them.
+ * Expiry dates are held in a {@link TimingWheel} per type, seeded from the database by the reaper and fed with
+ * changes made by this node once they commit. A thread advances the wheels every tick and notifies the listener of
+ * whatever has come due.
+ *
+ * Does nothing until a listener is registered, so is harmless when the reaper is not running. Expiries beyond the
+ * seeded window, or made by other nodes, are left to the periodic reconciliation of the reaper.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Service
+public class ExpiryScheduler {
+
+    private static final Log log = LogFactory.getLog(ExpiryScheduler.class);
+
+    static final long TICK_MILLIS = 1000;
+
+    /**
+     * Maximum number of expiries of each type loaded by one seeding.
+     */
+    static final int MAX_SEEDED = 100000;
+
+    @Autowired
+    private AllocationDAO allocationDAO;
+
+    @Autowired
+    private AllocationFileDAO allocationFileDAO;
+
+    private final TimingWheel<UUID> allocations = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+
+    private final TimingWheel<UUID> allocationFiles = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+
+    private volatile ExpiryListener listener;
+
+    /**
+     * The end of the window already loaded into the wheels, null until first seeded.
+     */
+    private Date seededUntil;
+
+    private volatile boolean running;
+
+    private Thread ticker;
+
+    /**
+     * Start notifying the listener of expiries.
+     *
+     * @param listener
+     */
+    public synchronized void start(final ExpiryListener listener) {
+        this.listener = listener;
+        if (this.ticker != null) {
+            return;
+        }
+        this.running = true;
+        this.ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tickLoop();
+            }
+        }, "pegasus-expiry-scheduler");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        this.listener = null;
+        this.running = false;
+        if (this.ticker != null) {
+            this.ticker.interrupt();
+            this.ticker = null;
+        }
+    }
+
+    /**
+     * The allocation will expire at the specified time, which may already have passed. Takes effect once the current
+     * transaction commits.
+     *
+     * @param allocationId
+     * @param expires
+     */
+    public void allocationExpires(final UUID allocationId, final Date expires) {
+        scheduleOnCommit(this.allocations, allocationId, expires, false);
+    }
+
+    /**
+     * The allocation file will expire at the specified time, which may already have passed. Takes effect once the
+     * current transaction commits.
+     *
+     * @param allocationFileId
+     * @param expires
+     */
+    public void allocationFileExpires(final UUID allocationFileId, final Date expires) {
+        scheduleOnCommit(this.allocationFiles, allocationFileId, expires, true);
+    }
+
+    /**
+     * Load the expiries from the end of the previous window up to <code>until</code>. The first time, also loads any
+     * that have already passed.
+     *
+     * @param until
+     */
+    @Transactional(readOnly=true)
+    public synchronized void seed(final Date until) {
+        if (this.listener == null) {
+            return;
+        }
+        Date from = this.seededUntil;
+        if (from != null && !from.before(until)) {
+            return;
+        }
+        Date allocationsUntil = seed(this.allocations,
+                this.allocationDAO.retrieveExpiring(from, until, MAX_SEEDED), until, false);
+        Date allocationFilesUntil = seed(this.allocationFiles,
+                this.allocationFileDAO.retrieveExpiring(from, until, MAX_SEEDED), until, true);
+        // If either was cut short, continue from there next time
+        this.seededUntil = (allocationsUntil.before(allocationFilesUntil) ? allocationsUntil : allocationFilesUntil);
+    }
+
+    /**
+     * @return the number of allocations waiting to expire.
+     */
+    public int getAllocationCount() {
+        synchronized (this.allocations) {
+            return this.allocations.size();
+        }
+    }
+
+    /**
+     * @return the number of allocation files waiting to expire.
+     */
+    public int getAllocationFileCount() {
+        synchronized (this.allocationFiles) {
+            return this.allocationFiles.size();
+        }
+    }
+
+    /**
+     * @return the window end of the loaded expiries, seeding continues from there.
+     */
+    private Date seed(final TimingWheel<UUID> wheel, final Map<UUID, Date> expiring, final Date until,
+            final boolean files) {
+        Date last = null;
+        for (Map.Entry<UUID, Date> entry : expiring.entrySet()) {
+            schedule(wheel, entry.getKey(), entry.getValue(), files);
+            last = entry.getValue();
+        }
+        if (expiring.size() < MAX_SEEDED || last == null) {
+            return until;
+        }
+        // Expiries equal to the last will be loaded again, which is harmless
+        return last;
+    }
+
+    private void scheduleOnCommit(final TimingWheel<UUID> wheel, final UUID id, final Date expires,
+            final boolean files) {
+        if (this.listener == null || expires == null) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            schedule(wheel, id, expires, files);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                schedule(wheel, id, expires, files);
+            }
+        });
+    }
+
+    private void schedule(final TimingWheel<UUID> wheel, final UUID id, final Date expires, final boolean files) {
+        boolean due;
+        synchronized (wheel) {
+            due = wheel.schedule(id, expires.getTime());
+        }
+        if (due) {
+            notifyDue(files);
+        }
+    }
+
+    private void notifyDue(final boolean files) {
+        ExpiryListener current = this.listener;
+        if (current == null) {
+            return;
+        }
+        try {
+            if (files) {
+                current.allocationFilesDue();
+            } else {
+                current.allocationsDue();
+            }
+        } catch (RuntimeException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Failed to notify of expiry", e);
+            }
+        }
+    }
+
+    private void tickLoop() {
+        List<UUID> due = new ArrayList<>();
+        while (this.running) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            synchronized (this.allocations) {
+                this.allocations.advance(now, due);
+            }
+            if (!due.isEmpty()) {
+                due.clear();
+                notifyDue(false);
+            }
+            synchronized (this.allocationFiles) {
+                this.allocationFiles.advance(now, due);
+            }
+            if (!due.isEmpty()) {
+                due.clear();
+                notifyDue(true);
+            }
+        }
+    }
+
+    /**
+     * Notified when at least one item has come due. Called from the scheduler thread so should return quickly.
+     */
+    public interface ExpiryListener {
+
+        void allocationsDue();
+
+        void allocationFilesDue();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.brekka.pegasus.core.model.AllocationFile;
+import org.brekka.pegasus.core.model.FileDownloadEvent;
+import org.brekka.pegasus.core.services.AllocationService;
+import org.brekka.pegasus.core.services.EventService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Records file download events and download counters in the background. Instead of each download committing its own
+ * transactions, events are queued and written in batches by a single flusher thread. A batch that fails is written
+ * again one record at a time, so that a single bad record does not lose the others.
+ *
+ * Request threads only see a {@link Download} handle. The event entity is prepared before it is queued, and from then
+ * on only the flusher touches it.
+ *
+ * Files with a download limit are still counted synchronously so that they expire on exactly the last permitted
+ * download.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Service
+public class FileDownloadRecorder {
+
+    private static final Log log = LogFactory.getLog(FileDownloadRecorder.class);
+
+    /**
+     * Maximum number of records waiting to be written. Downloads block once it is full.
+     */
+    static final int QUEUE_CAPACITY = 10000;
+
+    /**
+     * Maximum number of records written in one transaction.
+     */
+    static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * How long a record can wait for others to join its batch.
+     */
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    @Autowired
+    private EventService eventService;
+
+    @Autowired
+    private AllocationService allocationService;
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private volatile boolean running;
+
+    private Thread flusher;
+
+    @PostConstruct
+    public void start() {
+        this.running = true;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "pegasus-download-recorder");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Write out everything still queued.
+     */
+    @PreDestroy
+    public void stop() {
+        this.running = false;
+        try {
+            this.flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.flusher.isAlive() && log.isWarnEnabled()) {
+            log.warn(String.format("Download recorder did not finish, %d record(s) not written", this.queue.size()));
+        }
+    }
+
+    /**
+     * Begin a download of the specified file by the current user. The event is saved later.
+     *
+     * @param file the file being downloaded
+     * @return the download to pass to {@link #complete(Download, AllocationFile)}.
+     */
+    public Download begin(final AllocationFile file) {
+        Download download = new Download(this.eventService.prepareFileDownloadEvent(file));
+        enqueue(new Record(download, null, null));
+        return download;
+    }
+
+    /**
+     * Mark the download as complete and count it against the file.
+     */
+    public void complete(final Download download, final AllocationFile file) {
+        enqueue(new Record(download, new Date(), count(file)));
+    }
+
+    /**
+     * @return the number of records waiting to be written.
+     */
+    public int getPendingCount() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return the id of the file to count in the next batch, or null if it has already been counted.
+     */
+    private UUID count(final AllocationFile file) {
+        if (file.getXml().isSetMaxDownloads()) {
+            // Expiry needs to happen on exactly the last download
+            this.allocationService.incrementDownloadCounter(file);
+            return null;
+        }
+        return file.getId();
+    }
+
+    private void enqueue(final Record record) {
+        try {
+            this.queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Not worth failing the download over
+            if (log.isWarnEnabled()) {
+                log.warn(String.format("Interrupted, download of allocation file '%s' will not be recorded",
+                        record.download.transferFileId));
+            }
+        }
+    }
+
+    private void flushLoop() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (this.running || !this.queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    Record first = this.queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+                while (batch.size() < MAX_BATCH_SIZE && this.running) {
+                    this.queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (batch.size() == MAX_BATCH_SIZE || remaining <= 0) {
+                        break;
+                    }
+                    Record next = this.queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                this.queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                // Finish what is in the queue (and the batch) before stopping
+                this.running = false;
+            }
+        }
+    }
+
+    private void write(final List<Record> batch) {
+        try {
+            flush(batch);
+            return;
+        } catch (RuntimeException e) {
+            if (log.isWarnEnabled()) {
+                log.warn(String.format("Failed to record %d download event(s) together, retrying one at a time",
+                        batch.size()), e);
+            }
+        }
+        for (Record record : batch) {
+            try {
+                flush(Collections.singletonList(record));
+            } catch (RuntimeException e) {
+                if (log.isErrorEnabled()) {
+                    log.error(String.format("Failed to record download of allocation file '%s'",
+                            record.download.transferFileId), e);
+                }
+            }
+        }
+    }
+
+    private void flush(final List<Record> batch) {
+        Set<FileDownloadEvent> begunSet = Collections.newSetFromMap(
+                new IdentityHashMap<FileDownloadEvent, Boolean>());
+        List<FileDownloadEvent> begun = new ArrayList<>();
+        List<FileDownloadEvent> completed = new ArrayList<>();
+        List<FileDownloadEvent> unsaved = new ArrayList<>();
+        Map<UUID, Integer> downloadCounts = new HashMap<>();
+        for (Record record : batch) {
+            FileDownloadEvent event = record.download.event;
+            if (record.countFileId != null) {
+                Integer count = downloadCounts.get(record.countFileId);
+                downloadCounts.put(record.countFileId, count == null ? 1 : count + 1);
+            }
+            if (event.getId() == null && !begunSet.contains(event)) {
+                unsaved.add(event);
+            }
+            if (record.completed == null) {
+                begunSet.add(event);
+                begun.add(event);
+                continue;
+            }
+            event.setCompleted(record.completed);
+            if (!begunSet.contains(event)) {
+                // Begun in an earlier batch, otherwise the insert will already carry the completion.
+                completed.add(event);
+            }
+        }
+        try {
+            this.eventService.recordFileDownloads(begun, completed, downloadCounts);
+        } catch (RuntimeException e) {
+            // Rolled back, so these still need to be inserted when retried
+            for (FileDownloadEvent event : unsaved) {
+                event.setId(null);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A download in progress, to be passed back to the recorder when it finishes.
+     */
+    public static final class Download {
+
+        private final FileDownloadEvent event;
+
+        private final UUID transferFileId;
+
+        Download(final FileDownloadEvent event) {
+            this.event = event;
+            this.transferFileId = event.getTransferFile().getId();
+        }
+    }
+
+    private static final class Record {
+
+        private final Download download;
+
+        /**
+         * When the download completed, null for the start of a download.
+         */
+        private final Date completed;
+
+        /**
+         * Allocation file whose counter should be incremented, null when already counted.
+         */
+        private final UUID countFileId;
+
+        Record(final Download download, final Date completed, final UUID countFileId) {
+            this.download = download;
+            this.completed = completed;
+            this.countFileId = countFileId;
+        }
+    }
+}
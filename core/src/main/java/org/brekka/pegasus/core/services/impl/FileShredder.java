@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.brekka.pegasus.core.PegasusErrorCode;
+import org.brekka.pegasus.core.PegasusException;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Overwrites and deletes removed resources in the background. Files are first moved into a journal directory, so
+ * anything not yet shredded when the application stops will be picked up again the next time it starts.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class FileShredder {
+
+    private static final Log log = LogFactory.getLog(FileShredder.class);
+
+    /**
+     * Name of the directory (relative to the store root) holding files waiting to be shredded.
+     */
+    static final String JOURNAL_DIR = ".shred";
+
+    static final int DEFAULT_THREADS = 1;
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final File journalDir;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Shared source of zeros. Never written to, each task works on its own duplicate.
+     */
+    private final ByteBuffer zeros;
+
+    /**
+     * Caps the number of bytes written per second, null when unlimited.
+     */
+    private final RateLimiter rateLimiter;
+
+    FileShredder(final File rootDir, final int threads, final int chunkSize, final long maxBytesPerSecond) {
+        this.journalDir = new File(rootDir, JOURNAL_DIR);
+        if (!this.journalDir.exists()) {
+            this.journalDir.mkdirs();
+        }
+        this.zeros = ByteBuffer.allocateDirect(chunkSize);
+        this.rateLimiter = (maxBytesPerSecond > 0 ? RateLimiter.create(maxBytesPerSecond) : null);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                    .setNameFormat("pegasus-shredder-%d")
+                    .setDaemon(true)
+                    .setPriority(Thread.MIN_PRIORITY)
+                    .build());
+    }
+
+    /**
+     * Queue any files left in the journal by a previous run.
+     */
+    void recover() {
+        File[] pending = this.journalDir.listFiles();
+        if (pending == null || pending.length == 0) {
+            return;
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Resuming the shredding of %d file(s) from '%s'", pending.length, this.journalDir));
+        }
+        for (File file : pending) {
+            submit(file);
+        }
+    }
+
+    /**
+     * Move the file into the journal and queue it to be shredded. Returns immediately.
+     *
+     * @param file the file to shred.
+     */
+    void shred(final File file) {
+        File journalled = new File(this.journalDir, file.getName());
+        if (!file.renameTo(journalled)) {
+            if (!file.exists()) {
+                // Nothing to do
+                return;
+            }
+            throw new PegasusException(PegasusErrorCode.PG100,
+                    "Failed to move the file '%s' to the shred journal '%s'", file, this.journalDir);
+        }
+        submit(journalled);
+    }
+
+    /**
+     * @return the number of files waiting to be shredded by this instance.
+     */
+    int getPendingCount() {
+        return this.executor.getQueue().size() + this.executor.getActiveCount();
+    }
+
+    /**
+     * Stop shredding. Anything not yet completed remains in the journal for the next instance to pick up.
+     */
+    void shutdown() {
+        this.executor.shutdownNow();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS) && log.isWarnEnabled()) {
+                log.warn("Shredder threads did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(final File file) {
+        try {
+            this.executor.execute(new ShredTask(file));
+        } catch (RejectedExecutionException e) {
+            // Shut down, remains in the journal.
+        }
+    }
+
+    /**
+     * Overwrite the file with zeros, one chunk at a time.
+     *
+     * @param file the file to overwrite
+     * @param zeros the chunk of zeros to write, its position and limit are modified.
+     * @param rateLimiter optional limit on the bytes written per second.
+     */
+    static void overwrite(final File file, final ByteBuffer zeros, final RateLimiter rateLimiter) throws IOException {
+        try (RandomAccessFile rwFile = new RandomAccessFile(file, "rw");
+                FileChannel rwChannel = rwFile.getChannel()) {
+            long size = rwChannel.size();
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(zeros.capacity(), size - position);
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(length);
+                }
+                zeros.clear();
+                zeros.limit(length);
+                while (zeros.hasRemaining()) {
+                    position += rwChannel.write(zeros, position);
+                }
+            }
+            rwChannel.force(false);
+        }
+    }
+
+    private class ShredTask implements Runnable {
+
+        private final File file;
+
+        ShredTask(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            if (Thread.currentThread().isInterrupted()
+                    || !this.file.exists()) {
+                // Shutting down, or already shredded (queued again by recover after a restart).
+                return;
+            }
+            try {
+                overwrite(this.file, FileShredder.this.zeros.duplicate(), FileShredder.this.rateLimiter);
+                FileUtils.deleteQuietly(this.file);
+            } catch (ClosedByInterruptException e) {
+                // Shutting down, remains in the journal.
+            } catch (IOException e) {
+                if (!this.file.exists()) {
+                    return;
+                }
+                // Leave it in the journal, it will be retried on the next start.
+                if (log.isErrorEnabled()) {
+                    log.error(String.format("Failed to shred the file '%s'", this.file), e);
+                }
+            }
+        }
+    }
+}
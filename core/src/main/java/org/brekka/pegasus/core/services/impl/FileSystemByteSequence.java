@@ -3,16 +3,22 @@
  */
 package org.brekka.pegasus.core.services.impl;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,6 +28,14 @@ import org.brekka.pegasus.core.PegasusException;
 import org.joda.time.LocalDate;
 
 /**
+ * Byte sequence backed by a single file. In addition to the streams required by {@link ByteSequence}, the content
+ * can be accessed via a {@link FileChannel}, read at an arbitrary position or transferred directly to another channel
+ * (using {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which avoids copying through the heap).
+ *
+ * Content is written to a hidden temporary file alongside the final location, which only becomes visible once
+ * {@link #persist()} has synced it and atomically moved it into place. A crash part way through an upload therefore
+ * never leaves partial content at the resource location.
+ *
  * @author Andrew Taylor
  *
  */
@@ -29,23 +43,63 @@ public class FileSystemByteSequence implements ByteSequence {
 
     private static final int DEFAULT_BUFFER_SIZE = (1 << 13); // 8096
 
+    /**
+     * Maximum number of direct buffers kept for reuse.
+     */
+    private static final int MAX_POOLED_DIRECT_BUFFERS = 64;
+
     private static final Log log = LogFactory.getLog(FileSystemByteSequence.class);
 
+    /**
+     * Direct buffers released by closed streams, for the next to use. Direct memory is slow to allocate and only freed
+     * by the garbage collector, so it is not allocated per stream.
+     */
+    private static final BlockingQueue<ByteBuffer> DIRECT_BUFFERS = new ArrayBlockingQueue<>(MAX_POOLED_DIRECT_BUFFERS);
+
     private final UUID id;
 
     private final File file;
 
+    /**
+     * Where the content is written until persisted
+     */
+    private final File tempFile;
+
     private final int bufferSize;
 
+    /**
+     * Whether the buffer used by {@link #getInputStream()} should be allocated outside of the heap.
+     */
+    private final boolean directBuffer;
+
+    /**
+     * Shares the directory sync performed by {@link #persist()} with concurrent uploads. If null, each persist syncs
+     * the directory itself.
+     */
+    private final GroupCommitSync groupCommitSync;
+
 
     public FileSystemByteSequence(final UUID id, final File file, final boolean create) {
         this(id, file, create, DEFAULT_BUFFER_SIZE);
     }
 
     public FileSystemByteSequence(final UUID id, final File file, final boolean create, final int bufferSize) {
+        this(id, file, create, bufferSize, false);
+    }
+
+    public FileSystemByteSequence(final UUID id, final File file, final boolean create, final int bufferSize,
+            final boolean directBuffer) {
+        this(id, file, create, bufferSize, directBuffer, null);
+    }
+
+    public FileSystemByteSequence(final UUID id, final File file, final boolean create, final int bufferSize,
+            final boolean directBuffer, final GroupCommitSync groupCommitSync) {
         this.id = id;
         this.file = file;
+        this.tempFile = new File(file.getParentFile(), "." + file.getName() + ".part");
         this.bufferSize = bufferSize;
+        this.directBuffer = directBuffer;
+        this.groupCommitSync = groupCommitSync;
     }
 
     /* (non-Javadoc)
@@ -62,30 +116,7 @@ public class FileSystemByteSequence implements ByteSequence {
     @Override
     public OutputStream getOutputStream() {
         try {
-            return new BufferedOutputStream(new FileOutputStream(this.file) {
-                @Override
-                public void close() throws IOException {
-                    super.close();
-                    try {
-                        // Reduce information leakage by setting modified timestamp to the beginning of the day
-                        // The reason for not setting to the epoch is so that incremental backups can still be performed.
-                        long stamp = LocalDate.now().toDate().getTime();
-                        FileSystemByteSequence.this.file.setLastModified(stamp);
-                        // Also clear the parent
-                        FileSystemByteSequence.this.file.getParentFile().setLastModified(stamp);
-                        // And it's parent
-                        File parentFile = FileSystemByteSequence.this.file.getParentFile().getParentFile();
-                        if (parentFile.lastModified() > stamp) {
-                            // Needs to be amended
-                            FileSystemByteSequence.this.file.getParentFile().getParentFile().setLastModified(stamp);
-                        }
-                    } catch (Exception e) {
-                        if (log.isDebugEnabled()) {
-                            log.debug(String.format("Failed to reset last modified for '%s'", FileSystemByteSequence.this.file), e);
-                        }
-                    }
-                }
-            }, this.bufferSize);
+            return new BufferedOutputStream(new FileOutputStream(this.tempFile), this.bufferSize);
         } catch (FileNotFoundException e) {
             throw new PegasusException(PegasusErrorCode.PG100,
                     "Failed to copy data for resource id '%s'", this.id);
@@ -97,30 +128,266 @@ public class FileSystemByteSequence implements ByteSequence {
      */
     @Override
     public InputStream getInputStream() {
+        ByteBuffer buffer = (this.directBuffer
+                ? takeDirectBuffer(this.bufferSize) : ByteBuffer.allocate(this.bufferSize));
+        return new ChannelInputStream(getChannel(), buffer);
+    }
+
+    /**
+     * Take a pooled direct buffer of the specified size, allocating one if there are none. Pooled buffers of other
+     * sizes (the configured size changed) are dropped.
+     */
+    static ByteBuffer takeDirectBuffer(final int size) {
+        ByteBuffer buffer;
+        while ((buffer = DIRECT_BUFFERS.poll()) != null) {
+            if (buffer.capacity() == size) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Return a direct buffer to the pool, once nothing else refers to it.
+     */
+    static void releaseDirectBuffer(final ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            // Dropped if the pool is full
+            DIRECT_BUFFERS.offer(buffer);
+        }
+    }
+
+    /**
+     * Open a read-only channel on the content. The caller is responsible for closing it.
+     *
+     * @return the channel
+     */
+    public FileChannel getChannel() {
         try {
-            return new BufferedInputStream(new FileInputStream(this.file), this.bufferSize);
+            return FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
         } catch (IOException e) {
             throw new PegasusException(PegasusErrorCode.PG101,
                     "Failed to read data for resource id '%s'", this.id);
         }
     }
 
-    /* (non-Javadoc)
+    /**
+     * Read bytes from the specified position into the buffer, without the need to read what precedes it.
+     *
+     * @param dst the buffer to read into
+     * @param position the position in the sequence to start reading from
+     * @return the number of bytes read, or -1 if the position is beyond the end of the sequence.
+     */
+    public int read(final ByteBuffer dst, final long position) {
+        try (FileChannel channel = getChannel()) {
+            return channel.read(dst, position);
+        } catch (IOException e) {
+            throw new PegasusException(PegasusErrorCode.PG101,
+                    "Failed to read data at position %d for resource id '%s'", position, this.id);
+        }
+    }
+
+    /**
+     * Transfer a region of the sequence directly to the target channel. When the target is a socket or file channel
+     * the operating system can perform the transfer without the bytes passing through the JVM.
+     *
+     * @param position the position in the sequence to start from
+     * @param count the maximum number of bytes to transfer
+     * @param target the channel to write to
+     * @return the number of bytes transferred
+     */
+    public long transferTo(final long position, final long count, final WritableByteChannel target) {
+        try (FileChannel channel = getChannel()) {
+            long end = Math.min(position + count, channel.size());
+            long current = position;
+            while (current < end) {
+                current += channel.transferTo(current, end - current, target);
+            }
+            return current - position;
+        } catch (IOException e) {
+            throw new PegasusException(PegasusErrorCode.PG101,
+                    "Failed to transfer data for resource id '%s'", this.id);
+        }
+    }
+
+    /**
+     * @return the number of bytes in this sequence.
+     */
+    public long getLength() {
+        return this.file.length();
+    }
+
+    /**
+     * Sync the written content to disk and atomically move it to its final location, then make sure the move itself
+     * is durable. The output stream must have been closed.
+     *
      * @see org.brekka.paveway.core.model.ByteSequence#persist()
      */
     @Override
     public void persist() {
-        // TODO Auto-generated method stub
-
+        try {
+            try (FileChannel channel = FileChannel.open(this.tempFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(this.tempFile.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            resetLastModified();
+            File dir = this.file.getParentFile();
+            if (this.groupCommitSync != null) {
+                this.groupCommitSync.sync(dir);
+            } else {
+                GroupCommitSync.force(dir);
+            }
+        } catch (IOException e) {
+            throw new PegasusException(PegasusErrorCode.PG100, e,
+                    "Failed to persist data for resource id '%s'", this.id);
+        }
     }
 
-    /* (non-Javadoc)
+    /**
+     * Remove anything written that has not been persisted.
+     *
      * @see org.brekka.paveway.core.model.ByteSequence#discard()
      */
     @Override
     public void discard() {
-        // TODO Auto-generated method stub
+        if (this.tempFile.exists() && !this.tempFile.delete() && log.isWarnEnabled()) {
+            log.warn(String.format("Failed to discard the data written for resource id '%s'", this.id));
+        }
+    }
 
+    private void resetLastModified() {
+        try {
+            // Reduce information leakage by setting modified timestamp to the beginning of the day
+            // The reason for not setting to the epoch is so that incremental backups can still be performed.
+            long stamp = LocalDate.now().toDate().getTime();
+            this.file.setLastModified(stamp);
+            // Also clear the parent. Its parent is only modified when the directory is created, which
+            // resets it (see ShardDirectories).
+            this.file.getParentFile().setLastModified(stamp);
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Failed to reset last modified for '%s'", this.file), e);
+            }
+        }
     }
 
+    /**
+     * Reads from the channel through a single buffer. Reads at least as large as the buffer bypass it completely.
+     */
+    private static class ChannelInputStream extends InputStream {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer;
+
+        private boolean closed;
+
+        ChannelInputStream(final FileChannel channel, final ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.buffer.limit(0);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            ensureOpen();
+            if (!this.buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return this.buffer.get() & 0xFF;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            ensureOpen();
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                if (len >= this.buffer.capacity()) {
+                    return this.channel.read(ByteBuffer.wrap(b, off, len));
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, count);
+            return count;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#skip(long)
+         */
+        @Override
+        public long skip(final long n) throws IOException {
+            ensureOpen();
+            if (n <= 0) {
+                return 0;
+            }
+            int buffered = (int) Math.min(n, this.buffer.remaining());
+            this.buffer.position(this.buffer.position() + buffered);
+            long position = this.channel.position();
+            long skipped = Math.min(n - buffered, this.channel.size() - position);
+            if (skipped > 0) {
+                this.channel.position(position + skipped);
+            } else {
+                skipped = 0;
+            }
+            return buffered + skipped;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#available()
+         */
+        @Override
+        public int available() throws IOException {
+            ensureOpen();
+            long available = this.buffer.remaining() + Math.max(0, this.channel.size() - this.channel.position());
+            return (int) Math.min(Integer.MAX_VALUE, available);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#close()
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.channel.close();
+            } finally {
+                this.buffer.limit(0);
+                releaseDirectBuffer(this.buffer);
+            }
+        }
+
+        /**
+         * The buffer may be in use by another stream once this one is closed.
+         */
+        private void ensureOpen() throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        private boolean fill() throws IOException {
+            this.buffer.clear();
+            int read;
+            do {
+                read = this.channel.read(this.buffer);
+            } while (read == 0);
+            this.buffer.flip();
+            return read > 0;
+        }
+    }
 }
@@ -16,9 +16,21 @@
 package org.brekka.pegasus.core.services.impl;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.brekka.pegasus.core.PegasusException;
 import org.brekka.pegasus.core.dao.FirewallDAO;
 import org.brekka.pegasus.core.dao.FirewallRuleDAO;
 import org.brekka.pegasus.core.dao.NetworkDAO;
@@ -29,15 +41,22 @@ import org.brekka.pegasus.core.model.FirewallRule;
 import org.brekka.pegasus.core.model.Network;
 import org.brekka.pegasus.core.model.NetworkGroup;
 import org.brekka.pegasus.core.model.NetworkGroupCategory;
+import org.brekka.pegasus.core.model.NetworkImportSummary;
 import org.brekka.pegasus.core.services.FirewallService;
+import org.brekka.pegasus.core.support.CidrBlock;
+import org.brekka.pegasus.core.support.FirewallRuleIndex;
 import org.brekka.xml.pegasus.v2.config.FirewallType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
- * Firewall
+ * Firewall. Access checks are evaluated against a compiled {@link FirewallRuleIndex} per firewall, which is discarded
+ * once any change to the rules/networks of that firewall commits and is then recompiled on next use.
  * 
  * @author Andrew Taylor (andrew@brekka.org)
  */
@@ -45,6 +64,11 @@ import org.springframework.transaction.annotation.Transactional;
 @Transactional
 public class FirewallServiceImpl implements FirewallService {
 
+    /**
+     * Compiled firewalls are also recompiled after this period, to pick up changes made by other nodes.
+     */
+    private static final long MAX_COMPILED_AGE_MILLIS = 60 * 1000L;
+
     @Autowired
     private FirewallDAO firewallDAO;
     @Autowired
@@ -54,21 +78,33 @@ public class FirewallServiceImpl implements FirewallService {
     @Autowired
     private NetworkGroupDAO networkGroupDAO;
     
+    /**
+     * Compiled firewalls, keyed on firewall id.
+     */
+    private final ConcurrentMap<UUID, FirewallRuleIndex> compiledFirewalls = new ConcurrentHashMap<>();
+    
+    /**
+     * One lock per firewall, so that only one thread compiles a given firewall at a time.
+     */
+    private final ConcurrentMap<UUID, Lock> compileLocks = new ConcurrentHashMap<>();
+    
+    /**
+     * Incremented each time compiled firewalls are evicted, so that a compilation that overlaps a change is not retained.
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+    
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.FirewallService#isAccessAllowed(java.lang.String, org.brekka.pegasus.core.model.Firewall)
      */
     @Override
     @Transactional(readOnly=true)
     public boolean isAccessAllowed(Firewall firewall, String ipAddress) {
-        Firewall managedFirewall = firewallDAO.retrieveById(firewall.getId());
-        List<FirewallRule> findApplicableRules = firewallRuleDAO.findApplicableRules(firewall, ipAddress);
-        FirewallAction action = managedFirewall.getDefaultAction();
-        if (!findApplicableRules.isEmpty()) {
-            for (FirewallRule firewallRule : findApplicableRules) {
-                action = firewallRule.getAction();
-                break;
-            }
+        FirewallRuleIndex index = compiledFirewalls.get(firewall.getId());
+        if (index == null
+                || index.isOlderThan(MAX_COMPILED_AGE_MILLIS)) {
+            index = recompile(firewall.getId(), index);
         }
+        FirewallAction action = index.evaluate(ipAddress);
         return action == FirewallAction.ALLOW;
     }
     
@@ -90,6 +126,7 @@ public class FirewallServiceImpl implements FirewallService {
         network.setBlock(cidrBlock);
         network.setNetworkGroup(inGroup);
         networkDAO.create(network);
+        evictOnCommit(inGroup);
         return network;
     }
     
@@ -106,6 +143,73 @@ public class FirewallServiceImpl implements FirewallService {
         return networks;
     }
     
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.FirewallService#importNetworks(java.util.Collection, org.brekka.pegasus.core.model.NetworkGroup)
+     */
+    @Override
+    @Transactional()
+    public NetworkImportSummary importNetworks(Collection<String> cidrBlocks, NetworkGroup inGroup) {
+        List<String> rejected = new ArrayList<>();
+        Set<CidrBlock> blocks = new HashSet<>();
+        for (String value : cidrBlocks) {
+            if (value == null) {
+                // Nothing to import, or to report
+                continue;
+            }
+            try {
+                blocks.add(CidrBlock.parse(value.trim()));
+            } catch (PegasusException e) {
+                rejected.add(value);
+            }
+        }
+        
+        // Existing networks, keeping one per block. Any duplicates go with those being replaced.
+        Map<CidrBlock, Network> existing = new HashMap<>();
+        List<UUID> removedIds = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Network network : networkDAO.retrieveForGroup(inGroup)) {
+            CidrBlock block = CidrBlock.parse(network.getBlock());
+            if (existing.containsKey(block)) {
+                removedIds.add(network.getId());
+                removed.add(network.getBlock());
+            } else {
+                existing.put(block, network);
+            }
+        }
+        blocks.addAll(existing.keySet());
+        
+        List<CidrBlock> aggregated = CidrBlock.aggregate(blocks);
+        List<Network> toCreate = new ArrayList<>();
+        List<String> added = new ArrayList<>();
+        for (CidrBlock block : aggregated) {
+            if (existing.remove(block) != null) {
+                continue;
+            }
+            Network network = new Network();
+            network.setBlock(block.toString());
+            network.setNetworkGroup(inGroup);
+            toCreate.add(network);
+            added.add(network.getBlock());
+        }
+        // Whatever is left has been merged into the new blocks
+        for (Network network : existing.values()) {
+            removedIds.add(network.getId());
+            removed.add(network.getBlock());
+        }
+        
+        if (!removedIds.isEmpty()) {
+            networkDAO.deleteAll(removedIds);
+        }
+        if (!toCreate.isEmpty()) {
+            networkDAO.createAll(toCreate);
+        }
+        if (!toCreate.isEmpty() || !removedIds.isEmpty()) {
+            evictOnCommit(inGroup);
+        }
+        int unchanged = aggregated.size() - toCreate.size();
+        return new NetworkImportSummary(cidrBlocks.size(), rejected, added, removed, unchanged);
+    }
+    
     @Override
     @Transactional()
     public NetworkGroup createGroup(String name, NetworkGroupCategory networkGroupCategory) {
@@ -129,6 +233,7 @@ public class FirewallServiceImpl implements FirewallService {
         rule.setNetworkGroup(networkGroup);
         rule.setPriority(priority);
         firewallRuleDAO.create(rule);
+        evictOnCommit(firewall.getId());
         return rule;
     }
     
@@ -141,6 +246,7 @@ public class FirewallServiceImpl implements FirewallService {
         rule.setNetworkGroup(networkGroup);
         rule.setPriority(priority);
         firewallRuleDAO.create(rule);
+        evictOnCommit(firewall.getId());
         return rule;
     }
     
@@ -173,6 +279,7 @@ public class FirewallServiceImpl implements FirewallService {
         firewall.setName(firewallName);
         firewall.setDefaultAction(firewallAction);
         firewallDAO.update(firewall);
+        evictOnCommit(id);
         return firewall;
     }
     
@@ -182,6 +289,10 @@ public class FirewallServiceImpl implements FirewallService {
     @Override
     @Transactional()
     public void deleteNetwork(UUID networkId) {
+        Network network = networkDAO.retrieveById(networkId);
+        if (network != null) {
+            evictOnCommit(network.getNetworkGroup());
+        }
         networkDAO.delete(networkId);
     }
     
@@ -193,6 +304,7 @@ public class FirewallServiceImpl implements FirewallService {
     public void deleteRule(UUID id) {
         FirewallRule rule = firewallRuleDAO.retrieveById(id);
         NetworkGroup networkGroup = rule.getNetworkGroup();
+        evictOnCommit(rule.getFirewall().getId());
         firewallRuleDAO.delete(id);
         if (networkGroup.getNetworkGroupCategory() == null) {
             networkGroupDAO.delete(networkGroup.getId());
@@ -261,4 +373,136 @@ public class FirewallServiceImpl implements FirewallService {
     public Firewall retrieveFirewallById(UUID firewallId) {
         return firewallDAO.retrieveById(firewallId);
     }
+    
+    /**
+     * Compile the firewall, unless another thread is already doing so. While one thread compiles, the others wait if
+     * there is no compiled form, or carry on with the stale one if there is.
+     * 
+     * @param firewallId
+     * @param stale the expired compiled form, or null if there is none.
+     * @return
+     */
+    protected FirewallRuleIndex recompile(UUID firewallId, FirewallRuleIndex stale) {
+        Lock lock = compileLocks.get(firewallId);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            Lock existing = compileLocks.putIfAbsent(firewallId, lock);
+            if (existing != null) {
+                lock = existing;
+            }
+        }
+        if (stale != null) {
+            if (!lock.tryLock()) {
+                return stale;
+            }
+        } else {
+            lock.lock();
+        }
+        try {
+            // May have been compiled while waiting
+            FirewallRuleIndex index = compiledFirewalls.get(firewallId);
+            if (index != null
+                    && !index.isOlderThan(MAX_COMPILED_AGE_MILLIS)) {
+                return index;
+            }
+            return compile(firewallId);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Load the rules and networks of the firewall and compile them into an index. The index will be retained unless
+     * an eviction occurred while it was being compiled.
+     * 
+     * @param firewallId
+     * @return
+     */
+    protected FirewallRuleIndex compile(UUID firewallId) {
+        long evictionMark = evictionCount.get();
+        Firewall managedFirewall = firewallDAO.retrieveById(firewallId);
+        List<FirewallRule> rules = firewallRuleDAO.retrieveForFirewall(managedFirewall);
+        Map<UUID, List<FirewallRule>> rulesByGroup = new HashMap<>();
+        Set<NetworkGroup> groups = new LinkedHashSet<>();
+        for (FirewallRule rule : rules) {
+            NetworkGroup networkGroup = rule.getNetworkGroup();
+            List<FirewallRule> groupRules = rulesByGroup.get(networkGroup.getId());
+            if (groupRules == null) {
+                groupRules = new ArrayList<>(1);
+                rulesByGroup.put(networkGroup.getId(), groupRules);
+                groups.add(networkGroup);
+            }
+            groupRules.add(rule);
+        }
+        FirewallRuleIndex.Builder builder = new FirewallRuleIndex.Builder(managedFirewall.getDefaultAction());
+        List<Network> networks = networkDAO.retrieveForGroups(groups);
+        for (Network network : networks) {
+            List<FirewallRule> groupRules = rulesByGroup.get(network.getNetworkGroup().getId());
+            for (FirewallRule rule : groupRules) {
+                builder.add(rule, network.getBlock());
+            }
+        }
+        FirewallRuleIndex index = builder.build();
+        if (evictionCount.get() == evictionMark) {
+            compiledFirewalls.put(firewallId, index);
+        }
+        return index;
+    }
+    
+    /**
+     * Evict the compiled form of every firewall with a rule that uses the network group, once the current
+     * transaction commits.
+     * 
+     * @param networkGroup
+     */
+    protected void evictOnCommit(NetworkGroup networkGroup) {
+        List<FirewallRule> rules = firewallRuleDAO.retrieveForNetworkGroup(networkGroup);
+        for (FirewallRule rule : rules) {
+            evictOnCommit(rule.getFirewall().getId());
+        }
+    }
+    
+    /**
+     * Evict the compiled form of the firewall once the current transaction commits, or immediately if there is no
+     * transaction.
+     * 
+     * @param firewallId
+     */
+    protected void evictOnCommit(UUID firewallId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evict(firewallId);
+            return;
+        }
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        for (TransactionSynchronization transactionSynchronization : synchronizations) {
+            if (transactionSynchronization instanceof EvictionSynchronization) {
+                // Already registered, just add to it
+                ((EvictionSynchronization) transactionSynchronization).firewallIds.add(firewallId);
+                return;
+            }
+        }
+        EvictionSynchronization synchronization = new EvictionSynchronization();
+        synchronization.firewallIds.add(firewallId);
+        TransactionSynchronizationManager.registerSynchronization(synchronization);
+    }
+    
+    private void evict(UUID firewallId) {
+        evictionCount.incrementAndGet();
+        compiledFirewalls.remove(firewallId);
+    }
+    
+    private class EvictionSynchronization extends TransactionSynchronizationAdapter {
+        
+        private final Set<UUID> firewallIds = new LinkedHashSet<>();
+        
+        /* (non-Javadoc)
+         * @see org.springframework.transaction.support.TransactionSynchronizationAdapter#afterCommit()
+         */
+        @Override
+        public void afterCommit() {
+            for (UUID firewallId : firewallIds) {
+                evict(firewallId);
+            }
+        }
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Makes directory changes (such as the rename that publishes a resource) durable, sharing the cost between concurrent
+ * callers. Whoever arrives while no sync is in progress becomes the leader and syncs every directory requested up to
+ * that point. Anyone arriving during that sync joins the next batch, so a directory modified by several concurrent
+ * uploads is only synced once per batch.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class GroupCommitSync {
+
+    /**
+     * The batch accepting new directories
+     */
+    private Batch pending = new Batch();
+
+    /**
+     * Whether a batch is currently being synced
+     */
+    private boolean syncing;
+
+    /**
+     * Block until the specified directory has been synced to disk.
+     *
+     * @param dir the directory to sync
+     * @throws IOException if the sync of the batch containing the directory failed.
+     */
+    void sync(final File dir) throws IOException {
+        Batch batch;
+        synchronized (this) {
+            batch = this.pending;
+            batch.dirs.add(dir);
+            while (true) {
+                if (batch.done) {
+                    batch.check();
+                    return;
+                }
+                if (!this.syncing && batch == this.pending) {
+                    // Lead this batch
+                    this.syncing = true;
+                    this.pending = new Batch();
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for directory sync", e);
+                }
+            }
+        }
+        try {
+            batch.run();
+        } finally {
+            synchronized (this) {
+                batch.done = true;
+                this.syncing = false;
+                notifyAll();
+            }
+        }
+        batch.check();
+    }
+
+    /**
+     * Force the directory entries of the specified directory to disk.
+     */
+    static void force(final File dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static class Batch {
+
+        private final Set<File> dirs = new LinkedHashSet<>();
+
+        private boolean done;
+
+        private IOException failure;
+
+        void run() {
+            for (File dir : this.dirs) {
+                try {
+                    force(dir);
+                } catch (IOException e) {
+                    this.failure = e;
+                    return;
+                }
+            }
+        }
+
+        void check() throws IOException {
+            if (this.failure != null) {
+                throw new IOException("Failed to sync directory", this.failure);
+            }
+        }
+    }
+}
@@ -303,6 +303,7 @@ public class InboxServiceImpl extends AllocationServiceSupport implements InboxS
         Deposit deposit = this.depositDAO.retrieveById(depositId);
         deposit.setExpires(after.toDate());
         this.depositDAO.update(deposit);
+        this.expiryScheduler.allocationExpires(deposit.getId(), deposit.getExpires());
     }
 
     /*
@@ -392,8 +393,9 @@ public class InboxServiceImpl extends AllocationServiceSupport implements InboxS
             deposit.setActor(activeActor);
         }
 
-        createAllocationFiles(deposit);
         this.depositDAO.create(deposit);
+        createAllocationFiles(deposit);
+        this.expiryScheduler.allocationExpires(deposit.getId(), deposit.getExpires());
 
         return deposit;
     }
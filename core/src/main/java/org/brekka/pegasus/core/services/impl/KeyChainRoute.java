@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The chain of key pairs that leads from a vault to the private key of a key safe. The first key pair is unlocked
+ * with the vault key, each of the others with the key pair before it. Holds identifiers only, never key material. The
+ * connections followed along the way are kept so that the route can be checked before it is used again.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class KeyChainRoute {
+
+    private final UUID vaultId;
+
+    private final List<UUID> keyPairIds;
+
+    private final List<UUID> connectionIds;
+
+    private KeyChainRoute(final UUID vaultId, final List<UUID> keyPairIds, final List<UUID> connectionIds) {
+        this.vaultId = vaultId;
+        this.keyPairIds = keyPairIds;
+        this.connectionIds = connectionIds;
+    }
+
+    /**
+     * @param vaultId
+     * @return the route to the default private key of the vault itself.
+     */
+    static KeyChainRoute fromVault(final UUID vaultId) {
+        return new KeyChainRoute(vaultId, Collections.<UUID>emptyList(), Collections.<UUID>emptyList());
+    }
+
+    /**
+     * @param keyPairId the key pair unlocked by the last key of this route.
+     * @return a new route that continues on to <code>keyPairId</code>.
+     */
+    KeyChainRoute extend(final UUID keyPairId) {
+        return new KeyChainRoute(this.vaultId, append(this.keyPairIds, keyPairId), this.connectionIds);
+    }
+
+    /**
+     * @param connectionId the connection whose key pair is unlocked by the last key of this route.
+     * @param keyPairId the key pair of that connection.
+     * @return a new route that continues on through the connection.
+     */
+    KeyChainRoute extendThrough(final UUID connectionId, final UUID keyPairId) {
+        return new KeyChainRoute(this.vaultId, append(this.keyPairIds, keyPairId),
+                append(this.connectionIds, connectionId));
+    }
+
+    UUID getVaultId() {
+        return this.vaultId;
+    }
+
+    List<UUID> getKeyPairIds() {
+        return this.keyPairIds;
+    }
+
+    List<UUID> getConnectionIds() {
+        return this.connectionIds;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "KeyChainRoute [vaultId=" + this.vaultId + ", keyPairIds=" + this.keyPairIds
+                + ", connectionIds=" + this.connectionIds + "]";
+    }
+
+    private static List<UUID> append(final List<UUID> ids, final UUID id) {
+        List<UUID> appended = new ArrayList<>(ids.size() + 1);
+        appended.addAll(ids);
+        appended.add(id);
+        return Collections.unmodifiableList(appended);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps track of whether the {@link KeyChainRoute}s retained by each member are still current. The routes themselves
+ * live with the member, tagged with the generation they were resolved in. Removing any connection moves on to a new
+ * generation, which makes every member re-resolve on next use and drop the data keys it released along the old routes.
+ * Members can't be reached from here, so this is how changes made on this node reach them straight away. Changes made
+ * on other nodes are caught by checking the connections of a route each time it is taken from the cache.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Component
+class KeyChainRouteCache {
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param member
+     * @param keySafeId
+     * @return the route for the key safe, if the member resolved it in the current generation.
+     */
+    KeyChainRoute get(final AuthenticatedMemberBase<?> member, final UUID keySafeId) {
+        KeyChainRoute route = member.getKeyChainRoute(keySafeId, this.generation.get());
+        if (route == null) {
+            this.missCount.incrementAndGet();
+        } else {
+            this.hitCount.incrementAndGet();
+        }
+        return route;
+    }
+
+    /**
+     * @return the generation to pass to {@link #retain(AuthenticatedMemberBase, UUID, KeyChainRoute, long)}, which
+     *         must be obtained before starting to resolve.
+     */
+    long currentGeneration() {
+        return this.generation.get();
+    }
+
+    void retain(final AuthenticatedMemberBase<?> member, final UUID keySafeId, final KeyChainRoute route,
+            final long resolvedInGeneration) {
+        member.retainKeyChainRoute(keySafeId, route, resolvedInGeneration);
+    }
+
+    /**
+     * Discard the routes of all members, both now and once the current transaction commits (until then other
+     * transactions can still see the connections being removed).
+     */
+    void invalidateAll() {
+        this.generation.incrementAndGet();
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        for (TransactionSynchronization transactionSynchronization : synchronizations) {
+            if (transactionSynchronization instanceof InvalidationSynchronization) {
+                // Already registered
+                return;
+            }
+        }
+        TransactionSynchronizationManager.registerSynchronization(new InvalidationSynchronization());
+    }
+
+    long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    long getMissCount() {
+        return this.missCount.get();
+    }
+
+    private class InvalidationSynchronization extends TransactionSynchronizationAdapter {
+
+        /* (non-Javadoc)
+         * @see org.springframework.transaction.support.TransactionSynchronizationAdapter#afterCommit()
+         */
+        @Override
+        public void afterCommit() {
+            KeyChainRouteCache.this.generation.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.brekka.pegasus.core.dao.SpareKeyPairDAO;
+import org.brekka.phalanx.api.beans.IdentityKeyPair;
+import org.brekka.phalanx.api.beans.IdentityPrincipal;
+import org.brekka.phalanx.api.model.KeyPair;
+import org.brekka.phalanx.api.model.Principal;
+import org.brekka.phalanx.api.services.PhalanxService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Generates key pairs ahead of time, so that creating a vault, division or connection can use one that already exists
+ * rather than wait for a new one to be generated.
+ *
+ * Phalanx protects a key pair as it is generated, which only needs the public key of the protector. Spares are
+ * therefore generated for the actual key pair (and owner principal) that will protect them, and kept as
+ * {@link org.brekka.pegasus.core.model.SpareKeyPair}s until used. Nothing is protected by anything else along the
+ * way, and spares survive a restart, so none are ever left orphaned.
+ *
+ * Whenever a key pair is needed for a protector, a single low priority thread tops up the spares of that protector.
+ * Repeated creation under the same division or vault (bulk provisioning, connections) is then served from the spares.
+ * The first key pair for a protector, and any needed while its spares are used up, are generated on demand as before.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Service
+public class KeyPairPool {
+
+    private static final Log log = LogFactory.getLog(KeyPairPool.class);
+
+    /**
+     * Number of spares kept for each protector that has been used.
+     */
+    static final int SPARES_PER_PROTECTOR = 4;
+
+    /**
+     * Maximum number of protectors waiting to be topped up. Further requests are dropped until there is room.
+     */
+    static final int MAX_PENDING_REFILLS = 1000;
+
+    /**
+     * How long to wait before continuing after failing to generate.
+     */
+    static final long RETRY_INTERVAL_MILLIS = 60 * 1000L;
+
+    @Autowired
+    private PhalanxService phalanxService;
+
+    @Autowired
+    private SpareKeyPairDAO spareKeyPairDAO;
+
+    @Autowired
+    private PlatformTransactionManager pegasusTransactionManager;
+
+    private final BlockingQueue<Protector> pendingRefills = new ArrayBlockingQueue<>(MAX_PENDING_REFILLS);
+
+    /**
+     * The protectors in {@link #pendingRefills}, so each is only queued once.
+     */
+    private final Set<Protector> queued = Collections.newSetFromMap(new ConcurrentHashMap<Protector, Boolean>());
+
+    private final AtomicLong generatedCount = new AtomicLong();
+
+    private final AtomicLong takenCount = new AtomicLong();
+
+    private final AtomicLong emptyCount = new AtomicLong();
+
+    /**
+     * Total time spent generating, to work out the refill rate.
+     */
+    private final AtomicLong generatingNanos = new AtomicLong();
+
+    private volatile boolean running;
+
+    private Thread refiller;
+
+    @PostConstruct
+    public void start() {
+        this.running = true;
+        this.refiller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                refillLoop();
+            }
+        }, "pegasus-key-pair-pool");
+        this.refiller.setDaemon(true);
+        this.refiller.setPriority(Thread.MIN_PRIORITY);
+        this.refiller.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.running = false;
+        this.refiller.interrupt();
+        try {
+            this.refiller.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Obtain a new key pair protected by <code>protectedBy</code>. Must be called within a transaction, should it roll
+     * back the spare taken can be used again.
+     *
+     * @param protectedBy
+     * @return the new key pair
+     */
+    public KeyPair generateKeyPair(final KeyPair protectedBy) {
+        Protector protector = new Protector(protectedBy.getId(), null);
+        KeyPair spare = take(protector);
+        if (spare == null) {
+            return this.phalanxService.generateKeyPair(protectedBy);
+        }
+        return spare;
+    }
+
+    /**
+     * Obtain a new key pair owned by the <code>owner</code> principal and protected by its default key pair. Must be
+     * called within a transaction, should it roll back the spare taken can be used again.
+     *
+     * @param protectedBy the default key pair of <code>owner</code>.
+     * @param owner
+     * @return the new key pair
+     */
+    public KeyPair generateKeyPair(final KeyPair protectedBy, final Principal owner) {
+        Protector protector = new Protector(protectedBy.getId(), owner.getId());
+        KeyPair spare = take(protector);
+        if (spare == null) {
+            return this.phalanxService.generateKeyPair(protectedBy, owner);
+        }
+        return spare;
+    }
+
+    /**
+     * @return the number of spare key pairs waiting to be used, for all protectors.
+     */
+    public long getDepth() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(this.pegasusTransactionManager);
+        transactionTemplate.setReadOnly(true);
+        return transactionTemplate.execute(new TransactionCallback<Long>() {
+            @Override
+            public Long doInTransaction(final TransactionStatus status) {
+                return KeyPairPool.this.spareKeyPairDAO.countAll();
+            }
+        });
+    }
+
+    /**
+     * @return the number of protectors waiting for their spares to be topped up.
+     */
+    public int getPendingRefillCount() {
+        return this.pendingRefills.size();
+    }
+
+    /**
+     * @return the number of spare key pairs generated by this node.
+     */
+    public long getGeneratedCount() {
+        return this.generatedCount.get();
+    }
+
+    /**
+     * @return the number of spare key pairs used by this node.
+     */
+    public long getTakenCount() {
+        return this.takenCount.get();
+    }
+
+    /**
+     * @return the number of times a key pair was needed while there were no spares for its protector.
+     */
+    public long getEmptyCount() {
+        return this.emptyCount.get();
+    }
+
+    /**
+     * @return the number of key pairs the refill thread generates per minute while it is busy.
+     */
+    public double getRefillRatePerMinute() {
+        long nanos = this.generatingNanos.get();
+        if (nanos == 0) {
+            return 0;
+        }
+        return this.generatedCount.get() * (double) TimeUnit.MINUTES.toNanos(1) / nanos;
+    }
+
+    private KeyPair take(final Protector protector) {
+        UUID keyPairId = this.spareKeyPairDAO.claim(protector.keyPairId, protector.ownerPrincipalId);
+        if (keyPairId == null) {
+            this.emptyCount.incrementAndGet();
+        } else {
+            this.takenCount.incrementAndGet();
+        }
+        requestRefill(protector);
+        return (keyPairId == null ? null : new IdentityKeyPair(keyPairId));
+    }
+
+    private void requestRefill(final Protector protector) {
+        if (!this.queued.add(protector)) {
+            return;
+        }
+        if (!this.pendingRefills.offer(protector)) {
+            // Will be requested again the next time it is used
+            this.queued.remove(protector);
+        }
+    }
+
+    private void refillLoop() {
+        try {
+            while (this.running) {
+                Protector protector = this.pendingRefills.take();
+                this.queued.remove(protector);
+                try {
+                    refill(protector);
+                } catch (RuntimeException e) {
+                    if (log.isWarnEnabled()) {
+                        log.warn(String.format("Failed to generate spare key pairs for key pair '%s'",
+                                protector.keyPairId), e);
+                    }
+                    Thread.sleep(RETRY_INTERVAL_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+    }
+
+    private void refill(final Protector protector) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(this.pegasusTransactionManager);
+        int count = transactionTemplate.execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(final TransactionStatus status) {
+                return KeyPairPool.this.spareKeyPairDAO.count(protector.keyPairId, protector.ownerPrincipalId);
+            }
+        });
+        // Other nodes may be topping up the same protector, which at worst leaves a few extra spares
+        for (; count < SPARES_PER_PROTECTOR && this.running; count++) {
+            transactionTemplate.execute(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction(final TransactionStatus status) {
+                    generate(protector);
+                    return null;
+                }
+            });
+        }
+    }
+
+    private void generate(final Protector protector) {
+        long start = System.nanoTime();
+        KeyPair protectedBy = new IdentityKeyPair(protector.keyPairId);
+        KeyPair keyPair;
+        if (protector.ownerPrincipalId == null) {
+            keyPair = this.phalanxService.generateKeyPair(protectedBy);
+        } else {
+            keyPair = this.phalanxService.generateKeyPair(protectedBy, new IdentityPrincipal(protector.ownerPrincipalId));
+        }
+        this.spareKeyPairDAO.create(keyPair.getId(), protector.keyPairId, protector.ownerPrincipalId);
+        this.generatingNanos.addAndGet(System.nanoTime() - start);
+        this.generatedCount.incrementAndGet();
+    }
+
+    /**
+     * The key pair, and for vaults the principal, that spares are generated for.
+     */
+    private static final class Protector {
+
+        private final UUID keyPairId;
+
+        private final UUID ownerPrincipalId;
+
+        Protector(final UUID keyPairId, final UUID ownerPrincipalId) {
+            this.keyPairId = keyPairId;
+            this.ownerPrincipalId = ownerPrincipalId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.keyPairId.hashCode() + (this.ownerPrincipalId == null ? 0 : this.ownerPrincipalId.hashCode());
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Protector)) {
+                return false;
+            }
+            Protector other = (Protector) obj;
+            return this.keyPairId.equals(other.keyPairId)
+                    && (this.ownerPrincipalId == null
+                            ? other.ownerPrincipalId == null
+                            : this.ownerPrincipalId.equals(other.ownerPrincipalId));
+        }
+    }
+}
@@ -92,13 +92,32 @@ public class KeySafeServiceImpl extends AbstractKeySafeServiceSupport implements
         if (keySafe == null) {
             throw new IllegalArgumentException("A keySafe must be specified");
         }
-        byte[] data;
         AuthenticatedMemberBase<Member> currentMember = AuthenticatedMemberBase.getCurrent(this.memberService, Member.class);
+        long generation = this.keyChainRouteCache.currentGeneration();
+        // Always resolve first, the member must still be able to reach the key safe
         PrivateKeyToken privateKey = resolvePrivateKeyFor(keySafe, currentMember);
+        byte[] data = currentMember.getDataKey(keySafe.getId(), cryptedDataId);
+        if (data != null) {
+            return data;
+        }
         data = this.phalanxService.asymDecrypt(new IdentityCryptedData(cryptedDataId), privateKey);
+        currentMember.retainDataKey(keySafe.getId(), cryptedDataId, data, generation);
         return data;
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.KeySafeService#resolvePrivateKey(org.brekka.pegasus.core.model.KeySafe)
+     */
+    @Override
+    @Transactional(readOnly=true)
+    public PrivateKeyToken resolvePrivateKey(final KeySafe<?> keySafe) {
+        if (keySafe == null) {
+            throw new IllegalArgumentException("A keySafe must be specified");
+        }
+        AuthenticatedMemberBase<Member> currentMember = AuthenticatedMemberBase.getCurrent(this.memberService, Member.class);
+        return resolvePrivateKeyFor(keySafe, currentMember);
+    }
+
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.KeySafeService#createKeyPair(org.brekka.pegasus.core.model.KeySafe)
      */
@@ -133,4 +152,20 @@ public class KeySafeServiceImpl extends AbstractKeySafeServiceSupport implements
         return keyPair;
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.KeySafeService#getKeyChainRouteCacheHitCount()
+     */
+    @Override
+    public long getKeyChainRouteCacheHitCount() {
+        return this.keyChainRouteCache.getHitCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.KeySafeService#getKeyChainRouteCacheMissCount()
+     */
+    @Override
+    public long getKeyChainRouteCacheMissCount() {
+        return this.keyChainRouteCache.getMissCount();
+    }
+
 }
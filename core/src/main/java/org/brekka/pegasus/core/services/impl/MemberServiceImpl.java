@@ -19,6 +19,7 @@ package org.brekka.pegasus.core.services.impl;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.brekka.commons.persistence.support.EntityUtils;
 import org.brekka.pegasus.core.PegasusErrorCode;
@@ -43,8 +44,12 @@ import org.brekka.pegasus.core.services.MemberService;
 import org.brekka.pegasus.core.services.OrganizationService;
 import org.brekka.pegasus.core.services.ProfileService;
 import org.brekka.pegasus.core.services.VaultService;
+import org.brekka.pegasus.core.utils.EntityUnlockKeyCache;
+import org.brekka.pegasus.core.utils.EntityUnlockKeyCache.EvictionListener;
 import org.brekka.phalanx.api.model.AuthenticatedPrincipal;
 import org.brekka.phalanx.api.services.PhalanxService;
+import org.brekka.stillingar.api.annotations.Configured;
+import org.brekka.xml.pegasus.v2.config.MemberServiceDocument;
 import org.brekka.xml.pegasus.v2.model.EMailType;
 import org.brekka.xml.pegasus.v2.model.ProfileType;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -63,6 +68,7 @@ import org.springframework.transaction.annotation.Transactional;
  */
 @Service
 @Transactional
+@Configured
 public class MemberServiceImpl implements MemberService {
 
     @Autowired
@@ -89,6 +95,18 @@ public class MemberServiceImpl implements MemberService {
     @Autowired
     private DivisionService divisionService;
 
+    /**
+     * Vault keys dropped by a member's cache are logged out, the same as when the vault is closed.
+     */
+    private final EvictionListener<AuthenticatedPrincipal> vaultKeyLogout = new EvictionListener<AuthenticatedPrincipal>() {
+        @Override
+        public void evicted(final UUID vaultId, final AuthenticatedPrincipal authenticatedPrincipal) {
+            MemberServiceImpl.this.phalanxService.logout(authenticatedPrincipal);
+        }
+    };
+
+    private volatile UnlockKeyPolicy unlockKeyPolicy = new UnlockKeyPolicy(this.vaultKeyLogout);
+
 
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.MemberService#activateOrganization(org.brekka.pegasus.core.model.Organization)
@@ -229,6 +247,7 @@ public class MemberServiceImpl implements MemberService {
         SecurityContext context = SecurityContextHolder.getContext();
         AuthenticatedMemberBase<T> authMember = getAuthenticatedMember(context, expectedType);
         if (authMember != null) {
+            authMember.applyUnlockKeyPolicy(this.unlockKeyPolicy);
             Member member = authMember.getMember();
             // Attempt to locate the user profile
             if (member.getStatus() == ActorStatus.ACTIVE
@@ -342,6 +361,19 @@ public class MemberServiceImpl implements MemberService {
         }
     }
 
+    @Configured
+    public void configure(@Configured final MemberServiceDocument.MemberService config) {
+        int maxEntries = EntityUnlockKeyCache.DEFAULT_MAX_ENTRIES;
+        if (config.isSetUnlockKeyMaxEntries()) {
+            maxEntries = config.getUnlockKeyMaxEntries();
+        }
+        long idleTimeoutMillis = EntityUnlockKeyCache.NO_IDLE_TIMEOUT;
+        if (config.isSetUnlockKeyIdleTimeout()) {
+            idleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getUnlockKeyIdleTimeout());
+        }
+        this.unlockKeyPolicy = new UnlockKeyPolicy(maxEntries, idleTimeoutMillis, this.vaultKeyLogout);
+    }
+
     @SuppressWarnings("unchecked")
     private static <T extends Member> AuthenticatedMemberBase<T> getAuthenticatedMember(final SecurityContext securityContext, final Class<T> expectedType) {
         Authentication authentication = securityContext.getAuthentication();
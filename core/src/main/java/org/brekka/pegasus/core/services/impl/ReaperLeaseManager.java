@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brekka.pegasus.core.dao.ReaperLeaseDAO;
+import org.brekka.pegasus.core.model.ReaperLease;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Shares the reaper slots between the nodes that are running. Each node checks in before reaping, renews the leases
+ * it holds, then gives up or takes slots to get as close as it can to an equal share. When a node joins, the others
+ * give up their surplus the next time they check in. When one stops or dies, its leases are released or lapse and
+ * are taken by the others.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Service
+public class ReaperLeaseManager {
+
+    @Autowired
+    private ReaperLeaseDAO reaperLeaseDAO;
+
+    /**
+     * Check in the node and rebalance its leases.
+     *
+     * @param nodeId
+     * @param ttlMillis how long the node and its leases remain valid without checking in again.
+     * @return the slots now held by the node, possibly none.
+     */
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public List<Integer> acquire(final String nodeId, final int ttlMillis) {
+        this.reaperLeaseDAO.checkIn(nodeId, ttlMillis);
+        int share = fairShare(ReaperLease.SLOT_COUNT, this.reaperLeaseDAO.countLiveNodes());
+        List<Integer> held = this.reaperLeaseDAO.renew(nodeId, ttlMillis);
+        if (held.size() > share) {
+            this.reaperLeaseDAO.release(nodeId, new ArrayList<>(held.subList(share, held.size())));
+            held = new ArrayList<>(held.subList(0, share));
+        } else if (held.size() < share) {
+            this.reaperLeaseDAO.createSlots(ReaperLease.SLOT_COUNT);
+            if (this.reaperLeaseDAO.claim(nodeId, share - held.size(), ttlMillis) > 0) {
+                held = this.reaperLeaseDAO.renew(nodeId, ttlMillis);
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Release all leases held by the node, and remove it so the others take over straight away.
+     *
+     * @param nodeId
+     */
+    @Transactional(propagation=Propagation.REQUIRES_NEW)
+    public void release(final String nodeId) {
+        this.reaperLeaseDAO.checkOut(nodeId);
+    }
+
+    /**
+     * @param slotCount
+     * @param nodeCount
+     * @return the most slots a node should hold, rounded up so every slot has an owner.
+     */
+    static int fairShare(final int slotCount, final int nodeCount) {
+        if (nodeCount <= 1) {
+            return slotCount;
+        }
+        return (slotCount + nodeCount - 1) / nodeCount;
+    }
+}
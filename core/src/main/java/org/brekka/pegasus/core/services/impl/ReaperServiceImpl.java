@@ -16,28 +16,71 @@
 
 package org.brekka.pegasus.core.services.impl;
 
-import java.util.Collections;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.brekka.pegasus.core.dao.AllocationDAO;
 import org.brekka.pegasus.core.dao.AllocationFileDAO;
-import org.brekka.pegasus.core.model.Allocation;
-import org.brekka.pegasus.core.model.AllocationFile;
+import org.brekka.pegasus.core.model.ReaperLease;
 import org.brekka.pegasus.core.services.AllocationService;
 import org.brekka.pegasus.core.services.ReaperService;
+import org.brekka.stillingar.api.annotations.Configured;
+import org.brekka.xml.pegasus.v2.config.ReaperServiceDocument;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * The reaper uses background threads to delete allocations once they have expired.
  *
+ * Each run starts the configured number of workers, which keep clearing batches until there is nothing left to claim.
+ * Every batch is cleared in a transaction of its own, with the rows claimed using SKIP LOCKED so that workers (and
+ * other instances) never wait on each other or clear the same rows twice. A failed batch only rolls back itself, its
+ * rows are claimed again on the next run.
+ *
+ * When several nodes share the database, the work is divided into {@link ReaperLease} slots, and each node only clears
+ * rows in the slots it holds the lease on. Leases are rebalanced at the start of every run, and workers stop well
+ * before the leases could lapse.
+ *
+ * Rather than polling, runs are started by the {@link ExpiryScheduler} as soon as something expires. A periodic
+ * reconciliation loads upcoming expiries into the scheduler and catches anything it was not told about.
+ *
  * @author Andrew Taylor (andrew@brekka.org)
  */
 // Should be declared explicitly
 // @Service
+@Configured
 public class ReaperServiceImpl implements ReaperService {
 
+    private static final Log log = LogFactory.getLog(ReaperServiceImpl.class);
+
+    static final int DEFAULT_THREADS = 1;
+
+    static final int DEFAULT_BATCH_SIZE = 20;
+
+    static final int DEFAULT_LEASE_SECONDS = 60;
+
+    static final int DEFAULT_EXPIRY_WINDOW_HOURS = 24;
+
     @Autowired
     private AllocationDAO allocationDAO;
 
@@ -47,43 +90,402 @@ public class ReaperServiceImpl implements ReaperService {
     @Autowired
     private AllocationService allocationService;
 
-    // TODO configured
-    private final int maxAllocationCount = 20;
-    // TODO configured
-    private final int maxAllocationFileCount = 20;
+    @Autowired
+    private ReaperLeaseManager reaperLeaseManager;
+
+    @Autowired
+    private ExpiryScheduler expiryScheduler;
+
+    private volatile long expiryWindowMillis = TimeUnit.HOURS.toMillis(DEFAULT_EXPIRY_WINDOW_HOURS);
+
+    private volatile String nodeId = defaultNodeId();
+
+    private volatile int leaseMillis = (int) TimeUnit.SECONDS.toMillis(DEFAULT_LEASE_SECONDS);
+
+    private volatile int threads = DEFAULT_THREADS;
+
+    private volatile int maxAllocationCount = DEFAULT_BATCH_SIZE;
+
+    private volatile int maxAllocationFileCount = DEFAULT_BATCH_SIZE;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                .setNameFormat("pegasus-reaper-%d")
+                .setDaemon(true)
+                .build());
+
+    /**
+     * Starts runs when notified of expiries, one at a time.
+     */
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("pegasus-reaper-dispatch-%d")
+                .setDaemon(true)
+                .build());
+
+    private final AtomicBoolean allocationsDue = new AtomicBoolean();
+
+    private final AtomicBoolean allocationFilesDue = new AtomicBoolean();
+
+    private final Throughput allocations = new Throughput();
+
+    private final Throughput allocationFiles = new Throughput();
 
 
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.ReaperService#clearAllocationFiles()
      */
     @Override
-    @Scheduled(fixedDelay=5000) // Gap of five seconds between each invocation
-    @Transactional()
     public void clearAllocationFiles() {
-        List<AllocationFile> allocationFileList = Collections.emptyList();
-        do {
-            allocationFileList = this.allocationFileDAO.retrieveOldestExpired(this.maxAllocationFileCount);
-            for (AllocationFile allocationFile : allocationFileList) {
-                this.allocationService.clearAllocationFile(allocationFile);
+        reap(this.allocationFiles, new Batch() {
+            @Override
+            public int clear(final List<Integer> slots) {
+                return ReaperServiceImpl.this.allocationService.clearExpiredAllocationFiles(
+                        ReaperServiceImpl.this.maxAllocationFileCount, slots);
             }
-            // Keep looping until there are no more entries to expire
-        } while (!allocationFileList.isEmpty());
+        });
     }
 
     /* (non-Javadoc)
      * @see org.brekka.pegasus.core.services.ReaperService#clearAllocations()
      */
     @Override
-    @Scheduled(fixedDelay=10000) // Gap of ten seconds between each invocation
-    @Transactional()
     public void clearAllocations() {
-        List<Allocation> allocationList = Collections.emptyList();
-        do {
-            allocationList = this.allocationDAO.retrieveOldestExpired(this.maxAllocationCount);
-            for (Allocation allocation : allocationList) {
-                this.allocationService.clearAllocation(allocation);
+        reap(this.allocations, new Batch() {
+            @Override
+            public int clear(final List<Integer> slots) {
+                return ReaperServiceImpl.this.allocationService.clearExpiredAllocations(
+                        ReaperServiceImpl.this.maxAllocationCount, slots);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#reconcile()
+     */
+    @Override
+    @Scheduled(fixedDelay=30000) // Gap of thirty seconds between each invocation, must be less than the lease
+    public void reconcile() {
+        try {
+            this.expiryScheduler.seed(new Date(System.currentTimeMillis() + this.expiryWindowMillis));
+        } catch (RuntimeException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Failed to load upcoming expiries", e);
+            }
+        }
+        clearAllocationFiles();
+        clearAllocations();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#repairReferenceCounts()
+     */
+    @Override
+    @Scheduled(cron="0 30 3 * * *") // Nightly, when quiet
+    public void repairReferenceCounts() {
+        long start = System.currentTimeMillis();
+        try {
+            int counts = this.allocationService.recountReferences();
+            if (log.isInfoEnabled()) {
+                log.info(String.format("Recounted %d references in %dms", counts, System.currentTimeMillis() - start));
+            }
+        } catch (RuntimeException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Failed to recount references", e);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getClearedAllocationCount()
+     */
+    @Override
+    public long getClearedAllocationCount() {
+        return this.allocations.cleared.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getClearedAllocationFileCount()
+     */
+    @Override
+    public long getClearedAllocationFileCount() {
+        return this.allocationFiles.cleared.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getAllocationThroughputPerMinute()
+     */
+    @Override
+    public double getAllocationThroughputPerMinute() {
+        return this.allocations.perMinute();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getAllocationFileThroughputPerMinute()
+     */
+    @Override
+    public double getAllocationFileThroughputPerMinute() {
+        return this.allocationFiles.perMinute();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getAllocationBacklog()
+     */
+    @Override
+    @Transactional(readOnly=true)
+    public long getAllocationBacklog() {
+        return this.allocationDAO.countExpired();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getAllocationFileBacklog()
+     */
+    @Override
+    @Transactional(readOnly=true)
+    public long getAllocationFileBacklog() {
+        return this.allocationFileDAO.countExpired();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getAllocationLagMillis()
+     */
+    @Override
+    @Transactional(readOnly=true)
+    public long getAllocationLagMillis() {
+        return lagSince(this.allocationDAO.retrieveOldestExpiry());
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.ReaperService#getAllocationFileLagMillis()
+     */
+    @Override
+    @Transactional(readOnly=true)
+    public long getAllocationFileLagMillis() {
+        return lagSince(this.allocationFileDAO.retrieveOldestExpiry());
+    }
+
+    @Configured
+    public void configure(@Configured final ReaperServiceDocument.ReaperService config) {
+        int threads = DEFAULT_THREADS;
+        if (config.isSetThreads()) {
+            threads = Math.max(1, config.getThreads());
+        }
+        if (config.isSetAllocationBatchSize()) {
+            this.maxAllocationCount = Math.max(1, config.getAllocationBatchSize());
+        }
+        if (config.isSetAllocationFileBatchSize()) {
+            this.maxAllocationFileCount = Math.max(1, config.getAllocationFileBatchSize());
+        }
+        if (config.isSetNodeId()) {
+            this.nodeId = config.getNodeId();
+        }
+        if (config.isSetLeaseDuration()) {
+            this.leaseMillis = (int) TimeUnit.SECONDS.toMillis(Math.max(1, config.getLeaseDuration()));
+        }
+        if (config.isSetExpiryWindow()) {
+            this.expiryWindowMillis = TimeUnit.HOURS.toMillis(Math.max(0, config.getExpiryWindow()));
+        }
+        synchronized (this.executor) {
+            // The maximum can never be less than the core size
+            if (threads > this.executor.getMaximumPoolSize()) {
+                this.executor.setMaximumPoolSize(threads);
+                this.executor.setCorePoolSize(threads);
+            } else {
+                this.executor.setCorePoolSize(threads);
+                this.executor.setMaximumPoolSize(threads);
+            }
+        }
+        this.threads = threads;
+    }
+
+    @PostConstruct
+    public void start() {
+        this.expiryScheduler.start(new ExpiryScheduler.ExpiryListener() {
+            @Override
+            public void allocationsDue() {
+                dispatch(ReaperServiceImpl.this.allocationsDue, new Runnable() {
+                    @Override
+                    public void run() {
+                        clearAllocations();
+                    }
+                });
+            }
+            @Override
+            public void allocationFilesDue() {
+                dispatch(ReaperServiceImpl.this.allocationFilesDue, new Runnable() {
+                    @Override
+                    public void run() {
+                        clearAllocationFiles();
+                    }
+                });
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.expiryScheduler.stop();
+        this.dispatcher.shutdownNow();
+        this.executor.shutdownNow();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS) && log.isWarnEnabled()) {
+                log.warn("Reaper threads did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.reaperLeaseManager.release(this.nodeId);
+        } catch (RuntimeException e) {
+            // The leases will lapse instead
+            if (log.isWarnEnabled()) {
+                log.warn(String.format("Failed to release the reaper leases of node '%s'", this.nodeId), e);
+            }
+        }
+    }
+
+    /**
+     * @return the id of this node amongst those sharing the reaper leases.
+     */
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * Rebalance the leases, then run one worker per thread and wait for them all to run out of work.
+     */
+    private void reap(final Throughput throughput, final Batch batch) {
+        int leaseMillis = this.leaseMillis;
+        List<Integer> slots = this.reaperLeaseManager.acquire(this.nodeId, leaseMillis);
+        if (slots.isEmpty()) {
+            // Other nodes have all the work
+            return;
+        }
+        // Stop with half the lease to spare, so no other node can take over the slots while a batch is running
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis / 2);
+        int workers = this.threads;
+        List<Callable<Void>> tasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(new Worker(throughput, batch, slots, deadline));
+        }
+        try {
+            this.executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a run, unless one is already waiting to start (which will pick up whatever has come due since).
+     */
+    private void dispatch(final AtomicBoolean pending, final Runnable run) {
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+        this.dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                pending.set(false);
+                try {
+                    run.run();
+                } catch (RuntimeException e) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Failed to clear expired items", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private static long lagSince(final Date oldestExpiry) {
+        if (oldestExpiry == null) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - oldestExpiry.getTime());
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        // Distinguishes several instances on one host
+        String suffix = UUID.randomUUID().toString().substring(0, 8);
+        if (host.length() > 55) {
+            host = host.substring(0, 55);
+        }
+        return host + "-" + suffix;
+    }
+
+    private interface Batch {
+        /**
+         * @param slots the reaper lease slots to clear items from.
+         * @return the number of items cleared.
+         */
+        int clear(List<Integer> slots);
+    }
+
+    private static class Worker implements Callable<Void> {
+
+        private final Throughput throughput;
+
+        private final Batch batch;
+
+        private final List<Integer> slots;
+
+        private final long deadline;
+
+        Worker(final Throughput throughput, final Batch batch, final List<Integer> slots, final long deadline) {
+            this.throughput = throughput;
+            this.batch = batch;
+            this.slots = slots;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Void call() {
+            int cleared;
+            do {
+                long start = System.nanoTime();
+                try {
+                    cleared = this.batch.clear(this.slots);
+                } catch (RuntimeException e) {
+                    // Leave the rest until next time rather than retrying the same rows straight away.
+                    if (log.isWarnEnabled()) {
+                        log.warn("Failed to clear expired batch", e);
+                    }
+                    return null;
+                }
+                this.throughput.record(cleared, System.nanoTime() - start);
+                // Keep looping until there are no more entries to expire
+            } while (cleared > 0
+                    && System.nanoTime() - this.deadline < 0
+                    && !Thread.currentThread().isInterrupted());
+            return null;
+        }
+    }
+
+    private static class Throughput {
+
+        private final AtomicLong cleared = new AtomicLong();
+
+        /**
+         * Total time spent clearing batches, across all threads.
+         */
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        void record(final int count, final long nanos) {
+            this.cleared.addAndGet(count);
+            this.busyNanos.addAndGet(nanos);
+        }
+
+        double perMinute() {
+            long nanos = this.busyNanos.get();
+            if (nanos == 0) {
+                return 0;
             }
-            // Keep looping until there are no more entries to expire
-        } while (!allocationList.isEmpty());
+            return this.cleared.get() * (double) TimeUnit.MINUTES.toNanos(1) / nanos;
+        }
     }
 }
@@ -5,12 +5,11 @@ package org.brekka.pegasus.core.services.impl;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
-import org.apache.commons.io.FileUtils;
+import javax.annotation.PreDestroy;
+
 import org.apache.commons.lang3.text.StrSubstitutor;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,9 +17,10 @@ import org.brekka.paveway.core.model.ByteSequence;
 import org.brekka.paveway.core.services.ResourceStorageService;
 import org.brekka.pegasus.core.PegasusErrorCode;
 import org.brekka.pegasus.core.PegasusException;
+import org.brekka.xml.pegasus.v2.config.ResourceStorageServiceDocument;
 import org.brekka.stillingar.api.annotations.ConfigurationListener;
 import org.brekka.stillingar.api.annotations.Configured;
-import org.joda.time.LocalDate;
+import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Service;
 
 /**
@@ -30,13 +30,38 @@ import org.springframework.stereotype.Service;
  */
 @Configured
 @Service
+@Primary
 public class ResourceStorageServiceFileSystemImpl implements ResourceStorageService {
 
 
     private static final Log log = LogFactory.getLog(ResourceStorageServiceFileSystemImpl.class);
 
+    /**
+     * Read buffer size used for retrieved resources when not configured.
+     */
+    private static final int DEFAULT_READ_BUFFER_SIZE = (1 << 16);
+
+    private static final int DEFAULT_WRITE_BUFFER_SIZE = (1 << 13);
+
     private File rootFile;
 
+    /**
+     * Shared by all allocated sequences so that concurrent uploads share directory syncs.
+     */
+    private final GroupCommitSync groupCommitSync = new GroupCommitSync();
+
+    private ResourceStorageServiceDocument.ResourceStorageService config;
+
+    /**
+     * The shard directories known to exist beneath the root
+     */
+    private volatile ShardDirectories shardDirectories;
+
+    /**
+     * Removed files are handed to this to be overwritten and deleted in the background.
+     */
+    private volatile FileShredder shredder;
+
     /* (non-Javadoc)
      * @see org.brekka.paveway.core.services.ResourceStorageService#allocate(java.util.UUID)
      */
@@ -47,7 +72,7 @@ public class ResourceStorageServiceFileSystemImpl implements ResourceStorageServ
             throw new PegasusException(PegasusErrorCode.PG100,
                     "There is already a file with the id '%s'", id);
         }
-        return new FileSystemByteSequence(id, file, true);
+        return new FileSystemByteSequence(id, file, true, DEFAULT_WRITE_BUFFER_SIZE, false, this.groupCommitSync);
     }
 
     /* (non-Javadoc)
@@ -60,7 +85,16 @@ public class ResourceStorageServiceFileSystemImpl implements ResourceStorageServ
             throw new PegasusException(PegasusErrorCode.PG100,
                     "No file found with the id '%s'", id);
         }
-        return new FileSystemByteSequence(id, file, false);
+        int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+        boolean directReadBuffer = false;
+        ResourceStorageServiceDocument.ResourceStorageService config = this.config;
+        if (config != null) {
+            if (config.isSetReadBufferSize()) {
+                readBufferSize = config.getReadBufferSize();
+            }
+            directReadBuffer = config.isSetDirectReadBuffer() && config.getDirectReadBuffer();
+        }
+        return new FileSystemByteSequence(id, file, false, readBufferSize, directReadBuffer);
     }
 
     /* (non-Javadoc)
@@ -69,14 +103,53 @@ public class ResourceStorageServiceFileSystemImpl implements ResourceStorageServ
     @Override
     public void remove(final UUID id) {
         File file = toFile(id);
-        overwrite(file);
-        FileUtils.deleteQuietly(file);
+        this.shredder.shred(file);
     }
 
     @ConfigurationListener
     public void configure(
             @Configured("//c:ResourceStoreDir")
             final String pathIn) {
+        this.rootFile = toRootDir(pathIn);
+        String path = this.rootFile.getPath();
+        if (!this.rootFile.exists()) {
+            this.rootFile.mkdirs();
+        }
+        ShardDirectories shardDirectories = new ShardDirectories(this.rootFile);
+        shardDirectories.load();
+        this.shardDirectories = shardDirectories;
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Initialized resource storage in path '%s' (%d shard directories)",
+                    path, shardDirectories.count()));
+        }
+        preCreateShardDirectories();
+        restartShredder();
+    }
+
+    @ConfigurationListener
+    public void configure(@Configured final ResourceStorageServiceDocument.ResourceStorageService config) {
+        this.config = config;
+        if (this.rootFile != null) {
+            preCreateShardDirectories();
+            restartShredder();
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (this.shredder != null) {
+            // Left in place, anything removed from now on stays in the journal until the next start
+            this.shredder.shutdown();
+        }
+    }
+
+    /**
+     * Resolve the configured store location to a directory.
+     *
+     * @param pathIn the path, optionally prefixed with 'file:' and containing system property references.
+     * @return the root directory of the store
+     */
+    static File toRootDir(final String pathIn) {
         String path = pathIn;
         if (path.startsWith("file:")) {
             // Remove file prefix
@@ -84,36 +157,56 @@ public class ResourceStorageServiceFileSystemImpl implements ResourceStorageServ
         }
         // Allow system properties to be used.
         path = StrSubstitutor.replaceSystemProperties(path);
-        this.rootFile = new File(path);
-        if (!this.rootFile.exists()) {
-            this.rootFile.mkdirs();
+        return new File(path);
+    }
+
+    /**
+     * Create all shard directories up front if so configured, so none need to be created later.
+     */
+    protected void preCreateShardDirectories() {
+        if (this.config == null
+                || !this.config.isSetPreCreateShardDirectories()
+                || !this.config.getPreCreateShardDirectories()) {
+            return;
         }
-        if (log.isInfoEnabled()) {
-            log.info(String.format("Initialized resource storage in path '%s'", path));
+        ShardDirectories shardDirectories = this.shardDirectories;
+        if (shardDirectories.count() < ShardDirectories.SHARDS) {
+            shardDirectories.createAll();
         }
     }
 
-    protected File toFile(final UUID uuid) {
-        String idStr = uuid.toString();
-
-        String part1 = idStr.substring(0, 2);
-        File dir1 = new File(this.rootFile, part1);
-        if (!dir1.exists()) {
-            dir1.mkdir();
-            // Reduce information leakage by setting modified timestamp to the beginning of the day
-            // The reason for not setting to the epoch is so that incremental backups can still be performed.
-            dir1.setLastModified(LocalDate.now().toDate().getTime());
+    /**
+     * Replace the shredder with one using the current settings. The new one is in place before the old one stops, so
+     * removals are never without a shredder. Files queued on the old one remain in the journal and are picked up by
+     * the new one.
+     */
+    protected synchronized void restartShredder() {
+        int threads = FileShredder.DEFAULT_THREADS;
+        int chunkSize = FileShredder.DEFAULT_CHUNK_SIZE;
+        long maxBytesPerSecond = 0;
+        if (this.config != null && this.config.isSetShredder()) {
+            ResourceStorageServiceDocument.ResourceStorageService.Shredder shredderConfig = this.config.getShredder();
+            if (shredderConfig.isSetThreads()) {
+                threads = shredderConfig.getThreads();
+            }
+            if (shredderConfig.isSetChunkSize()) {
+                chunkSize = shredderConfig.getChunkSize();
+            }
+            if (shredderConfig.isSetMaxBytesPerSecond()) {
+                maxBytesPerSecond = shredderConfig.getMaxBytesPerSecond();
+            }
         }
-
-        String part2 = idStr.substring(2, 4);
-        File dir2 = new File(dir1, part2);
-        if (!dir2.exists()) {
-            dir2.mkdir();
-            // Reduce information leakage by setting modified timestamp to the beginning of the day
-            // The reason for not setting to the epoch is so that incremental backups can still be performed.
-            dir2.setLastModified(LocalDate.now().toDate().getTime());
+        FileShredder shredder = new FileShredder(this.rootFile, threads, chunkSize, maxBytesPerSecond);
+        FileShredder previous = this.shredder;
+        this.shredder = shredder;
+        if (previous != null) {
+            previous.shutdown();
         }
-        return new File(dir2, idStr);
+        shredder.recover();
+    }
+
+    protected File toFile(final UUID uuid) {
+        return this.shardDirectories.toFile(uuid);
     }
 
     /**
@@ -124,14 +217,8 @@ public class ResourceStorageServiceFileSystemImpl implements ResourceStorageServ
      * @param file
      */
     static void overwrite(final File file) {
-        try (RandomAccessFile rwFile = new RandomAccessFile(file, "rw");
-               FileChannel rwChannel = rwFile.getChannel()) {
-            long size = rwChannel.size();
-            MappedByteBuffer buffer = rwChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
-            for (int i = 0; i < size; i++) {
-                buffer.put((byte) 0);
-            }
-            buffer.force();
+        try {
+            FileShredder.overwrite(file, ByteBuffer.allocateDirect(FileShredder.DEFAULT_CHUNK_SIZE), null);
         } catch (IOException e) {
             throw new PegasusException(PegasusErrorCode.PG100,
                     "Failed to overwrite the file '%s' with zeros", file);
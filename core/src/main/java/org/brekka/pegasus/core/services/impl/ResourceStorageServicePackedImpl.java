@@ -0,0 +1,851 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.brekka.paveway.core.model.ByteSequence;
+import org.brekka.paveway.core.services.ResourceStorageService;
+import org.brekka.pegasus.core.PegasusErrorCode;
+import org.brekka.pegasus.core.PegasusException;
+import org.brekka.stillingar.api.annotations.ConfigurationListener;
+import org.brekka.stillingar.api.annotations.Configured;
+import org.brekka.xml.pegasus.v2.config.ResourceStorageServiceDocument;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Resource store for small items, which are appended to large segment files rather than each occupying a file of
+ * their own. Anything larger than the configured threshold (or everything, if packing is not enabled) is passed
+ * through to {@link ResourceStorageServiceFileSystemImpl}.
+ *
+ * Each record in a segment carries a header identifying the resource, so the in-memory offset index can be rebuilt
+ * by scanning the segments at startup. Removed records are zeroed in place and segments that become mostly empty
+ * are compacted in the background. Compaction copies records before the old segment is removed, so after a crash the
+ * same record can be found twice. The later copy is kept and the earlier one erased when the index is rebuilt.
+ *
+ * As the index is only held in memory, the segments can only be used by one node. The first to open the pack
+ * directory holds a lock on it. Other nodes pass everything through to the file system store, and fail to start if
+ * packing is enabled for them.
+ *
+ * When packing is not configured, new items go to the file system store. Segments written before are still read.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Configured
+@Service("packedResourceStorageService")
+public class ResourceStorageServicePackedImpl implements ResourceStorageService {
+
+    private static final Log log = LogFactory.getLog(ResourceStorageServicePackedImpl.class);
+
+    /**
+     * Name of the directory (relative to the store root) holding the segment files.
+     */
+    static final String PACK_DIR = "packs";
+
+    private static final String SEGMENT_SUFFIX = ".pack";
+
+    /**
+     * Held by the node using the segments.
+     */
+    private static final String LOCK_FILE = ".lock";
+
+    private static final int RECORD_MAGIC = 0x504B5231;
+
+    /**
+     * magic(4) status(1) reserved(3) id(16) length(4) crc(4)
+     */
+    private static final int HEADER_SIZE = 32;
+
+    private static final int STATUS_OFFSET = 4;
+
+    private static final byte LIVE = 1;
+
+    private static final byte DELETED = 0;
+
+    private static final int DEFAULT_THRESHOLD = 16 * 1024;
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Segments with less than this proportion of live data are compacted.
+     */
+    private static final double COMPACTION_RATIO = 0.5;
+
+    /**
+     * Records appended since a segment was last mapped are read through its channel until there are at least this
+     * many bytes of them, which limits the number of mappings per segment.
+     */
+    static final int REMAP_STEP = 1024 * 1024;
+
+    @Autowired
+    private ResourceStorageServiceFileSystemImpl fileSystemStorage;
+
+    private final ConcurrentMap<UUID, Location> index = new ConcurrentHashMap<>();
+
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Held for read while accessing a record, for write while segments are removed.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Object appendLock = new Object();
+
+    /**
+     * The segment being appended to, guarded by appendLock
+     */
+    private Segment active;
+
+    private volatile File packDir;
+
+    /**
+     * Lock on the pack directory, held while the segments are open.
+     */
+    private FileLock packLock;
+
+    /**
+     * Set when the pack directory is in use by another node.
+     */
+    private volatile boolean lockedOut;
+
+    /**
+     * Items up to this size are packed. Zero when packing is disabled.
+     */
+    private volatile int threshold;
+
+    private volatile int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /* (non-Javadoc)
+     * @see org.brekka.paveway.core.services.ResourceStorageService#allocate(java.util.UUID)
+     */
+    @Override
+    public ByteSequence allocate(final UUID id) {
+        int threshold = this.threshold;
+        if (threshold <= 0 || this.packDir == null) {
+            return this.fileSystemStorage.allocate(id);
+        }
+        if (this.index.containsKey(id)) {
+            throw new PegasusException(PegasusErrorCode.PG100,
+                    "There is already a packed item with the id '%s'", id);
+        }
+        return new PendingSequence(id, threshold);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.paveway.core.services.ResourceStorageService#retrieve(java.util.UUID)
+     */
+    @Override
+    public ByteSequence retrieve(final UUID id) {
+        this.lock.readLock().lock();
+        try {
+            Location location = this.index.get(id);
+            if (location != null) {
+                return new PackedSequence(id, location.read());
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return this.fileSystemStorage.retrieve(id);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.paveway.core.services.ResourceStorageService#remove(java.util.UUID)
+     */
+    @Override
+    public void remove(final UUID id) {
+        this.lock.readLock().lock();
+        try {
+            Location location = this.index.remove(id);
+            if (location != null) {
+                location.erase();
+                return;
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        this.fileSystemStorage.remove(id);
+    }
+
+    @ConfigurationListener
+    public void configure(
+            @Configured("//c:ResourceStoreDir")
+            final String pathIn) {
+        File packDir = new File(ResourceStorageServiceFileSystemImpl.toRootDir(pathIn), PACK_DIR);
+        if (packDir.equals(this.packDir)) {
+            return;
+        }
+        this.lock.writeLock().lock();
+        try {
+            synchronized (this.appendLock) {
+                close();
+                open(packDir);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @ConfigurationListener
+    public void configure(@Configured final ResourceStorageServiceDocument.ResourceStorageService config) {
+        int threshold = 0;
+        int segmentSize = DEFAULT_SEGMENT_SIZE;
+        if (config != null && config.isSetPacking()) {
+            ResourceStorageServiceDocument.ResourceStorageService.Packing packing = config.getPacking();
+            threshold = (packing.isSetThreshold() ? packing.getThreshold() : DEFAULT_THRESHOLD);
+            if (packing.isSetSegmentSize()) {
+                segmentSize = packing.getSegmentSize();
+            }
+        }
+        configurePacking(threshold, segmentSize);
+    }
+
+    /**
+     * @param threshold items up to this size are packed, zero to disable packing.
+     * @param segmentSize the size at which a new segment is started.
+     */
+    void configurePacking(final int threshold, final int segmentSize) {
+        if (threshold > 0 && this.lockedOut) {
+            throw new PegasusException(PegasusErrorCode.PG100,
+                    "Packing cannot be enabled, the pack directory is in use by another node");
+        }
+        this.segmentSize = segmentSize;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Rewrite the live records of mostly empty segments into the active segment, then securely remove the old
+     * segments.
+     */
+    @Scheduled(fixedDelay=300000)
+    public void compact() {
+        Segment active;
+        synchronized (this.appendLock) {
+            active = this.active;
+        }
+        for (Segment segment : this.segments.values()) {
+            if (segment != active
+                    && segment.live.get() < segment.size * COMPACTION_RATIO) {
+                try {
+                    compact(segment);
+                } catch (IOException | RuntimeException e) {
+                    if (log.isErrorEnabled()) {
+                        log.error(String.format("Failed to compact segment '%s'", segment.file), e);
+                    }
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.lock.writeLock().lock();
+        try {
+            synchronized (this.appendLock) {
+                close();
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    protected void compact(final Segment segment) throws IOException {
+        Map<UUID, Location[]> moves = new LinkedHashMap<>();
+        for (Entry<UUID, Location> entry : this.index.entrySet()) {
+            Location current = entry.getValue();
+            if (current.segment != segment) {
+                continue;
+            }
+            // Keeps the segment open while copying
+            this.lock.readLock().lock();
+            try {
+                if (this.index.get(entry.getKey()) != current) {
+                    // Removed in the meantime
+                    continue;
+                }
+                Location moved = append(entry.getKey(), current.read());
+                moves.put(entry.getKey(), new Location[] { current, moved });
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+        this.lock.writeLock().lock();
+        try {
+            for (Entry<UUID, Location[]> entry : moves.entrySet()) {
+                Location[] move = entry.getValue();
+                if (!this.index.replace(entry.getKey(), move[0], move[1])) {
+                    // Removed while being copied
+                    move[1].erase();
+                }
+            }
+            this.segments.remove(segment.number);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        segment.channel.close();
+        ResourceStorageServiceFileSystemImpl.overwrite(segment.file);
+        if (!segment.file.delete() && log.isWarnEnabled()) {
+            log.warn(String.format("Failed to delete compacted segment '%s'", segment.file));
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Compacted segment '%s', %d live records moved", segment.file, moves.size()));
+        }
+    }
+
+    protected Location append(final UUID id, final byte[] data) throws IOException {
+        synchronized (this.appendLock) {
+            Segment segment = this.active;
+            if (segment == null
+                    || (segment.size > 0 && (long) segment.size + HEADER_SIZE + data.length > this.segmentSize)) {
+                long number = (this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1);
+                segment = new Segment(number, new File(this.packDir, String.format("%08d%s", number, SEGMENT_SUFFIX)));
+                this.segments.put(number, segment);
+                this.active = segment;
+            }
+            return segment.append(id, data);
+        }
+    }
+
+    /**
+     * Lock the directory and load its segments, rebuilding the index.
+     */
+    private void open(final File packDir) {
+        if (!packDir.exists()) {
+            packDir.mkdirs();
+        }
+        if (!lock(packDir)) {
+            if (this.threshold > 0) {
+                throw new PegasusException(PegasusErrorCode.PG100,
+                        "The pack directory '%s' is in use by another node, packing is single node only", packDir);
+            }
+            if (log.isWarnEnabled()) {
+                log.warn(String.format("The pack directory '%s' is in use by another node, "
+                        + "items packed there are not available to this one", packDir));
+            }
+            this.lockedOut = true;
+            return;
+        }
+        this.lockedOut = false;
+        File[] files = packDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File o1, final File o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        Segment last = null;
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            String name = file.getName();
+            try {
+                long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(number, file);
+                segment.load(this.index, i == files.length - 1);
+                this.segments.put(number, segment);
+                last = segment;
+            } catch (NumberFormatException | IOException e) {
+                throw new PegasusException(PegasusErrorCode.PG100, e,
+                        "Failed to load the resource segment '%s'", file);
+            }
+        }
+        this.active = last;
+        this.packDir = packDir;
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Loaded %d packed resources from %d segments in '%s'",
+                    this.index.size(), this.segments.size(), packDir));
+        }
+    }
+
+    /**
+     * @return true if this instance now holds the lock on the directory.
+     */
+    private boolean lock(final File packDir) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(new File(packDir, LOCK_FILE).toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            FileLock fileLock;
+            try {
+                fileLock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Held by another instance in this JVM
+                fileLock = null;
+            }
+            if (fileLock == null) {
+                channel.close();
+                return false;
+            }
+            this.packLock = fileLock;
+            return true;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new PegasusException(PegasusErrorCode.PG100, e,
+                    "Failed to lock the pack directory '%s'", packDir);
+        }
+    }
+
+    private void close() {
+        if (this.packLock != null) {
+            try {
+                this.packLock.release();
+                this.packLock.channel().close();
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn(String.format("Failed to release the lock on '%s'", this.packDir), e);
+                }
+            }
+            this.packLock = null;
+        }
+        for (Segment segment : this.segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn(String.format("Failed to close segment '%s'", segment.file), e);
+                }
+            }
+        }
+        this.segments.clear();
+        this.index.clear();
+        this.active = null;
+        this.packDir = null;
+    }
+
+    private static int crc(final ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] copy = new byte[data.remaining()];
+            data.duplicate().get(copy);
+            crc.update(copy);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Position of a record within a segment
+     */
+    private static final class Location {
+
+        private final Segment segment;
+
+        /**
+         * Offset of the record header
+         */
+        private final int offset;
+
+        private final int length;
+
+        Location(final Segment segment, final int offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        byte[] read() {
+            return this.segment.read(this.offset + HEADER_SIZE, this.length);
+        }
+
+        /**
+         * Mark the record as deleted and overwrite its content with zeros.
+         */
+        void erase() {
+            try {
+                FileChannel channel = this.segment.channel;
+                channel.write(ByteBuffer.wrap(new byte[] { DELETED }), this.offset + STATUS_OFFSET);
+                ByteBuffer zeros = ByteBuffer.allocate(this.length);
+                long position = this.offset + HEADER_SIZE;
+                while (zeros.hasRemaining()) {
+                    position += channel.write(zeros, position);
+                }
+                channel.force(false);
+                this.segment.live.addAndGet(-(HEADER_SIZE + this.length));
+            } catch (IOException e) {
+                throw new PegasusException(PegasusErrorCode.PG100, e,
+                        "Failed to erase packed record at %d in '%s'", this.offset, this.segment.file);
+            }
+        }
+    }
+
+    /**
+     * Append-only file of records.
+     */
+    private static final class Segment {
+
+        private final long number;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        /**
+         * Bytes of valid records, new records are appended here.
+         */
+        private volatile int size;
+
+        /**
+         * Bytes of records not yet removed
+         */
+        private final AtomicLong live = new AtomicLong();
+
+        /**
+         * Read-only mappings of consecutive parts of the segment, keyed on their start offset. Each begins and ends on
+         * a record boundary, so no record spans two. Guarded by this.
+         */
+        private final TreeMap<Integer, MappedByteBuffer> mappings = new TreeMap<>();
+
+        /**
+         * End of the last mapping, guarded by this.
+         */
+        private int mappedEnd;
+
+        Segment(final long number, final File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            this.size = (int) this.channel.size();
+        }
+
+        /**
+         * Scan the records of this segment, adding the live ones to the index. The content of the records is only
+         * verified for the last segment, as that is the only one that could contain a partially written record.
+         * Segments must be loaded in order, so that a record copied by an interrupted compaction replaces the
+         * original, which is then erased.
+         */
+        void load(final Map<UUID, Location> index, final boolean verify) throws IOException {
+            MappedByteBuffer view = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+            int position = 0;
+            this.live.set(0);
+            while (position + HEADER_SIZE <= this.size) {
+                view.position(position);
+                if (view.getInt() != RECORD_MAGIC) {
+                    break;
+                }
+                byte status = view.get();
+                view.position(position + 8);
+                UUID id = new UUID(view.getLong(), view.getLong());
+                int length = view.getInt();
+                int crc = view.getInt();
+                int end = position + HEADER_SIZE + length;
+                if (length < 0 || end > this.size || end < 0) {
+                    break;
+                }
+                if (status == LIVE) {
+                    if (verify) {
+                        ByteBuffer data = view.duplicate();
+                        data.position(position + HEADER_SIZE);
+                        data.limit(end);
+                        if (crc(data) != crc) {
+                            break;
+                        }
+                    }
+                    this.live.addAndGet(HEADER_SIZE + length);
+                    Location previous = index.put(id, new Location(this, position, length));
+                    if (previous != null) {
+                        previous.erase();
+                    }
+                }
+                position = end;
+            }
+            if (position < this.size) {
+                if (log.isWarnEnabled()) {
+                    log.warn(String.format("Truncating segment '%s' from %d to %d bytes, the remainder is incomplete",
+                            this.file, this.size, position));
+                }
+                this.channel.truncate(position);
+                this.size = position;
+                // Remap rather than keep a mapping beyond the end of the file
+                view = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+            }
+            synchronized (this) {
+                this.mappings.clear();
+                if (position > 0) {
+                    this.mappings.put(0, view);
+                }
+                this.mappedEnd = position;
+            }
+        }
+
+        Location append(final UUID id, final byte[] data) throws IOException {
+            ByteBuffer content = ByteBuffer.wrap(data);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(RECORD_MAGIC);
+            header.put(LIVE);
+            header.position(8);
+            header.putLong(id.getMostSignificantBits());
+            header.putLong(id.getLeastSignificantBits());
+            header.putInt(data.length);
+            header.putInt(crc(content));
+            header.flip();
+            int offset = this.size;
+            long position = offset;
+            while (header.hasRemaining()) {
+                position += this.channel.write(header, position);
+            }
+            while (content.hasRemaining()) {
+                position += this.channel.write(content, position);
+            }
+            this.channel.force(false);
+            this.size = (int) position;
+            this.live.addAndGet(HEADER_SIZE + data.length);
+            return new Location(this, offset, data.length);
+        }
+
+        /**
+         * Copy bytes of a record out of the segment.
+         */
+        byte[] read(final int position, final int length) {
+            byte[] data = new byte[length];
+            try {
+                ByteBuffer view = view(position, position + length);
+                if (view != null) {
+                    view.get(data);
+                } else {
+                    ByteBuffer dst = ByteBuffer.wrap(data);
+                    long current = position;
+                    while (dst.hasRemaining()) {
+                        int read = this.channel.read(dst, current);
+                        if (read == -1) {
+                            throw new IOException("Reached the end of the segment");
+                        }
+                        current += read;
+                    }
+                }
+            } catch (IOException e) {
+                throw new PegasusException(PegasusErrorCode.PG101, e,
+                        "Failed to read %d bytes at %d from the resource segment '%s'", length, position, this.file);
+            }
+            return data;
+        }
+
+        /**
+         * Find the mapping covering a range, first mapping anything appended since the last mapping if there is
+         * enough of it.
+         *
+         * @return a view of the range, or null if it has not been mapped yet.
+         */
+        synchronized ByteBuffer view(final int start, final int end) throws IOException {
+            int size = this.size;
+            if (end > this.mappedEnd
+                    && size - this.mappedEnd >= REMAP_STEP) {
+                this.mappings.put(this.mappedEnd,
+                        this.channel.map(FileChannel.MapMode.READ_ONLY, this.mappedEnd, size - this.mappedEnd));
+                this.mappedEnd = size;
+            }
+            if (end > this.mappedEnd) {
+                return null;
+            }
+            Entry<Integer, MappedByteBuffer> mapping = this.mappings.floorEntry(start);
+            ByteBuffer view = mapping.getValue().duplicate();
+            view.limit(end - mapping.getKey());
+            view.position(start - mapping.getKey());
+            return view;
+        }
+    }
+
+    /**
+     * Sequence being written. Buffered in memory until it either exceeds the threshold, at which point it is
+     * passed on to the file system store, or is persisted into the active segment.
+     */
+    private class PendingSequence implements ByteSequence {
+
+        private final UUID id;
+
+        private final int threshold;
+
+        private ByteArrayOutputStream buffer;
+
+        private ByteSequence spilled;
+
+        PendingSequence(final UUID id, final int threshold) {
+            this.id = id;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public UUID getId() {
+            return this.id;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            this.buffer = new ByteArrayOutputStream();
+            return new OutputStream() {
+                private OutputStream spillStream;
+
+                @Override
+                public void write(final int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    if (this.spillStream == null
+                            && PendingSequence.this.buffer.size() + len > PendingSequence.this.threshold) {
+                        PendingSequence.this.spilled =
+                                ResourceStorageServicePackedImpl.this.fileSystemStorage.allocate(PendingSequence.this.id);
+                        this.spillStream = PendingSequence.this.spilled.getOutputStream();
+                        PendingSequence.this.buffer.writeTo(this.spillStream);
+                        PendingSequence.this.buffer = null;
+                    }
+                    if (this.spillStream != null) {
+                        this.spillStream.write(b, off, len);
+                    } else {
+                        PendingSequence.this.buffer.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (this.spillStream != null) {
+                        this.spillStream.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (this.spillStream != null) {
+                        this.spillStream.close();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            if (this.spilled != null) {
+                return this.spilled.getInputStream();
+            }
+            return new ByteArrayInputStream(this.buffer != null ? this.buffer.toByteArray() : new byte[0]);
+        }
+
+        @Override
+        public void persist() {
+            if (this.spilled != null) {
+                this.spilled.persist();
+                return;
+            }
+            byte[] data = (this.buffer != null ? this.buffer.toByteArray() : new byte[0]);
+            try {
+                ResourceStorageServicePackedImpl.this.lock.readLock().lock();
+                try {
+                    Location location = append(this.id, data);
+                    ResourceStorageServicePackedImpl.this.index.put(this.id, location);
+                } finally {
+                    ResourceStorageServicePackedImpl.this.lock.readLock().unlock();
+                }
+            } catch (IOException e) {
+                throw new PegasusException(PegasusErrorCode.PG100, e,
+                        "Failed to persist data for resource id '%s'", this.id);
+            }
+            this.buffer = null;
+        }
+
+        @Override
+        public void discard() {
+            if (this.spilled != null) {
+                this.spilled.discard();
+            }
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * A packed item, already read from its segment.
+     */
+    private static class PackedSequence implements ByteSequence {
+
+        private final UUID id;
+
+        private final byte[] data;
+
+        PackedSequence(final UUID id, final byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        @Override
+        public UUID getId() {
+            return this.id;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new PegasusException(PegasusErrorCode.PG100,
+                    "The packed resource '%s' cannot be modified", this.id);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(this.data);
+        }
+
+        @Override
+        public void persist() {
+            // Already persisted
+        }
+
+        @Override
+        public void discard() {
+            // Nothing to discard
+        }
+    }
+}
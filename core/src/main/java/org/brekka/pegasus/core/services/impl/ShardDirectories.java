@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.brekka.pegasus.core.PegasusErrorCode;
+import org.brekka.pegasus.core.PegasusException;
+import org.joda.time.LocalDate;
+
+/**
+ * Tracks which of the 256x256 shard directories of the resource store exist, so that resolving the location of a
+ * resource is a purely in-memory operation. The store is sharded on the first four hex digits of the resource id,
+ * two per directory level.
+ *
+ * Populated from the file system at startup; directories are only touched when a shard is used for the first time.
+ * Assumes that shard directories are not removed while the application is running.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class ShardDirectories {
+
+    static final int SHARDS = 256 * 256;
+
+    private static final String[] HEX = new String[256];
+
+    static {
+        for (int i = 0; i < HEX.length; i++) {
+            HEX[i] = String.format("%02x", i);
+        }
+    }
+
+    private final File rootDir;
+
+    /**
+     * One bit per top-level directory.
+     */
+    private final AtomicLongArray parents = new AtomicLongArray(256 / 64);
+
+    /**
+     * One bit per shard (second level) directory.
+     */
+    private final AtomicLongArray shards = new AtomicLongArray(SHARDS / 64);
+
+    ShardDirectories(final File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    /**
+     * Record the shard directories that already exist.
+     */
+    void load() {
+        for (int i = 0; i < HEX.length; i++) {
+            File parent = new File(this.rootDir, HEX[i]);
+            String[] children = parent.list();
+            if (children == null) {
+                continue;
+            }
+            set(this.parents, i);
+            for (String child : children) {
+                int j = parseHex(child);
+                if (j != -1 && new File(parent, child).isDirectory()) {
+                    set(this.shards, (i << 8) | j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create every shard directory that does not yet exist.
+     */
+    void createAll() {
+        for (int shard = 0; shard < SHARDS; shard++) {
+            ensure(shard);
+        }
+    }
+
+    /**
+     * @return the number of shard directories known to exist.
+     */
+    int count() {
+        int count = 0;
+        for (int i = 0; i < this.shards.length(); i++) {
+            count += Long.bitCount(this.shards.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Resolve the file for the specified id, creating its shard directory if this is the first time it is used.
+     */
+    File toFile(final UUID id) {
+        int shard = (int) (id.getMostSignificantBits() >>> 48);
+        ensure(shard);
+        return new File(shardDir(shard), id.toString());
+    }
+
+    private File shardDir(final int shard) {
+        return new File(new File(this.rootDir, HEX[shard >>> 8]), HEX[shard & 0xFF]);
+    }
+
+    private void ensure(final int shard) {
+        if (isSet(this.shards, shard)) {
+            return;
+        }
+        synchronized (this) {
+            if (isSet(this.shards, shard)) {
+                return;
+            }
+            int parentIdx = shard >>> 8;
+            if (!isSet(this.parents, parentIdx)) {
+                mkdir(new File(this.rootDir, HEX[parentIdx]));
+                set(this.parents, parentIdx);
+            }
+            mkdir(shardDir(shard));
+            set(this.shards, shard);
+        }
+    }
+
+    private static void mkdir(final File dir) {
+        if (!dir.mkdir() && !dir.isDirectory()) {
+            throw new PegasusException(PegasusErrorCode.PG100,
+                    "Failed to create the resource store directory '%s'", dir);
+        }
+        // Reduce information leakage by setting modified timestamp to the beginning of the day
+        // The reason for not setting to the epoch is so that incremental backups can still be performed.
+        long stamp = LocalDate.now().toDate().getTime();
+        dir.setLastModified(stamp);
+        // Creating the directory will have modified the parent
+        dir.getParentFile().setLastModified(stamp);
+    }
+
+    private static boolean isSet(final AtomicLongArray bits, final int index) {
+        return (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    private static void set(final AtomicLongArray bits, final int index) {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        long current;
+        do {
+            current = bits.get(word);
+        } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+    }
+
+    private static int parseHex(final String name) {
+        if (name.length() != 2) {
+            return -1;
+        }
+        int high = Character.digit(name.charAt(0), 16);
+        int low = Character.digit(name.charAt(1), 16);
+        if (high == -1 || low == -1 || Character.isUpperCase(name.charAt(0)) || Character.isUpperCase(name.charAt(1))) {
+            return -1;
+        }
+        return (high << 4) | low;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import org.brekka.pegasus.core.utils.EntityUnlockKeyCache;
+import org.brekka.pegasus.core.utils.EntityUnlockKeyCache.EvictionListener;
+import org.brekka.phalanx.api.model.AuthenticatedPrincipal;
+
+/**
+ * How long and how many unlocked keys each member keeps, along with what to do with vault keys that are dropped.
+ * Instances are immutable, so members can tell whether they are up to date by identity alone.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class UnlockKeyPolicy {
+
+    private final int maxEntries;
+
+    private final long idleTimeoutMillis;
+
+    private final EvictionListener<AuthenticatedPrincipal> vaultKeyEvictionListener;
+
+    UnlockKeyPolicy(final int maxEntries, final long idleTimeoutMillis,
+            final EvictionListener<AuthenticatedPrincipal> vaultKeyEvictionListener) {
+        this.maxEntries = maxEntries;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.vaultKeyEvictionListener = vaultKeyEvictionListener;
+    }
+
+    UnlockKeyPolicy(final EvictionListener<AuthenticatedPrincipal> vaultKeyEvictionListener) {
+        this(EntityUnlockKeyCache.DEFAULT_MAX_ENTRIES, EntityUnlockKeyCache.NO_IDLE_TIMEOUT, vaultKeyEvictionListener);
+    }
+
+    int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    long getIdleTimeoutMillis() {
+        return this.idleTimeoutMillis;
+    }
+
+    EvictionListener<AuthenticatedPrincipal> getVaultKeyEvictionListener() {
+        return this.vaultKeyEvictionListener;
+    }
+}
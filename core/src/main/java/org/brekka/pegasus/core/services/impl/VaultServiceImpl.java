@@ -166,7 +166,7 @@ public class VaultServiceImpl extends AbstractKeySafeServiceSupport implements V
     public KeyPair createKeyPair(final Vault vault) {
         AuthenticatedPrincipal authenticatedPrincipal = getVaultKey(vault);
         KeyPair keyPair = authenticatedPrincipal.getDefaultPrivateKey().getKeyPair();
-        KeyPair newKeyPair = phalanxService.generateKeyPair(keyPair, authenticatedPrincipal.getPrincipal());
+        KeyPair newKeyPair = keyPairPool.generateKeyPair(keyPair, authenticatedPrincipal.getPrincipal());
         return newKeyPair;
     }
 
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xmlbeans.XmlObject;
+import org.brekka.pegasus.core.model.Accessor;
+import org.brekka.pegasus.core.model.AccessorContext;
+import org.brekka.pegasus.core.model.XmlEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Retains parsed XML entity beans by entity id. Entities never change once written (an update creates a new id), so
+ * entries never go stale.
+ *
+ * Plain entities are shared by everyone. Entities protected by a key safe are only retained in the
+ * {@link AccessorContext} of the member that opened them, and are dropped when that member closes a vault or loses a
+ * connection. Callers must resolve the route to the key safe before asking for one, as that is what notices the lost
+ * connection. Password protected entities are never retained.
+ *
+ * A parsed bean takes up many times the length of its XML, so both are bounded by the number of beans, and beans
+ * parsed from large documents are not retained at all. Memory use stays below the entry count times the largest bean.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class XmlEntityBeanCache {
+
+    /**
+     * Key of the member scoped cache within the {@link AccessorContext}.
+     */
+    static final String CONTEXT_KEY = XmlEntityBeanCache.class.getName();
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    static final int DEFAULT_MEMBER_MAX_ENTRIES = 100;
+
+    /**
+     * Beans parsed from more XML than this are not retained.
+     */
+    static final long MAX_XML_LENGTH = 64 * 1024;
+
+    private final int maxEntries;
+
+    private final int memberMaxEntries;
+
+    private final Cache<UUID, XmlObject> plainCache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    XmlEntityBeanCache(final int maxEntries, final int memberMaxEntries) {
+        this.maxEntries = maxEntries;
+        this.memberMaxEntries = memberMaxEntries;
+        this.plainCache = newCache(maxEntries);
+    }
+
+    /**
+     * Retrieve a copy of the bean for the entity, if it is cached in a scope available to the current user.
+     *
+     * @param xmlEntity
+     * @param expectedType
+     * @return the copy or null if not cached.
+     */
+    <T extends XmlObject> T get(final XmlEntity<T> xmlEntity, final Class<T> expectedType) {
+        Cache<UUID, XmlObject> cache = cacheFor(xmlEntity, false);
+        if (cache == null) {
+            return null;
+        }
+        XmlObject cached = cache.getIfPresent(xmlEntity.getId());
+        if (cached == null
+                || !expectedType.isInstance(cached)) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        // Never hand out the cached bean itself, callers are free to modify what they get
+        return expectedType.cast(cached.copy());
+    }
+
+    /**
+     * Retain a copy of the bean just extracted from the entity.
+     *
+     * @param xmlEntity
+     * @param bean
+     * @param xmlLength the length of the XML the bean was parsed from.
+     */
+    void put(final XmlEntity<?> xmlEntity, final XmlObject bean, final long xmlLength) {
+        if (xmlLength > MAX_XML_LENGTH) {
+            return;
+        }
+        Cache<UUID, XmlObject> cache = cacheFor(xmlEntity, true);
+        if (cache == null) {
+            return;
+        }
+        cache.put(xmlEntity.getId(), bean.copy());
+    }
+
+    void invalidate(final UUID xmlEntityId) {
+        this.plainCache.invalidate(xmlEntityId);
+        AccessorContext context = currentContext();
+        if (context != null) {
+            Cache<UUID, XmlObject> cache = memberCache(context, false);
+            if (cache != null) {
+                cache.invalidate(xmlEntityId);
+            }
+        }
+    }
+
+    long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    long getMissCount() {
+        return this.missCount.get();
+    }
+
+    int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    int getMemberMaxEntries() {
+        return this.memberMaxEntries;
+    }
+
+    private Cache<UUID, XmlObject> cacheFor(final XmlEntity<?> xmlEntity, final boolean create) {
+        if (xmlEntity.getCryptedDataId() == null) {
+            return this.plainCache;
+        }
+        if (xmlEntity.getKeySafe() == null) {
+            // Password protected, must always be unlocked with the password
+            return null;
+        }
+        AccessorContext context = currentContext();
+        if (context == null) {
+            return null;
+        }
+        return memberCache(context, create);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Cache<UUID, XmlObject> memberCache(final AccessorContext context, final boolean create) {
+        synchronized (context) {
+            Cache<UUID, XmlObject> cache = context.retrieve(CONTEXT_KEY, Cache.class);
+            if (cache == null && create) {
+                cache = newCache(this.memberMaxEntries);
+                context.retain(CONTEXT_KEY, cache);
+            }
+            return cache;
+        }
+    }
+
+    private static Cache<UUID, XmlObject> newCache(final int maximumSize) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * Does not use {@link AccessorContextImpl#getCurrent()} as that fails when there is no user.
+     */
+    private static AccessorContext currentContext() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null) {
+            return null;
+        }
+        if (authentication instanceof Accessor) {
+            return ((Accessor) authentication).getContext();
+        }
+        Object principal = authentication.getPrincipal();
+        if (principal instanceof Accessor) {
+            return ((Accessor) principal).getContext();
+        }
+        return null;
+    }
+}
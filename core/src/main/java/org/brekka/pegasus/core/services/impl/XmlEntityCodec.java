@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.brekka.pegasus.core.model.XmlEntityFormat;
+
+/**
+ * Encodes and decodes the documents of XML entities in each of the {@link XmlEntityFormat}s. New documents are always
+ * written compact, either deflated or, when smaller than the threshold, uncompressed.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class XmlEntityCodec {
+
+    static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Documents smaller than this gain little from compression, and the deflate header and trailer may outweigh it.
+     */
+    static final int DEFAULT_UNCOMPRESSED_THRESHOLD = 256;
+
+    private final int compressionLevel;
+
+    private final int uncompressedThreshold;
+
+    XmlEntityCodec(final int compressionLevel, final int uncompressedThreshold) {
+        this.compressionLevel = compressionLevel;
+        this.uncompressedThreshold = uncompressedThreshold;
+    }
+
+    /**
+     * Create a stream that encodes the document written to it onto <code>target</code>. The format used is only known
+     * once the stream has been closed.
+     *
+     * @param target receives the encoded document, closed along with the returned stream.
+     * @return the encoding stream.
+     */
+    EncodingOutputStream encoder(final OutputStream target) {
+        return new EncodingOutputStream(target, this.compressionLevel, this.uncompressedThreshold);
+    }
+
+    /**
+     * Wrap <code>is</code> to return the document encoded in the given format.
+     *
+     * @param format the format the document was written in.
+     * @param is the (decrypted) encoded document.
+     * @return the document.
+     * @throws IOException
+     */
+    static InputStream decoder(final XmlEntityFormat format, final InputStream is) throws IOException {
+        switch (format) {
+            case GZIP_XML:
+                return new GZIPInputStream(is);
+            case DEFLATE_XML:
+                return new InflaterInputStream(is);
+            case PLAIN_XML:
+                return is;
+            default:
+                throw new IllegalStateException("Unknown XML entity format: " + format);
+        }
+    }
+
+    int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    int getUncompressedThreshold() {
+        return this.uncompressedThreshold;
+    }
+
+    /**
+     * Holds back the start of the document until it either ends, and is written uncompressed, or grows past the
+     * threshold and is deflated from then on.
+     */
+    static class EncodingOutputStream extends OutputStream {
+
+        private final OutputStream target;
+
+        private final int compressionLevel;
+
+        private final byte[] buffer;
+
+        private int count;
+
+        private Deflater deflater;
+
+        private DeflaterOutputStream deflating;
+
+        private XmlEntityFormat format;
+
+        EncodingOutputStream(final OutputStream target, final int compressionLevel, final int uncompressedThreshold) {
+            this.target = target;
+            this.compressionLevel = compressionLevel;
+            this.buffer = new byte[uncompressedThreshold];
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (this.format != null) {
+                throw new IOException("Stream closed");
+            }
+            if (this.deflating == null) {
+                if (this.count + len <= this.buffer.length) {
+                    System.arraycopy(b, off, this.buffer, this.count, len);
+                    this.count += len;
+                    return;
+                }
+                this.deflater = new Deflater(this.compressionLevel);
+                this.deflating = new DeflaterOutputStream(this.target, this.deflater, 8192);
+                this.deflating.write(this.buffer, 0, this.count);
+            }
+            this.deflating.write(b, off, len);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.format != null) {
+                return;
+            }
+            if (this.deflating != null) {
+                this.format = XmlEntityFormat.DEFLATE_XML;
+                try {
+                    this.deflating.close();
+                } finally {
+                    this.deflater.end();
+                }
+            } else {
+                this.format = XmlEntityFormat.PLAIN_XML;
+                try {
+                    this.target.write(this.buffer, 0, this.count);
+                } finally {
+                    this.target.close();
+                }
+            }
+        }
+
+        /**
+         * @return the format the document was written in, only available once closed.
+         */
+        XmlEntityFormat getFormat() {
+            if (this.format == null) {
+                throw new IllegalStateException("The format is not known until the stream is closed");
+            }
+            return this.format;
+        }
+    }
+}
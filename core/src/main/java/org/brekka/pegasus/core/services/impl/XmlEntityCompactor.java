@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.brekka.pegasus.core.services.XmlEntityService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Removes versions of XML entity series that are no longer needed, because a full version was written after them.
+ * Versions are kept for a while after being superseded, so that updates based on them can still be merged.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+// Should be declared explicitly
+// @Service
+public class XmlEntityCompactor {
+
+    private static final Log log = LogFactory.getLog(XmlEntityCompactor.class);
+
+    @Autowired
+    private XmlEntityService xmlEntityService;
+
+    /**
+     * How long to keep a version after it has been superseded.
+     */
+    private long retainMillis = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Maximum number of versions to remove per run.
+     */
+    private int maxVersions = 500;
+
+    @Scheduled(fixedDelay=3600000) // Gap of one hour between each invocation
+    public void compact() {
+        Date supersededBefore = new Date(System.currentTimeMillis() - this.retainMillis);
+        List<UUID> versionIds = this.xmlEntityService.retrieveSupersededVersions(supersededBefore, this.maxVersions);
+        int removed = 0;
+        for (UUID versionId : versionIds) {
+            try {
+                // Each in its own transaction, a version still referenced elsewhere should not hold up the others
+                this.xmlEntityService.delete(versionId);
+                removed++;
+            } catch (RuntimeException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn(String.format("Failed to remove superseded XML entity version '%s'", versionId), e);
+                }
+            }
+        }
+        if (removed > 0 && log.isInfoEnabled()) {
+            log.info(String.format("Removed %d superseded XML entity version(s)", removed));
+        }
+    }
+
+    /**
+     * @param retainMillis the retainMillis to set
+     */
+    public void setRetainMillis(final long retainMillis) {
+        this.retainMillis = retainMillis;
+    }
+
+    /**
+     * @param maxVersions the maxVersions to set
+     */
+    public void setMaxVersions(final int maxVersions) {
+        this.maxVersions = maxVersions;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.brekka.paveway.core.model.ByteSequence;
+import org.brekka.paveway.core.services.ResourceStorageService;
+
+/**
+ * Receives the encoded data of an XML entity. Data is held in memory, up to the limit of what the entity table can
+ * hold, and is then handed to the blob without copying. Anything larger is moved to the resource storage service as
+ * soon as it passes the limit, so no more than the limit is ever held in memory.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class XmlEntityDataOutputStream extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final ResourceStorageService resourceStorageService;
+
+    private final UUID id;
+
+    private final int limit;
+
+    private byte[] buf;
+
+    private int count;
+
+    /**
+     * Allocated once the data is found to be too large to hold in memory.
+     */
+    private ByteSequence byteSequence;
+
+    private OutputStream external;
+
+    private boolean closed;
+
+    /**
+     * @param resourceStorageService where data larger than <code>limit</code> is written.
+     * @param id the id of the entity, which the resource will be stored under.
+     * @param limit the maximum number of bytes held in memory, zero to always use the resource storage service.
+     */
+    XmlEntityDataOutputStream(final ResourceStorageService resourceStorageService, final UUID id, final int limit) {
+        this.resourceStorageService = resourceStorageService;
+        this.id = id;
+        this.limit = limit;
+        this.buf = new byte[Math.min(INITIAL_CAPACITY, limit)];
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (this.external == null) {
+            int required = this.count + len;
+            if (required <= this.limit) {
+                if (required > this.buf.length) {
+                    this.buf = Arrays.copyOf(this.buf, Math.min(Math.max(this.buf.length * 2, required), this.limit));
+                }
+                System.arraycopy(b, off, this.buf, this.count, len);
+                this.count = required;
+                return;
+            }
+            spill();
+        }
+        this.external.write(b, off, len);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.external != null) {
+            this.external.flush();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.limit == 0 && this.external == null) {
+            // Nothing was written, still needs to exist externally
+            spill();
+        }
+        if (this.external != null) {
+            this.external.close();
+        }
+    }
+
+    /**
+     * @return true if the data has been moved to the resource storage service.
+     */
+    boolean isExternal() {
+        return this.byteSequence != null;
+    }
+
+    /**
+     * Make the data written to the resource storage service visible. Only applicable once the stream is closed and
+     * {@link #isExternal()}.
+     */
+    void persist() {
+        this.byteSequence.persist();
+    }
+
+    /**
+     * Abandon the data, whether it is in memory or already written to the resource storage service.
+     */
+    void discard() {
+        this.buf = null;
+        if (this.byteSequence != null) {
+            this.byteSequence.discard();
+        }
+    }
+
+    /**
+     * @return the in-memory data, backed by the buffer this stream wrote to.
+     */
+    InputStream toInputStream() {
+        return new ByteArrayInputStream(this.buf, 0, this.count);
+    }
+
+    /**
+     * @return the number of bytes held in memory.
+     */
+    int size() {
+        return this.count;
+    }
+
+    private void spill() throws IOException {
+        this.byteSequence = this.resourceStorageService.allocate(this.id);
+        this.external = this.byteSequence.getOutputStream();
+        this.external.write(this.buf, 0, this.count);
+        this.buf = null;
+        this.count = 0;
+    }
+}
@@ -4,12 +4,13 @@
 package org.brekka.pegasus.core.services.impl;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
@@ -17,8 +18,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -44,12 +52,17 @@ import org.brekka.pegasus.core.dao.XmlEntityDAO;
 import org.brekka.pegasus.core.event.VaultDeleteEvent;
 import org.brekka.pegasus.core.event.XmlEntityDeleteEvent;
 import org.brekka.pegasus.core.model.KeySafe;
+import org.brekka.pegasus.core.model.Member;
 import org.brekka.pegasus.core.model.XmlEntity;
 import org.brekka.pegasus.core.model.XmlEntityAware;
+import org.brekka.pegasus.core.model.XmlEntityFormat;
 import org.brekka.pegasus.core.services.KeySafeService;
+import org.brekka.pegasus.core.services.MemberService;
 import org.brekka.pegasus.core.services.XmlEntityService;
+import org.brekka.pegasus.core.services.impl.XmlEntityCodec.EncodingOutputStream;
 import org.brekka.phalanx.api.beans.IdentityCryptedData;
 import org.brekka.phalanx.api.model.CryptedData;
+import org.brekka.phalanx.api.model.PrivateKeyToken;
 import org.brekka.phalanx.api.services.PhalanxService;
 import org.brekka.phoenix.api.CryptoProfile;
 import org.brekka.phoenix.api.SecretKey;
@@ -61,12 +74,22 @@ import org.brekka.stillingar.api.annotations.Configured;
 import org.brekka.xml.pegasus.v2.config.XmlEntityServiceDocument;
 import org.brekka.xml.pegasus.v2.config.XmlEntityServiceDocument.XmlEntityService.NamespacePrefix;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationListener;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import difflib.DiffUtils;
 import difflib.PatchFailedException;
@@ -82,6 +105,18 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
 
     private static final Log log = LogFactory.getLog(XmlEntityServiceImpl.class);
 
+    static final int DEFAULT_MAX_DELTA_CHAIN = 10;
+
+    /**
+     * Used to generate the lines of the deltas between versions.
+     */
+    private static final XmlOptions DELTA_OPTIONS = new XmlOptions();
+    static {
+        DELTA_OPTIONS.setSavePrettyPrint();
+        DELTA_OPTIONS.setSaveAggressiveNamespaces();
+        DELTA_OPTIONS.setSaveNamespacesFirst();
+    }
+
     @Autowired
     private XmlEntityDAO xmlEntityDAO;
 
@@ -94,7 +129,11 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
     @Autowired
     private ResourceCryptoService resourceCryptoService;
 
+    /**
+     * Entity documents are usually small, so are packed together rather than stored one per file.
+     */
     @Autowired
+    @Qualifier("packedResourceStorageService")
     private ResourceStorageService resourceStorageService;
 
     @Autowired
@@ -106,8 +145,39 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
     @Autowired
     private PhalanxService phalanxService;
 
+    @Autowired
+    private MemberService memberService;
+
+    @Autowired
+    private KeyChainRouteCache keyChainRouteCache;
+
+    /**
+     * Pretty printed, used to generate the line based diffs between versions.
+     */
     private XmlOptions xmlWriteOptions;
 
+    /**
+     * Compact, used for the persisted documents.
+     */
+    private XmlOptions xmlStorageOptions;
+
+    /**
+     * Maximum number of consecutive versions of a series stored as deltas before a full document is stored again.
+     */
+    private int maxDeltaChain = DEFAULT_MAX_DELTA_CHAIN;
+
+    private volatile XmlEntityCodec codec = new XmlEntityCodec(
+            XmlEntityCodec.DEFAULT_COMPRESSION_LEVEL, XmlEntityCodec.DEFAULT_UNCOMPRESSED_THRESHOLD);
+
+    /**
+     * Decrypts and parses the entities of lists being released. Null when lists are released one entity at a time.
+     */
+    private ExecutorService releaseExecutor;
+
+    private int releaseThreads;
+
+    private volatile XmlEntityBeanCache beanCache = new XmlEntityBeanCache(
+            XmlEntityBeanCache.DEFAULT_MAX_ENTRIES, XmlEntityBeanCache.DEFAULT_MEMBER_MAX_ENTRIES);
 
 
     @Override
@@ -132,10 +202,109 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
 
     @Override
     @Transactional(readOnly=true)
+    @SuppressWarnings("unchecked")
     public <T extends XmlObject> void releaseAll(final List<? extends XmlEntityAware<T>> list, final Class<T> expectedType) {
+        List<XmlEntityAware<T>> pending = new ArrayList<>(list.size());
         for (XmlEntityAware<T> xmlEntityAware : list) {
-            // TODO parallel
-            release(xmlEntityAware, expectedType);
+            if (xmlEntityAware != null
+                    && xmlEntityAware.getXml() != null
+                    && xmlEntityAware.getXml().getBean() == null) {
+                pending.add(xmlEntityAware);
+            }
+        }
+        ExecutorService executor = this.releaseExecutor;
+        if (executor == null
+                || pending.size() < 2) {
+            for (XmlEntityAware<T> xmlEntityAware : pending) {
+                release(xmlEntityAware, expectedType);
+            }
+            return;
+        }
+
+        /*
+         * Anything that needs the session (the entity, its data and the key chain) is resolved here. Only the
+         * decryption and parsing are handed to the executor.
+         */
+        SecurityContext securityContext = SecurityContextHolder.getContext();
+        Map<UUID, PrivateKeyToken> privateKeys = new HashMap<>();
+        AuthenticatedMemberBase<Member> currentMember = null;
+        long generation = this.keyChainRouteCache.currentGeneration();
+        List<XmlEntity<T>> entities = new ArrayList<>(pending.size());
+        List<Future<T>> futures = new ArrayList<>(pending.size());
+        try {
+            for (XmlEntityAware<T> xmlEntityAware : pending) {
+                XmlEntity<T> xmlEntity = (XmlEntity<T>) this.xmlEntityDAO.retrieveById(xmlEntityAware.getXml().getId());
+                KeySafe<?> keySafe = xmlEntity.getKeySafe();
+                PrivateKeyToken privateKey = null;
+                if (xmlEntity.getCryptedDataId() != null
+                        && keySafe != null) {
+                    // Always resolve first, the member must still be able to reach the key safe, even for cached beans
+                    privateKey = privateKeys.get(keySafe.getId());
+                    if (privateKey == null) {
+                        privateKey = this.keySafeService.resolvePrivateKey(keySafe);
+                        privateKeys.put(keySafe.getId(), privateKey);
+                    }
+                }
+                T cached = this.beanCache.get(xmlEntity, expectedType);
+                if (cached == null
+                        && xmlEntity.getDeltaDepth() > 0) {
+                    // Reconstruction needs the earlier versions of the series
+                    cached = extractXml(xmlEntity, expectedType, null);
+                }
+                if (cached != null) {
+                    entities.add(xmlEntity);
+                    futures.add(Futures.immediateFuture(cached));
+                    continue;
+                }
+                byte[] secretKeyBytes = null;
+                if (xmlEntity.getCryptedDataId() != null) {
+                    if (keySafe == null) {
+                        throw new PegasusException(PegasusErrorCode.PG423,
+                                "The XML entity '%s' must be unlocked using a password, which was not specified.",
+                                xmlEntity.getId());
+                    }
+                    if (currentMember == null) {
+                        currentMember = AuthenticatedMemberBase.getCurrent(this.memberService, Member.class);
+                    }
+                    secretKeyBytes = currentMember.getDataKey(keySafe.getId(), xmlEntity.getCryptedDataId());
+                    if (secretKeyBytes != null) {
+                        privateKey = null;
+                    }
+                }
+                byte[] data = null;
+                if (!xmlEntity.isExternalData()) {
+                    try (InputStream is = xmlEntity.getData().getBinaryStream()) {
+                        data = IOUtils.toByteArray(is);
+                    }
+                }
+                entities.add(xmlEntity);
+                futures.add(executor.submit(new ReleaseTask<>(xmlEntity, data, secretKeyBytes, privateKey, currentMember,
+                        generation, expectedType, securityContext)));
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                XmlEntity<T> xmlEntity = entities.get(i);
+                xmlEntity.setBean(futures.get(i).get());
+                pending.get(i).setXml(xmlEntity);
+            }
+        } catch (IOException | SQLException e) {
+            throw new PegasusException(PegasusErrorCode.PG401, e,
+                    "Failed to read the data of Xml Entity '%s'", pending.get(entities.size()).getXml().getId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PegasusException(PegasusErrorCode.PG401, e,
+                    "Interrupted while releasing %d Xml Entities", pending.size());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new PegasusException(PegasusErrorCode.PG401, cause,
+                    "Failed to release %d Xml Entities", pending.size());
+        } finally {
+            // Don't leave work running for a list that failed
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
         }
     }
 
@@ -166,7 +335,7 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
     @Override
     @Transactional()
     public <T extends XmlObject> XmlEntity<T> persistPlainEntity(final T xml, final boolean externalData) {
-        XmlEntity<T> entity = createPlainEntity(xml, 1, UUID.randomUUID(), externalData);
+        XmlEntity<T> entity = createPlainEntity(xml, 1, UUID.randomUUID(), externalData, 0, null);
         return entity;
     }
 
@@ -179,7 +348,7 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         CryptoProfile cryptoProfile = this.cryptoProfileService.retrieveDefault();
         SecretKey secretKey = this.symmetricCryptoService.createSecretKey(cryptoProfile);
         CryptedData cryptedData = this.keySafeService.protect(secretKey.getEncoded(), keySafe);
-        XmlEntity<T> entity = createEncrypted(xml, 1, UUID.randomUUID(), keySafe, cryptedData.getId(), cryptoProfile, secretKey, externalData);
+        XmlEntity<T> entity = createEncrypted(xml, 1, UUID.randomUUID(), keySafe, cryptedData.getId(), cryptoProfile, secretKey, externalData, 0, null);
         return entity;
     }
 
@@ -192,7 +361,7 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         CryptoProfile cryptoProfile = this.cryptoProfileService.retrieveDefault();
         SecretKey secretKey = this.symmetricCryptoService.createSecretKey(cryptoProfile);
         CryptedData cryptedData = this.phalanxService.pbeEncrypt(secretKey.getEncoded(), password);
-        XmlEntity<T> entity = createEncrypted(xml, 1, UUID.randomUUID(), null, cryptedData.getId(), cryptoProfile, secretKey, externalData);
+        XmlEntity<T> entity = createEncrypted(xml, 1, UUID.randomUUID(), null, cryptedData.getId(), cryptoProfile, secretKey, externalData, 0, null);
         return entity;
     }
 
@@ -210,6 +379,7 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
             for (XmlEntity<?> xmlEntity : series) {
                 xmlEntity.setDeleted(new Date());
                 this.xmlEntityDAO.update(xmlEntity);
+                this.beanCache.invalidate(xmlEntity.getId());
             }
             return null;
         }
@@ -228,6 +398,11 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         } else {
             // Retrieve the version we expected to be the last, to generate a diff from
             XmlEntity<T> updatedFrom = this.xmlEntityDAO.retrieveBySerialVersion(updated.getSerial(), updated.getVersion(), xmlType);
+            if (updatedFrom == null) {
+                throw new PegasusException(PegasusErrorCode.PG403,
+                        "Version %d of series '%s' is no longer available to patch from",
+                        updated.getVersion(), updated.getSerial());
+            }
             // Passworded entity xml should never be updated.
             base = extractXml(updatedFrom, xmlType, null);
             current = extractXml(lockedCurrent, xmlType, null);
@@ -244,15 +419,25 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         KeySafe<?> keySafe = lockedCurrent.getKeySafe();
         boolean externalData = lockedCurrent.isExternalData();
 
+        // Store only the changes, unless the chain back to the last full document is already long enough
+        int deltaDepth = lockedCurrent.getDeltaDepth() + 1;
+        List<String> delta = null;
+        if (deltaDepth <= this.maxDeltaChain) {
+            delta = delta(current, patched);
+        } else {
+            deltaDepth = 0;
+        }
+
         if (keySafe == null) {
-            newEntity = createPlainEntity(patched, newVersion, serial, externalData);
+            newEntity = createPlainEntity(patched, newVersion, serial, externalData, deltaDepth, delta);
         } else {
             UUID cryptedDataId = lockedCurrent.getCryptedDataId();
             CryptoProfile cryptoProfile = this.cryptoProfileService.retrieveProfile(lockedCurrent.getProfile());
             byte[] secretKeyBytes = this.keySafeService.release(cryptedDataId, lockedCurrent.getKeySafe());
             SecretKey secretKey = this.symmetricCryptoService.toSecretKey(secretKeyBytes, cryptoProfile);
             // Currently using the same crypted Id.
-            newEntity = createEncrypted(patched, newVersion, serial, keySafe, cryptedDataId, cryptoProfile, secretKey, externalData);
+            newEntity = createEncrypted(patched, newVersion, serial, keySafe, cryptedDataId, cryptoProfile, secretKey, externalData,
+                    deltaDepth, delta);
         }
         return newEntity;
     }
@@ -284,10 +469,36 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
     @Transactional()
     public void delete(final UUID xmlEntityId) {
         XmlEntity<?> entity = this.xmlEntityDAO.retrieveById(xmlEntityId);
+        this.beanCache.invalidate(xmlEntityId);
+        this.xmlEntityDAO.delete(xmlEntityId);
         if (entity.isExternalData()) {
-            this.resourceStorageService.remove(entity.getId());
+            removeDataAfterCommit(entity.getId());
         }
-        this.xmlEntityDAO.delete(xmlEntityId);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.XmlEntityService#retrieveSupersededVersions(java.util.Date, int)
+     */
+    @Override
+    @Transactional(readOnly=true)
+    public List<UUID> retrieveSupersededVersions(final Date supersededBefore, final int maxResults) {
+        return this.xmlEntityDAO.retrieveSupersededIds(supersededBefore, maxResults);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.XmlEntityService#getBeanCacheHitCount()
+     */
+    @Override
+    public long getBeanCacheHitCount() {
+        return this.beanCache.getHitCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.pegasus.core.services.XmlEntityService#getBeanCacheMissCount()
+     */
+    @Override
+    public long getBeanCacheMissCount() {
+        return this.beanCache.getMissCount();
     }
 
     /* (non-Javadoc)
@@ -301,6 +512,7 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
             for (XmlEntity<?> xmlEntity : xmlEntityList) {
                 this.applicationEventPublisher.publishEvent(new XmlEntityDeleteEvent(xmlEntity));
                 this.phalanxService.deleteCryptedData(new IdentityCryptedData(xmlEntity.getCryptedDataId()));
+                this.beanCache.invalidate(xmlEntity.getId());
                 this.xmlEntityDAO.delete(xmlEntity.getId());
             }
         }
@@ -313,12 +525,82 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         for (NamespacePrefix namespacePrefix : prefixList) {
             prefixes.put(namespacePrefix.getUri(), namespacePrefix.getPrefix());
         }
-        XmlOptions opts = new XmlOptions();
+        XmlOptions storageOpts = new XmlOptions();
+        storageOpts.setSaveAggressiveNamespaces();
+        storageOpts.setSaveSuggestedPrefixes(prefixes);
+        storageOpts.setSaveNamespacesFirst();
+        this.xmlStorageOptions = storageOpts;
+        XmlOptions opts = new XmlOptions(storageOpts);
         opts.setSavePrettyPrint();
-        opts.setSaveAggressiveNamespaces();
-        opts.setSaveSuggestedPrefixes(prefixes);
-        opts.setSaveNamespacesFirst();
         this.xmlWriteOptions = opts;
+
+        int compressionLevel = XmlEntityCodec.DEFAULT_COMPRESSION_LEVEL;
+        if (config.isSetCompressionLevel()) {
+            compressionLevel = config.getCompressionLevel();
+        }
+        int uncompressedThreshold = XmlEntityCodec.DEFAULT_UNCOMPRESSED_THRESHOLD;
+        if (config.isSetUncompressedThreshold()) {
+            uncompressedThreshold = config.getUncompressedThreshold();
+        }
+        this.codec = new XmlEntityCodec(compressionLevel, uncompressedThreshold);
+
+        int maxDeltaChain = DEFAULT_MAX_DELTA_CHAIN;
+        if (config.isSetMaxDeltaChain()) {
+            maxDeltaChain = config.getMaxDeltaChain();
+        }
+        this.maxDeltaChain = maxDeltaChain;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (config.isSetReleaseThreads()) {
+            threads = config.getReleaseThreads();
+        }
+        configureReleaseExecutor(threads);
+
+        int maxEntries = XmlEntityBeanCache.DEFAULT_MAX_ENTRIES;
+        if (config.isSetBeanCacheMaxEntries()) {
+            maxEntries = config.getBeanCacheMaxEntries();
+        }
+        int memberMaxEntries = XmlEntityBeanCache.DEFAULT_MEMBER_MAX_ENTRIES;
+        if (config.isSetMemberBeanCacheMaxEntries()) {
+            memberMaxEntries = config.getMemberBeanCacheMaxEntries();
+        }
+        XmlEntityBeanCache current = this.beanCache;
+        if (current.getMaxEntries() != maxEntries
+                || current.getMemberMaxEntries() != memberMaxEntries) {
+            this.beanCache = new XmlEntityBeanCache(maxEntries, memberMaxEntries);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (this.releaseExecutor != null) {
+            this.releaseExecutor.shutdownNow();
+            this.releaseExecutor = null;
+        }
+        this.releaseThreads = 0;
+    }
+
+    protected synchronized void configureReleaseExecutor(final int threads) {
+        if (threads == this.releaseThreads) {
+            return;
+        }
+        ExecutorService previous = this.releaseExecutor;
+        if (threads > 1) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                        .setNameFormat("pegasus-xml-release-%d")
+                        .setDaemon(true)
+                        .build());
+            executor.allowCoreThreadTimeOut(true);
+            this.releaseExecutor = executor;
+        } else {
+            this.releaseExecutor = null;
+        }
+        this.releaseThreads = threads;
+        if (previous != null) {
+            // Let lists already being released finish
+            previous.shutdown();
+        }
     }
 
     /* (non-Javadoc)
@@ -340,11 +622,13 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
      * @param secretKey
      */
     protected <T extends XmlObject> XmlEntity<T> createEncrypted(final T xml, final int version, final UUID serial, final KeySafe<?> keySafe, final UUID cryptedDataId,
-            final CryptoProfile cryptoProfile, final SecretKey secretKey, final boolean externalData) {
+            final CryptoProfile cryptoProfile, final SecretKey secretKey, final boolean externalData,
+            final int deltaDepth, final List<String> delta) {
 
         validate(xml);
 
-        ResourceEncryptor encryptor = this.resourceCryptoService.encryptor(secretKey, Compression.GZIP);
+        // The codec takes care of compression
+        ResourceEncryptor encryptor = this.resourceCryptoService.encryptor(secretKey, Compression.NONE);
         XmlEntity<T> entity = new XmlEntity<>();
         entity.setId(UUID.randomUUID());
         entity.setIv(encryptor.getSpec().getIV());
@@ -352,66 +636,101 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         entity.setKeySafe(keySafe);
         entity.setProfile(cryptoProfile.getNumber());
         entity.setExternalData(externalData);
+        entity.setDeltaDepth(deltaDepth);
         populate(entity, xml, version, serial);
-        if (externalData) {
-            ByteSequence allocate = this.resourceStorageService.allocate(entity.getId());
-            try ( OutputStream os = allocate.getOutputStream(); OutputStream saveOs = encryptor.encrypt(os)) {
-                xml.save(saveOs, this.xmlWriteOptions);
-                saveOs.close();
-            } catch (IOException e) {
-                throw new PegasusException(PegasusErrorCode.PG400, e, "Failed to persist XML");
-            }
-            this.xmlEntityDAO.create(entity);
-        } else {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try (OutputStream saveOs = encryptor.encrypt(baos)) {
-                xml.save(saveOs, this.xmlWriteOptions);
-                saveOs.close();
-            } catch (IOException e) {
-                throw new PegasusException(PegasusErrorCode.PG400, e, "Failed to persist XML");
-            }
-            byte[] data = baos.toByteArray();
-            this.xmlEntityDAO.create(entity, new ByteArrayInputStream(data), data.length);
+        XmlEntityDataOutputStream dos = newDataOutputStream(entity);
+        try (EncodingOutputStream saveOs = this.codec.encoder(encryptor.encrypt(dos))) {
+            writeDocument(saveOs, xml, delta);
+            saveOs.close();
+            entity.setFormat(saveOs.getFormat());
+        } catch (IOException e) {
+            dos.discard();
+            throw new PegasusException(PegasusErrorCode.PG400, e, "Failed to persist XML");
         }
+        storeData(entity, dos);
         return entity;
     }
 
+    /**
+     * The external data can only be removed once the entity row is known to be gone. Should the delete be rolled back
+     * the entity still needs its data.
+     */
+    protected void removeDataAfterCommit(final UUID xmlEntityId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            this.resourceStorageService.remove(xmlEntityId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                XmlEntityServiceImpl.this.resourceStorageService.remove(xmlEntityId);
+            }
+        });
+    }
+
     /**
      * @param xml
      * @param entity
      */
-    protected <T extends XmlObject> XmlEntity<T> createPlainEntity(final T xml, final int version, final UUID serial, final boolean externalData) {
+    protected <T extends XmlObject> XmlEntity<T> createPlainEntity(final T xml, final int version, final UUID serial, final boolean externalData,
+            final int deltaDepth, final List<String> delta) {
         validate(xml);
 
         XmlEntity<T> entity = new XmlEntity<>();
         entity.setId(UUID.randomUUID());
         populate(entity, xml, version, serial);
         entity.setExternalData(externalData);
-        if (externalData) {
-            ByteSequence allocate = this.resourceStorageService.allocate(entity.getId());
-            try ( OutputStream os = allocate.getOutputStream();
-                    GZIPOutputStream gos = new GZIPOutputStream(os) ) {
-                xml.save(gos, this.xmlWriteOptions);
-                gos.close();
-            } catch (IOException e) {
-                throw new PegasusException(PegasusErrorCode.PG400, e, "Failed to persist XML");
-            }
-            this.xmlEntityDAO.create(entity);
-        } else {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try ( GZIPOutputStream gos = new GZIPOutputStream(baos) ) {
-                xml.save(gos, this.xmlWriteOptions);
-                gos.close();
-            } catch (IOException e) {
-                throw new PegasusException(PegasusErrorCode.PG400, e, "Failed to persist XML");
-            }
-            byte[] data = baos.toByteArray();
-            this.xmlEntityDAO.create(entity, new ByteArrayInputStream(data), data.length);
+        entity.setDeltaDepth(deltaDepth);
+        XmlEntityDataOutputStream dos = newDataOutputStream(entity);
+        try ( EncodingOutputStream eos = this.codec.encoder(dos) ) {
+            writeDocument(eos, xml, delta);
+            eos.close();
+            entity.setFormat(eos.getFormat());
+        } catch (IOException e) {
+            dos.discard();
+            throw new PegasusException(PegasusErrorCode.PG400, e, "Failed to persist XML");
         }
+        storeData(entity, dos);
 
         return entity;
     }
 
+    /**
+     * Write either the complete document or, when there is one, the delta from the previous version.
+     */
+    protected void writeDocument(final OutputStream os, final XmlObject xml, final List<String> delta) throws IOException {
+        if (delta == null) {
+            xml.save(os, this.xmlStorageOptions);
+            return;
+        }
+        Writer writer = new OutputStreamWriter(os, Charsets.UTF_8);
+        for (String line : delta) {
+            writer.write(line);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Entities not asking for external data are held in memory up to what the table can take, beyond that they are
+     * moved to the resource storage service.
+     */
+    protected XmlEntityDataOutputStream newDataOutputStream(final XmlEntity<?> entity) {
+        int limit = (entity.isExternalData() ? 0 : XmlEntity.MAX_DATA_LENGTH);
+        return new XmlEntityDataOutputStream(this.resourceStorageService, entity.getId(), limit);
+    }
+
+    protected void storeData(final XmlEntity<?> entity, final XmlEntityDataOutputStream dos) {
+        if (dos.isExternal()) {
+            dos.persist();
+            entity.setExternalData(true);
+            this.xmlEntityDAO.create(entity);
+        } else {
+            // The blob reads straight from the buffer the data was written to
+            this.xmlEntityDAO.create(entity, dos.toInputStream(), dos.size());
+        }
+    }
+
     protected <T extends XmlObject> void populate(final XmlEntity<T> entity, final T xml, final int version, final UUID serial) {
         entity.setVersion(version);
         entity.setSerial(serial);
@@ -424,22 +743,25 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
      * @param expectedType
      * @return
      */
-    @SuppressWarnings("unchecked")
     protected <T extends XmlObject> T extractXml(final XmlEntity<T> xmlEntity, final Class<T> expectedType, final String password) {
-        T xmlBean;
+        if (xmlEntity.getCryptedDataId() != null
+                && xmlEntity.getKeySafe() != null) {
+            // The member must still be able to reach the key safe, even for a bean they opened before
+            this.keySafeService.resolvePrivateKey(xmlEntity.getKeySafe());
+        }
+        T cached = this.beanCache.get(xmlEntity, expectedType);
+        if (cached != null) {
+            return cached;
+        }
+        if (xmlEntity.getDeltaDepth() > 0) {
+            return reconstruct(xmlEntity, expectedType);
+        }
         InputStream is = null;
         try {
-            if (xmlEntity.isExternalData()) {
-                ByteSequence byteSequence = this.resourceStorageService.retrieve(xmlEntity.getId());
-                is = byteSequence.getInputStream();
-            } else {
-                is = xmlEntity.getData().getBinaryStream();
-            }
+            is = openData(xmlEntity);
+            byte[] secretKeyBytes = null;
             UUID cryptedDataId = xmlEntity.getCryptedDataId();
             if (cryptedDataId != null) {
-                // Decrypt
-                CryptoProfile cryptoProfile = this.cryptoProfileService.retrieveProfile(xmlEntity.getProfile());
-                byte[] secretKeyBytes;
                 if (xmlEntity.getKeySafe() == null) {
                     // Expect password
                     if (password != null) {
@@ -452,32 +774,186 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
                 } else {
                     secretKeyBytes = this.keySafeService.release(cryptedDataId, xmlEntity.getKeySafe());
                 }
-                SecretKey secretKey = this.symmetricCryptoService.toSecretKey(secretKeyBytes, cryptoProfile);
-                xmlEntity.setSecretKey(secretKey);
-                StreamCryptor<InputStream, SymmetricCryptoSpec> decryptor = this.resourceCryptoService.decryptor(xmlEntity, Compression.GZIP);
-                is = decryptor.getStream(is);
-            } else {
-                // Plain
-                is = new GZIPInputStream(is);
             }
+            return decode(xmlEntity, is, secretKeyBytes, expectedType);
+        } catch (IOException | SQLException e) {
+            throw new PegasusException(PegasusErrorCode.PG401, e,
+                    "Failed to extract Xml Entity '%s'", xmlEntity.getId());
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    protected InputStream openData(final XmlEntity<?> xmlEntity) throws IOException, SQLException {
+        if (xmlEntity.isExternalData()) {
+            ByteSequence byteSequence = this.resourceStorageService.retrieve(xmlEntity.getId());
+            return byteSequence.getInputStream();
+        }
+        return xmlEntity.getData().getBinaryStream();
+    }
 
+    /**
+     * Decrypt (when a key is given), decompress and parse the raw entity data. Does not touch the session so is safe to
+     * call from the release executor.
+     *
+     * @param xmlEntity
+     * @param is the raw data, closed on return.
+     * @param secretKeyBytes the key protecting the data, null if it is plain.
+     * @param expectedType
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected <T extends XmlObject> T decode(final XmlEntity<T> xmlEntity, final InputStream is, final byte[] secretKeyBytes,
+            final Class<T> expectedType) {
+        T xmlBean;
+        InputStream dis = is;
+        try {
+            dis = openDocument(xmlEntity, is, secretKeyBytes);
+            CountingInputStream cis = new CountingInputStream(dis);
+            dis = cis;
             SchemaType schemaType = XmlBeans.typeForClass(expectedType);
-            xmlBean = (T) XmlBeans.getContextTypeLoader().parse(is, schemaType, null);
+            xmlBean = (T) XmlBeans.getContextTypeLoader().parse(cis, schemaType, null);
             if (!expectedType.isAssignableFrom(xmlBean.getClass())) {
                 throw new PegasusException(PegasusErrorCode.PG401,
                         "Expected '%s', found '%s'",
                         expectedType.getName(), xmlBean.getClass().getName());
             }
+            this.beanCache.put(xmlEntity, xmlBean, cis.getCount());
 
-        } catch (IOException | SQLException | XmlException e) {
+        } catch (IOException | XmlException e) {
             throw new PegasusException(PegasusErrorCode.PG401, e,
                     "Failed to extract Xml Entity '%s'", xmlEntity.getId());
         } finally {
+            IOUtils.closeQuietly(dis);
+            IOUtils.closeQuietly(is);
+        }
+        return xmlBean;
+    }
+
+    /**
+     * Decrypt (when a key is given) and decompress the raw entity data.
+     *
+     * @param xmlEntity
+     * @param is the raw data
+     * @param secretKeyBytes the key protecting the data, null if it is plain.
+     * @return the stored document (or delta)
+     * @throws IOException
+     */
+    protected InputStream openDocument(final XmlEntity<?> xmlEntity, final InputStream is, final byte[] secretKeyBytes)
+            throws IOException {
+        InputStream dis;
+        XmlEntityFormat format = xmlEntity.getFormat();
+        if (secretKeyBytes != null) {
+            // Decrypt
+            CryptoProfile cryptoProfile = this.cryptoProfileService.retrieveProfile(xmlEntity.getProfile());
+            SecretKey secretKey = this.symmetricCryptoService.toSecretKey(secretKeyBytes, cryptoProfile);
+            xmlEntity.setSecretKey(secretKey);
+            if (format == XmlEntityFormat.GZIP_XML) {
+                // Older entities leave the decompression to the decryptor
+                StreamCryptor<InputStream, SymmetricCryptoSpec> decryptor = this.resourceCryptoService.decryptor(xmlEntity, Compression.GZIP);
+                dis = decryptor.getStream(is);
+            } else {
+                StreamCryptor<InputStream, SymmetricCryptoSpec> decryptor = this.resourceCryptoService.decryptor(xmlEntity, Compression.NONE);
+                dis = XmlEntityCodec.decoder(format, decryptor.getStream(is));
+            }
+        } else {
+            // Plain
+            dis = XmlEntityCodec.decoder(format, is);
+        }
+        return dis;
+    }
+
+    /**
+     * Rebuild a version stored as a delta by applying the deltas since the last full document (or since the latest
+     * version that is already cached).
+     *
+     * @param xmlEntity
+     * @param expectedType
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected <T extends XmlObject> T reconstruct(final XmlEntity<T> xmlEntity, final Class<T> expectedType) {
+        int toVersion = xmlEntity.getVersion();
+        int fromVersion = toVersion - xmlEntity.getDeltaDepth();
+        List<XmlEntity<?>> chain = this.xmlEntityDAO.retrieveBySerialVersions(xmlEntity.getSerial(), fromVersion, toVersion);
+        if (chain.size() != toVersion - fromVersion + 1) {
+            throw new PegasusException(PegasusErrorCode.PG401,
+                    "Only %d of the versions %d to %d of series '%s' needed to reconstruct Xml Entity '%s' exist",
+                    chain.size(), fromVersion, toVersion, xmlEntity.getSerial(), xmlEntity.getId());
+        }
+        byte[] secretKeyBytes = null;
+        if (xmlEntity.getCryptedDataId() != null) {
+            // Every version of a series shares the same key
+            secretKeyBytes = this.keySafeService.release(xmlEntity.getCryptedDataId(), xmlEntity.getKeySafe());
+        }
+
+        // Start from the latest cached version before this one, the last element is this version itself
+        T bean = null;
+        int start = chain.size() - 1;
+        while (bean == null && --start >= 0) {
+            bean = this.beanCache.get((XmlEntity<T>) chain.get(start), expectedType);
+        }
+        if (bean == null) {
+            start = 0;
+            XmlEntity<T> first = (XmlEntity<T>) chain.get(0);
+            try {
+                bean = decode(first, openData(first), secretKeyBytes, expectedType);
+            } catch (IOException | SQLException e) {
+                throw new PegasusException(PegasusErrorCode.PG401, e,
+                        "Failed to extract Xml Entity '%s'", first.getId());
+            }
+        }
+        for (int i = start + 1; i < chain.size(); i++) {
+            bean = applyDelta((XmlEntity<T>) chain.get(i), bean, secretKeyBytes, expectedType);
+        }
+        return bean;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T extends XmlObject> T applyDelta(final XmlEntity<T> xmlEntity, final T previous, final byte[] secretKeyBytes,
+            final Class<T> expectedType) {
+        T xmlBean;
+        InputStream is = null;
+        InputStream dis = null;
+        try {
+            is = openData(xmlEntity);
+            dis = openDocument(xmlEntity, is, secretKeyBytes);
+            List<String> delta = splitLines(IOUtils.toString(dis, Charsets.UTF_8.name()));
+            List<String> lines = (List<String>) DiffUtils.patch(toStringList(previous, DELTA_OPTIONS),
+                    DiffUtils.parseUnifiedDiff(delta));
+            SchemaType schemaType = XmlBeans.typeForClass(expectedType);
+            xmlBean = (T) XmlBeans.getContextTypeLoader().parse(new IterableStringReader(lines), schemaType, null);
+            if (!expectedType.isAssignableFrom(xmlBean.getClass())) {
+                throw new PegasusException(PegasusErrorCode.PG401,
+                        "Expected '%s', found '%s'",
+                        expectedType.getName(), xmlBean.getClass().getName());
+            }
+            long size = 0;
+            for (String line : lines) {
+                size += line.length() + 1;
+            }
+            this.beanCache.put(xmlEntity, xmlBean, size);
+        } catch (IOException | SQLException | XmlException | PatchFailedException e) {
+            throw new PegasusException(PegasusErrorCode.PG401, e,
+                    "Failed to apply the delta of Xml Entity '%s'", xmlEntity.getId());
+        } finally {
+            IOUtils.closeQuietly(dis);
             IOUtils.closeQuietly(is);
         }
         return xmlBean;
     }
 
+    /**
+     * The line delta that turns <code>previous</code> into <code>next</code>. Lines are generated using fixed options
+     * so that the configured namespace prefixes can change without breaking existing deltas.
+     */
+    protected List<String> delta(final XmlObject previous, final XmlObject next) {
+        List<String> previousLines = toStringList(previous, DELTA_OPTIONS);
+        List<String> nextLines = toStringList(next, DELTA_OPTIONS);
+        difflib.Patch patch = DiffUtils.diff(previousLines, nextLines);
+        return DiffUtils.generateUnifiedDiff("previous", "next", previousLines, patch, 1);
+    }
+
 
     @SuppressWarnings("unchecked")
     protected <T extends XmlObject> T threeWayDiff(final T base, final T current, final T update, final Class<T> type) {
@@ -513,9 +989,13 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
     }
 
     protected List<String> toStringList(final XmlObject obj) {
+        return toStringList(obj, this.xmlWriteOptions);
+    }
+
+    protected static List<String> toStringList(final XmlObject obj, final XmlOptions options) {
         StringListWriter out = new StringListWriter();
         try {
-            obj.save(out, this.xmlWriteOptions);
+            obj.save(out, options);
             out.close();
         } catch (IOException e) {
             throw new IllegalStateException(e);
@@ -523,6 +1003,23 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         return out.toList();
     }
 
+    /**
+     * Split on line feeds only, as a carriage return can be part of a line.
+     */
+    protected static List<String> splitLines(final String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            lines.add(text.substring(start, end));
+            start = end + 1;
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
     protected void validate(final XmlObject xml) {
         XmlOptions xo = new XmlOptions();
         List<XmlError> errors = new ArrayList<>();
@@ -562,4 +1059,82 @@ public class XmlEntityServiceImpl implements XmlEntityService, ApplicationListen
         }
         throw new PegasusException(PegasusErrorCode.PG333, "XML validation errors { %s }", sb);
     }
+
+    /**
+     * Decrypts and parses a single entity of a list on the release executor. The data and private key are resolved
+     * beforehand by the calling thread, whose security context is applied for the duration of the task.
+     */
+    private class ReleaseTask<T extends XmlObject> implements Callable<T> {
+
+        private final XmlEntity<T> xmlEntity;
+
+        /**
+         * The in-database data, null when held by the resource storage service.
+         */
+        private final byte[] data;
+
+        /**
+         * The data key when already released, otherwise null.
+         */
+        private final byte[] secretKeyBytes;
+
+        /**
+         * Unlocks the data key, null for plain entities or when the key is already released.
+         */
+        private final PrivateKeyToken privateKey;
+
+        /**
+         * Retains the data key once released.
+         */
+        private final AuthenticatedMemberBase<Member> currentMember;
+
+        /**
+         * The route generation the private key was resolved in.
+         */
+        private final long generation;
+
+        private final Class<T> expectedType;
+
+        private final SecurityContext securityContext;
+
+        ReleaseTask(final XmlEntity<T> xmlEntity, final byte[] data, final byte[] secretKeyBytes,
+                final PrivateKeyToken privateKey, final AuthenticatedMemberBase<Member> currentMember,
+                final long generation, final Class<T> expectedType, final SecurityContext securityContext) {
+            this.xmlEntity = xmlEntity;
+            this.data = data;
+            this.secretKeyBytes = secretKeyBytes;
+            this.privateKey = privateKey;
+            this.currentMember = currentMember;
+            this.generation = generation;
+            this.expectedType = expectedType;
+            this.securityContext = securityContext;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.Callable#call()
+         */
+        @Override
+        public T call() throws Exception {
+            SecurityContextHolder.setContext(this.securityContext);
+            try {
+                InputStream is;
+                if (this.data != null) {
+                    is = new ByteArrayInputStream(this.data);
+                } else {
+                    is = openData(this.xmlEntity);
+                }
+                byte[] secretKeyBytes = this.secretKeyBytes;
+                if (this.privateKey != null) {
+                    UUID cryptedDataId = this.xmlEntity.getCryptedDataId();
+                    secretKeyBytes = XmlEntityServiceImpl.this.phalanxService.asymDecrypt(
+                            new IdentityCryptedData(cryptedDataId), this.privateKey);
+                    this.currentMember.retainDataKey(this.xmlEntity.getKeySafe().getId(), cryptedDataId, secretKeyBytes,
+                            this.generation);
+                }
+                return decode(this.xmlEntity, is, secretKeyBytes, this.expectedType);
+            } finally {
+                SecurityContextHolder.clearContext();
+            }
+        }
+    }
 }
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.support;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.brekka.pegasus.core.PegasusErrorCode;
+import org.brekka.pegasus.core.PegasusException;
+
+/**
+ * An IPv4 or IPv6 CIDR network block held as a left-aligned 128 bit value (two longs). IPv4 addresses occupy the top
+ * 32 bits of {@link #getHigh()}. Also provides the allocation-free address parsing used when evaluating firewall rules.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public final class CidrBlock implements Comparable<CidrBlock>, Serializable {
+
+    /**
+     * Serial UID
+     */
+    private static final long serialVersionUID = -3302938219573580112L;
+
+    public static final int IPV4_BITS = 32;
+
+    public static final int IPV6_BITS = 128;
+
+    private final boolean ipv6;
+
+    private final long high;
+
+    private final long low;
+
+    private final int prefixLength;
+
+    public CidrBlock(final boolean ipv6, final long high, final long low, final int prefixLength) {
+        int width = ipv6 ? IPV6_BITS : IPV4_BITS;
+        if (prefixLength < 0 || prefixLength > width) {
+            throw new IllegalArgumentException(String.format("Invalid prefix length %d", prefixLength));
+        }
+        this.ipv6 = ipv6;
+        this.prefixLength = prefixLength;
+        // Clear any host bits so that equal networks are always equal.
+        this.high = high & maskHigh(prefixLength);
+        this.low = low & maskLow(prefixLength);
+    }
+
+    /**
+     * Parse a block such as "10.0.0.0/8" or "2001:db8::/32". A plain address is treated as a single host.
+     *
+     * @param block the block to parse
+     * @return the block
+     * @throws PegasusException if the block cannot be parsed.
+     */
+    public static CidrBlock parse(final String block) {
+        if (block == null) {
+            throw new PegasusException(PegasusErrorCode.PG106, "No CIDR block specified");
+        }
+        String value = block.trim();
+        int slash = value.indexOf('/');
+        int addressEnd = (slash == -1 ? value.length() : slash);
+        boolean ipv6 = value.indexOf(':') != -1;
+        int width = ipv6 ? IPV6_BITS : IPV4_BITS;
+        int prefixLength = width;
+        if (slash != -1) {
+            prefixLength = parsePrefixLength(value, slash + 1, value.length(), width);
+            if (prefixLength < 0) {
+                throw new PegasusException(PegasusErrorCode.PG106, "Invalid prefix length in CIDR block '%s'", block);
+            }
+        }
+        if (ipv6) {
+            long[] address = new long[2];
+            if (!parseIPv6(value, 0, addressEnd, address)) {
+                throw new PegasusException(PegasusErrorCode.PG106, "Invalid IPv6 address in CIDR block '%s'", block);
+            }
+            return new CidrBlock(true, address[0], address[1], prefixLength);
+        }
+        long address = parseIPv4(value, 0, addressEnd);
+        if (address < 0) {
+            throw new PegasusException(PegasusErrorCode.PG106, "Invalid IPv4 address in CIDR block '%s'", block);
+        }
+        return new CidrBlock(false, address << IPV4_BITS, 0L, prefixLength);
+    }
+
+    /**
+     * Parse a dotted quad IPv4 address from the specified region of the character sequence, without allocating.
+     *
+     * @return the address as an unsigned 32 bit value, or -1 if the region is not a valid address.
+     */
+    public static long parseIPv4(final CharSequence value, final int start, final int end) {
+        long address = 0;
+        int octets = 0;
+        int i = start;
+        while (i < end) {
+            int octet = 0;
+            int digits = 0;
+            while (i < end) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                octet = octet * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || octet > 255) {
+                return -1;
+            }
+            address = (address << 8) | octet;
+            octets++;
+            if (i == end) {
+                break;
+            }
+            if (value.charAt(i) != '.' || octets == 4) {
+                return -1;
+            }
+            i++;
+            if (i == end) {
+                // Trailing dot
+                return -1;
+            }
+        }
+        if (octets != 4) {
+            return -1;
+        }
+        return address;
+    }
+
+    /**
+     * Parse an IPv6 address (including the '::' shorthand and an embedded IPv4 tail) from the specified region of the
+     * character sequence without allocating. The address is written to the first two elements of <code>out</code>.
+     *
+     * @return true if the address was parsed successfully.
+     */
+    public static boolean parseIPv6(final CharSequence value, final int start, final int end, final long[] out) {
+        if (end - start < 2) {
+            return false;
+        }
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int headCount = 0, tailCount = 0;
+        boolean compressed = false;
+        int i = start;
+        if (value.charAt(i) == ':') {
+            if (value.charAt(i + 1) != ':') {
+                return false;
+            }
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int group = 0;
+            int digits = 0;
+            while (i < end && digits <= 4) {
+                int nibble = Character.digit(value.charAt(i), 16);
+                if (nibble < 0) {
+                    break;
+                }
+                group = (group << 4) | nibble;
+                digits++;
+                i++;
+            }
+            if (i < end && value.charAt(i) == '.') {
+                // Embedded IPv4, must be the last part of the address
+                long ipv4 = parseIPv4(value, groupStart, end);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                if (compressed) {
+                    tailHigh = (tailHigh << 32) | (tailLow >>> 32);
+                    tailLow = (tailLow << 32) | ipv4;
+                    tailCount += 2;
+                } else {
+                    headHigh = (headHigh << 32) | (headLow >>> 32);
+                    headLow = (headLow << 32) | ipv4;
+                    headCount += 2;
+                }
+                i = end;
+                break;
+            }
+            if (digits == 0 || digits > 4) {
+                return false;
+            }
+            if (compressed) {
+                tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+                tailLow = (tailLow << 16) | group;
+                tailCount++;
+            } else {
+                headHigh = (headHigh << 16) | (headLow >>> 48);
+                headLow = (headLow << 16) | group;
+                headCount++;
+            }
+            if (i == end) {
+                break;
+            }
+            if (value.charAt(i) != ':') {
+                return false;
+            }
+            i++;
+            if (i < end && value.charAt(i) == ':') {
+                if (compressed) {
+                    // Only one '::' allowed
+                    return false;
+                }
+                compressed = true;
+                i++;
+            } else if (i == end) {
+                // Trailing single colon
+                return false;
+            }
+        }
+        int groups = headCount + tailCount;
+        if (groups > 8 || (compressed && groups > 7) || (!compressed && groups != 8)) {
+            return false;
+        }
+        // Move the head groups up to the top of the address, leaving room for the tail.
+        int shift = 16 * (8 - headCount);
+        if (shift >= 128) {
+            headHigh = 0;
+            headLow = 0;
+        } else if (shift >= 64) {
+            headHigh = headLow << (shift - 64);
+            headLow = 0;
+        } else if (shift > 0) {
+            headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+            headLow = headLow << shift;
+        }
+        out[0] = headHigh | tailHigh;
+        out[1] = headLow | tailLow;
+        return true;
+    }
+
+    /**
+     * Mask for the high long covering the specified number of network bits.
+     */
+    public static long maskHigh(final int prefixLength) {
+        if (prefixLength <= 0) {
+            return 0L;
+        }
+        if (prefixLength >= 64) {
+            return -1L;
+        }
+        return -1L << (64 - prefixLength);
+    }
+
+    /**
+     * Mask for the low long covering the specified number of network bits.
+     */
+    public static long maskLow(final int prefixLength) {
+        if (prefixLength <= 64) {
+            return 0L;
+        }
+        if (prefixLength >= 128) {
+            return -1L;
+        }
+        return -1L << (128 - prefixLength);
+    }
+
+    /**
+     * Retrieve the bit at the specified position (zero being the most significant) of the 128 bit value.
+     */
+    public static int bitAt(final long high, final long low, final int position) {
+        if (position < 64) {
+            return (int) ((high >>> (63 - position)) & 1L);
+        }
+        return (int) ((low >>> (127 - position)) & 1L);
+    }
+
+    private static int parsePrefixLength(final String value, final int start, final int end, final int width) {
+        if (start >= end || end - start > 3) {
+            return -1;
+        }
+        int prefixLength = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            prefixLength = prefixLength * 10 + (c - '0');
+        }
+        if (prefixLength > width) {
+            return -1;
+        }
+        return prefixLength;
+    }
+
+    /**
+     * Reduce the blocks to the smallest set that covers exactly the same addresses. Blocks contained in others are
+     * dropped, and pairs of adjacent blocks that make up a block one bit shorter are merged (repeatedly).
+     *
+     * @param blocks the blocks to aggregate, of either family.
+     * @return the aggregated blocks, in order.
+     */
+    public static List<CidrBlock> aggregate(final Collection<CidrBlock> blocks) {
+        List<CidrBlock> sorted = new ArrayList<>(blocks);
+        Collections.sort(sorted);
+        List<CidrBlock> result = new ArrayList<>(sorted.size());
+        for (CidrBlock block : sorted) {
+            int last = result.size() - 1;
+            if (last >= 0 && result.get(last).contains(block)) {
+                continue;
+            }
+            result.add(block);
+            // Merge with the previous block for as long as the two are the halves of a larger block
+            while ((last = result.size() - 1) > 0) {
+                CidrBlock right = result.get(last);
+                CidrBlock left = result.get(last - 1);
+                if (!left.isSiblingOf(right)) {
+                    break;
+                }
+                result.remove(last);
+                result.set(last - 1, left.parent());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the block one bit shorter that contains this one.
+     */
+    public CidrBlock parent() {
+        if (this.prefixLength == 0) {
+            throw new IllegalStateException("The whole address space has no parent");
+        }
+        return new CidrBlock(this.ipv6, this.high, this.low, this.prefixLength - 1);
+    }
+
+    /**
+     * Determine whether this block and the other are the two halves of the same parent block.
+     */
+    public boolean isSiblingOf(final CidrBlock other) {
+        return this.ipv6 == other.ipv6
+            && this.prefixLength == other.prefixLength
+            && this.prefixLength > 0
+            && !equals(other)
+            && parent().equals(other.parent());
+    }
+
+    /**
+     * Determine whether this block fully contains the other (which must be of the same family).
+     */
+    public boolean contains(final CidrBlock other) {
+        if (this.ipv6 != other.ipv6
+                || other.prefixLength < this.prefixLength) {
+            return false;
+        }
+        return (other.high & maskHigh(this.prefixLength)) == this.high
+            && (other.low & maskLow(this.prefixLength)) == this.low;
+    }
+
+    public boolean isIpv6() {
+        return this.ipv6;
+    }
+
+    public long getHigh() {
+        return this.high;
+    }
+
+    public long getLow() {
+        return this.low;
+    }
+
+    public int getPrefixLength() {
+        return this.prefixLength;
+    }
+
+    /**
+     * The number of bits in addresses of this family.
+     */
+    public int getWidth() {
+        return this.ipv6 ? IPV6_BITS : IPV4_BITS;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(final CidrBlock o) {
+        if (this.ipv6 != o.ipv6) {
+            return this.ipv6 ? 1 : -1;
+        }
+        int cmp = compareUnsigned(this.high, o.high);
+        if (cmp == 0) {
+            cmp = compareUnsigned(this.low, o.low);
+        }
+        if (cmp == 0) {
+            cmp = this.prefixLength - o.prefixLength;
+        }
+        return cmp;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        int result = this.ipv6 ? 1231 : 1237;
+        result = 31 * result + (int) (this.high ^ (this.high >>> 32));
+        result = 31 * result + (int) (this.low ^ (this.low >>> 32));
+        result = 31 * result + this.prefixLength;
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CidrBlock)) {
+            return false;
+        }
+        CidrBlock other = (CidrBlock) obj;
+        return this.ipv6 == other.ipv6
+            && this.high == other.high
+            && this.low == other.low
+            && this.prefixLength == other.prefixLength;
+    }
+
+    /**
+     * Canonical form of the block, matching the PostgreSQL cidr output format.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (this.ipv6) {
+            int[] groups = new int[8];
+            for (int i = 0; i < 4; i++) {
+                groups[i] = (int) ((this.high >>> (48 - (i * 16))) & 0xFFFF);
+                groups[i + 4] = (int) ((this.low >>> (48 - (i * 16))) & 0xFFFF);
+            }
+            // Find the longest run of zero groups (length 2 or more) to compress
+            int bestStart = -1, bestLength = 0;
+            for (int i = 0; i < 8; i++) {
+                if (groups[i] == 0) {
+                    int j = i;
+                    while (j < 8 && groups[j] == 0) {
+                        j++;
+                    }
+                    if (j - i > bestLength && j - i > 1) {
+                        bestStart = i;
+                        bestLength = j - i;
+                    }
+                    i = j;
+                }
+            }
+            for (int i = 0; i < 8; i++) {
+                if (i == bestStart) {
+                    sb.append("::");
+                    i += bestLength - 1;
+                    continue;
+                }
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':') {
+                    sb.append(':');
+                }
+                sb.append(Integer.toHexString(groups[i]));
+            }
+        } else {
+            long address = this.high >>> IPV4_BITS;
+            sb.append((address >>> 24) & 0xFF).append('.')
+              .append((address >>> 16) & 0xFF).append('.')
+              .append((address >>> 8) & 0xFF).append('.')
+              .append(address & 0xFF);
+        }
+        sb.append('/').append(this.prefixLength);
+        return sb.toString();
+    }
+
+    private static int compareUnsigned(final long a, final long b) {
+        long x = a + Long.MIN_VALUE;
+        long y = b + Long.MIN_VALUE;
+        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+    }
+}
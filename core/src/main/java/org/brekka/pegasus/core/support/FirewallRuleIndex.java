@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.support;
+
+import java.util.Arrays;
+
+import org.brekka.pegasus.core.PegasusErrorCode;
+import org.brekka.pegasus.core.PegasusException;
+import org.brekka.pegasus.core.model.FirewallAction;
+import org.brekka.pegasus.core.model.FirewallRule;
+
+/**
+ * Compiled, immutable form of a firewall. The network blocks of each rule are held in a pair of binary radix tries
+ * (one for IPv4, one for IPv6) so that an address can be evaluated by walking at most 32/128 nodes, without any
+ * database access or object allocation.
+ *
+ * Of all the rules with a network containing the address, the one with the lowest priority value wins. Rules with
+ * equal priority are resolved by the most specific (longest) prefix, then in favour of {@link FirewallAction#DENY}.
+ *
+ * Unlike the original SQL evaluation (<code>"Block" &gt;&gt; ip</code>, strict containment), a network contains the
+ * addresses it is equal to, so a /32 (or /128) network matches its own address. Such single address networks never
+ * matched before.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public final class FirewallRuleIndex {
+
+    /**
+     * Scratch space for parsing IPv6 addresses, avoids allocating per evaluation.
+     */
+    private static final ThreadLocal<long[]> IPV6_SCRATCH = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private final FirewallAction defaultAction;
+
+    private final Trie ipv4;
+
+    private final Trie ipv6;
+
+    /**
+     * When this index was compiled
+     */
+    private final long compiled;
+
+    private FirewallRuleIndex(final Builder builder) {
+        this.defaultAction = builder.defaultAction;
+        this.ipv4 = builder.ipv4.compact();
+        this.ipv6 = builder.ipv6.compact();
+        this.compiled = System.currentTimeMillis();
+    }
+
+    /**
+     * Determine the action to take for the specified remote address.
+     *
+     * @param ipAddress the IPv4 or IPv6 address
+     * @return the action of the highest priority rule that matches, or the default action if none match.
+     * @throws PegasusException if the address cannot be parsed.
+     */
+    public FirewallAction evaluate(final String ipAddress) {
+        if (ipAddress == null) {
+            throw new PegasusException(PegasusErrorCode.PG106, "No IP address specified");
+        }
+        int start = 0;
+        int end = ipAddress.length();
+        while (start < end && ipAddress.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && ipAddress.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int found;
+        if (ipAddress.indexOf(':', start) != -1) {
+            long[] address = IPV6_SCRATCH.get();
+            if (!CidrBlock.parseIPv6(ipAddress, start, end, address)) {
+                throw new PegasusException(PegasusErrorCode.PG106, "Invalid IPv6 address '%s'", ipAddress);
+            }
+            found = this.ipv6.match(address[0], address[1], CidrBlock.IPV6_BITS);
+        } else {
+            long address = CidrBlock.parseIPv4(ipAddress, start, end);
+            if (address < 0) {
+                throw new PegasusException(PegasusErrorCode.PG106, "Invalid IPv4 address '%s'", ipAddress);
+            }
+            found = this.ipv4.match(address << CidrBlock.IPV4_BITS, 0L, CidrBlock.IPV4_BITS);
+        }
+        if (found == Trie.NO_MATCH) {
+            return this.defaultAction;
+        }
+        return (found == Trie.ALLOW ? FirewallAction.ALLOW : FirewallAction.DENY);
+    }
+
+    /**
+     * @return the action taken when no rule matches.
+     */
+    public FirewallAction getDefaultAction() {
+        return this.defaultAction;
+    }
+
+    /**
+     * Determine whether this index was compiled longer ago than the specified age.
+     */
+    public boolean isOlderThan(final long maxAgeMillis) {
+        return System.currentTimeMillis() - this.compiled > maxAgeMillis;
+    }
+
+    /**
+     * Collects the rule networks of a single firewall to produce a {@link FirewallRuleIndex}. Not thread safe.
+     */
+    public static class Builder {
+
+        private final FirewallAction defaultAction;
+
+        private final Trie ipv4 = new Trie();
+
+        private final Trie ipv6 = new Trie();
+
+        public Builder(final FirewallAction defaultAction) {
+            this.defaultAction = defaultAction;
+        }
+
+        /**
+         * Add a network that the rule applies to.
+         */
+        public Builder add(final FirewallRule rule, final String cidrBlock) {
+            return add(cidrBlock, rule.getPriority(), rule.getAction());
+        }
+
+        public Builder add(final String cidrBlock, final int priority, final FirewallAction action) {
+            return add(CidrBlock.parse(cidrBlock), priority, action);
+        }
+
+        public Builder add(final CidrBlock block, final int priority, final FirewallAction action) {
+            Trie trie = (block.isIpv6() ? this.ipv6 : this.ipv4);
+            trie.insert(block.getHigh(), block.getLow(), block.getPrefixLength(), priority,
+                    action == FirewallAction.ALLOW ? Trie.ALLOW : Trie.DENY);
+            return this;
+        }
+
+        public FirewallRuleIndex build() {
+            return new FirewallRuleIndex(this);
+        }
+    }
+
+    /**
+     * Binary trie held in parallel arrays, node zero being the root. Each node can carry the best (lowest) priority
+     * rule whose network ends at that node, nodes without a rule have an action of {@link #NO_MATCH}.
+     */
+    private static final class Trie {
+
+        static final int NO_MATCH = -1;
+        static final int DENY = 0;
+        static final int ALLOW = 1;
+
+        private static final int NONE = -1;
+
+        private int[] zero;
+        private int[] one;
+        private int[] priority;
+        private byte[] action;
+        private int size;
+
+        Trie() {
+            this(16);
+        }
+
+        private Trie(final int capacity) {
+            this.zero = new int[capacity];
+            this.one = new int[capacity];
+            this.priority = new int[capacity];
+            this.action = new byte[capacity];
+            newNode();
+        }
+
+        void insert(final long high, final long low, final int prefixLength, final int rulePriority, final int ruleAction) {
+            int node = 0;
+            for (int depth = 0; depth < prefixLength; depth++) {
+                int[] branch = (CidrBlock.bitAt(high, low, depth) == 0 ? this.zero : this.one);
+                int next = branch[node];
+                if (next == NONE) {
+                    next = newNode();
+                    // Arrays may have been reallocated
+                    branch = (CidrBlock.bitAt(high, low, depth) == 0 ? this.zero : this.one);
+                    branch[node] = next;
+                }
+                node = next;
+            }
+            int existing = this.priority[node];
+            if (this.action[node] == NO_MATCH
+                    || rulePriority < existing
+                    || (rulePriority == existing && ruleAction == DENY)) {
+                this.priority[node] = rulePriority;
+                this.action[node] = (byte) ruleAction;
+            }
+        }
+
+        /**
+         * Walk the trie along the address, keeping the best rule seen. Deeper (more specific) nodes replace shallower
+         * ones of equal priority.
+         */
+        int match(final long high, final long low, final int width) {
+            int node = 0;
+            int bestPriority = Integer.MAX_VALUE;
+            int bestAction = NO_MATCH;
+            for (int depth = 0; ; depth++) {
+                int nodePriority = this.priority[node];
+                if (this.action[node] != NO_MATCH
+                        && (bestAction == NO_MATCH || nodePriority <= bestPriority)) {
+                    bestPriority = nodePriority;
+                    bestAction = this.action[node];
+                }
+                if (depth == width) {
+                    break;
+                }
+                int next = (CidrBlock.bitAt(high, low, depth) == 0 ? this.zero[node] : this.one[node]);
+                if (next == NONE) {
+                    break;
+                }
+                node = next;
+            }
+            return bestAction;
+        }
+
+        /**
+         * @return a copy of this trie with the arrays trimmed to size.
+         */
+        Trie compact() {
+            Trie trie = new Trie(1);
+            trie.zero = Arrays.copyOf(this.zero, this.size);
+            trie.one = Arrays.copyOf(this.one, this.size);
+            trie.priority = Arrays.copyOf(this.priority, this.size);
+            trie.action = Arrays.copyOf(this.action, this.size);
+            trie.size = this.size;
+            return trie;
+        }
+
+        private int newNode() {
+            if (this.size == this.zero.length) {
+                int capacity = this.size * 2;
+                this.zero = Arrays.copyOf(this.zero, capacity);
+                this.one = Arrays.copyOf(this.one, capacity);
+                this.priority = Arrays.copyOf(this.priority, capacity);
+                this.action = Arrays.copyOf(this.action, capacity);
+            }
+            int node = this.size++;
+            this.zero[node] = NONE;
+            this.one[node] = NONE;
+            this.action[node] = NO_MATCH;
+            return node;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.support;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel, holding items until their deadline passes. Four wheels of 64 buckets each, every bucket
+ * of a wheel spanning a whole turn of the wheel below, so scheduling and advancing by one tick are constant time
+ * regardless of how many items are held. Items in the outer wheels are cascaded inwards as their turn comes around
+ * (as in the classic kernel timer wheel).
+ *
+ * Scheduling an item again replaces its deadline. Deadlines further out than 64^4 ticks are not held at all, as they
+ * can be scheduled once they come closer.
+ *
+ * Not thread safe by itself, callers synchronize on the wheel.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class TimingWheel<T> {
+
+    private static final int BITS = 6;
+
+    private static final int SIZE = 1 << BITS;
+
+    private static final int MASK = SIZE - 1;
+
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+
+    private final List<List<Entry<T>>> buckets;
+
+    /**
+     * The current deadline tick of each item, entries in the buckets that no longer match are ignored.
+     */
+    private final Map<T, Long> deadlines = new HashMap<>();
+
+    /**
+     * The next tick to be processed.
+     */
+    private long currentTick;
+
+    public TimingWheel(final long tickMillis, final long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.buckets = new ArrayList<>(LEVELS * SIZE);
+        for (int i = 0; i < LEVELS * SIZE; i++) {
+            this.buckets.add(new ArrayList<Entry<T>>(0));
+        }
+    }
+
+    /**
+     * Hold the item until the deadline.
+     *
+     * @param item
+     * @param deadlineMillis
+     * @return true if the deadline has already passed, in which case the item is not held.
+     */
+    public boolean schedule(final T item, final long deadlineMillis) {
+        // Round up, never fire early
+        long tick = (deadlineMillis + this.tickMillis - 1) / this.tickMillis;
+        if (tick < this.currentTick) {
+            this.deadlines.remove(item);
+            return true;
+        }
+        if (tick - this.currentTick >= 1L << (BITS * LEVELS)) {
+            this.deadlines.remove(item);
+            return false;
+        }
+        this.deadlines.put(item, tick);
+        place(new Entry<>(item, tick));
+        return false;
+    }
+
+    /**
+     * Stop holding the item.
+     *
+     * @param item
+     */
+    public void cancel(final T item) {
+        this.deadlines.remove(item);
+    }
+
+    /**
+     * Move the wheel on to the specified time, collecting the items whose deadline has passed.
+     *
+     * @param nowMillis
+     * @param due receives the items due, each removed from the wheel.
+     */
+    public void advance(final long nowMillis, final Collection<T> due) {
+        long target = nowMillis / this.tickMillis;
+        while (this.currentTick <= target) {
+            int index = (int) (this.currentTick & MASK);
+            // Whenever a wheel completes a turn, bring the next bucket of the wheel above down
+            for (int level = 1; level < LEVELS && (this.currentTick & ((1L << (BITS * level)) - 1)) == 0; level++) {
+                cascade(level, (int) ((this.currentTick >>> (BITS * level)) & MASK));
+            }
+            List<Entry<T>> bucket = this.buckets.get(index);
+            for (Entry<T> entry : bucket) {
+                Long deadline = this.deadlines.get(entry.item);
+                if (deadline != null && deadline.longValue() == entry.tick) {
+                    this.deadlines.remove(entry.item);
+                    due.add(entry.item);
+                }
+            }
+            bucket.clear();
+            this.currentTick++;
+        }
+    }
+
+    /**
+     * @return the number of items held.
+     */
+    public int size() {
+        return this.deadlines.size();
+    }
+
+    private void place(final Entry<T> entry) {
+        long delta = entry.tick - this.currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        int index = (int) ((entry.tick >>> (BITS * level)) & MASK);
+        this.buckets.get(level * SIZE + index).add(entry);
+    }
+
+    private void cascade(final int level, final int index) {
+        List<Entry<T>> bucket = this.buckets.get(level * SIZE + index);
+        if (bucket.isEmpty()) {
+            return;
+        }
+        List<Entry<T>> entries = new ArrayList<>(bucket);
+        bucket.clear();
+        for (Entry<T> entry : entries) {
+            Long deadline = this.deadlines.get(entry.item);
+            if (deadline != null && deadline.longValue() == entry.tick) {
+                place(entry);
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+
+        private final long tick;
+
+        Entry(final T item, final long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
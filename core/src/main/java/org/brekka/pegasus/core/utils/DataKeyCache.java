@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Caches unwrapped symmetric data keys by the key safe and the id of the Phalanx crypted data they were released from.
+ * Including the key safe means a key is only ever returned for the key safe it was actually released through. The least
+ * recently used key is dropped once the cache is full. Key material is overwritten with zeros whenever it leaves the
+ * cache, and callers only ever receive copies.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class DataKeyCache implements Serializable {
+
+    /**
+     * Serial UID
+     */
+    private static final long serialVersionUID = -2390485310187066431L;
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final int maxEntries;
+
+    private transient Map<Key, byte[]> keys;
+
+    public DataKeyCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public DataKeyCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param keySafeId
+     * @param cryptedDataId
+     * @return a copy of the key, or null if not cached.
+     */
+    public synchronized byte[] get(final UUID keySafeId, final UUID cryptedDataId) {
+        byte[] key = cache().get(new Key(keySafeId, cryptedDataId));
+        if (key == null) {
+            return null;
+        }
+        return key.clone();
+    }
+
+    public synchronized void put(final UUID keySafeId, final UUID cryptedDataId, final byte[] key) {
+        byte[] previous = cache().put(new Key(keySafeId, cryptedDataId), key.clone());
+        if (previous != null) {
+            Arrays.fill(previous, (byte) 0);
+        }
+    }
+
+    /**
+     * Remove and zero all keys.
+     */
+    public synchronized void clear() {
+        if (this.keys == null) {
+            return;
+        }
+        for (byte[] key : this.keys.values()) {
+            Arrays.fill(key, (byte) 0);
+        }
+        this.keys = null;
+    }
+
+    private Map<Key, byte[]> cache() {
+        if (this.keys == null) {
+            this.keys = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Key, byte[]> eldest) {
+                    if (size() > DataKeyCache.this.maxEntries) {
+                        Arrays.fill(eldest.getValue(), (byte) 0);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        return this.keys;
+    }
+
+    private static final class Key {
+
+        private final UUID keySafeId;
+
+        private final UUID cryptedDataId;
+
+        Key(final UUID keySafeId, final UUID cryptedDataId) {
+            this.keySafeId = keySafeId;
+            this.cryptedDataId = cryptedDataId;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return 31 * this.keySafeId.hashCode() + this.cryptedDataId.hashCode();
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.keySafeId.equals(other.keySafeId)
+                    && this.cryptedDataId.equals(other.cryptedDataId);
+        }
+    }
+}
@@ -1,18 +1,28 @@
 /**
- * 
+ *
  */
 package org.brekka.pegasus.core.utils;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * Caches the phalanx key that is used by the entity.
- * 
+ *
+ * Lookups do not lock, so parallel requests from the same session don't queue up behind each other. The cache holds
+ * at most a configured number of keys, dropping the least recently used when full, and drops keys that have not been
+ * used for longer than the idle timeout. Keys dropped that way are passed to the {@link EvictionListener}, whereas
+ * keys removed explicitly are left for the caller to deal with.
+ *
  * @author Andrew Taylor (andrew@brekka.org)
  */
 public class EntityUnlockKeyCache<T> implements Serializable {
@@ -21,33 +31,208 @@ public class EntityUnlockKeyCache<T> implements Serializable {
      * Serial UID
      */
     private static final long serialVersionUID = 5415576494466862394L;
-    
-    private transient Map<UUID, T> entities;
-    
-    public synchronized void put(UUID key, T value) {
-        cache().put(key, value);
-    }
-    
-    public synchronized T get(UUID uuid) {
-        return cache().get(uuid);
-    }
-    
-    public synchronized void remove(UUID uuid) {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    /**
+     * Keys are kept for as long as the cache itself.
+     */
+    public static final long NO_IDLE_TIMEOUT = 0;
+
+    private static final Log log = LogFactory.getLog(EntityUnlockKeyCache.class);
+
+    private volatile int maxEntries;
+
+    private volatile long idleTimeoutMillis;
+
+    private transient volatile EvictionListener<T> evictionListener;
+
+    private transient volatile ConcurrentMap<UUID, CachedKey<T>> entities;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public EntityUnlockKeyCache() {
+        this(DEFAULT_MAX_ENTRIES, NO_IDLE_TIMEOUT);
+    }
+
+    public EntityUnlockKeyCache(int maxEntries, long idleTimeoutMillis) {
+        this.maxEntries = maxEntries;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Change the limits of the cache. Any keys over the new limits are dropped on next use.
+     *
+     * @param maxEntries
+     * @param idleTimeoutMillis
+     * @param evictionListener notified of keys dropped by the cache, can be null. Not serialized.
+     */
+    public void configure(int maxEntries, long idleTimeoutMillis, EvictionListener<T> evictionListener) {
+        this.maxEntries = maxEntries;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.evictionListener = evictionListener;
+    }
+
+    public void put(UUID key, T value) {
+        ConcurrentMap<UUID, CachedKey<T>> map = cache();
+        map.put(key, new CachedKey<>(value));
+        if (map.size() > maxEntries) {
+            evictOverflow(map);
+        }
+    }
+
+    public T get(UUID uuid) {
+        ConcurrentMap<UUID, CachedKey<T>> map = cache();
+        CachedKey<T> cachedKey = map.get(uuid);
+        if (cachedKey == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (isExpired(cachedKey, now)) {
+            evict(map, uuid, cachedKey);
+            missCount.incrementAndGet();
+            return null;
+        }
+        cachedKey.lastAccessed = now;
+        hitCount.incrementAndGet();
+        return cachedKey.value;
+    }
+
+    public void remove(UUID uuid) {
         cache().remove(uuid);
     }
-    
-    public synchronized List<T> clear() {
-        List<T> values = new ArrayList<>(cache().values());
-        entities.clear();
-        entities = null;
+
+    /**
+     * Remove all keys, which are returned so the caller can release them. The eviction listener is not notified.
+     *
+     * @return the keys that were held.
+     */
+    public List<T> clear() {
+        ConcurrentMap<UUID, CachedKey<T>> map = this.entities;
+        if (map == null) {
+            return new ArrayList<>();
+        }
+        List<T> values = new ArrayList<>(map.size());
+        for (UUID key : map.keySet()) {
+            CachedKey<T> cachedKey = map.remove(key);
+            if (cachedKey != null) {
+                values.add(cachedKey.value);
+            }
+        }
         return values;
     }
-    
-    private Map<UUID, T> cache() {
-        Map<UUID, T> map = this.entities;
+
+    public int size() {
+        ConcurrentMap<UUID, CachedKey<T>> map = this.entities;
+        return (map == null ? 0 : map.size());
+    }
+
+    /**
+     * @return the number of lookups that found a key.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of lookups that found no key, or one that had expired.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of keys dropped because the cache was full or they had expired.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private boolean isExpired(CachedKey<T> cachedKey, long now) {
+        long timeout = this.idleTimeoutMillis;
+        return timeout > 0
+                && now - cachedKey.lastAccessed > timeout;
+    }
+
+    /**
+     * Drop expired keys, then the least recently used until back within the limit. The cache is expected to be small,
+     * so a scan is cheaper than maintaining access order on every lookup.
+     */
+    private void evictOverflow(ConcurrentMap<UUID, CachedKey<T>> map) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<UUID, CachedKey<T>> entry : map.entrySet()) {
+            if (isExpired(entry.getValue(), now)) {
+                evict(map, entry.getKey(), entry.getValue());
+            }
+        }
+        while (map.size() > maxEntries) {
+            Map.Entry<UUID, CachedKey<T>> eldest = null;
+            for (Map.Entry<UUID, CachedKey<T>> entry : map.entrySet()) {
+                if (eldest == null
+                        || entry.getValue().lastAccessed < eldest.getValue().lastAccessed) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                break;
+            }
+            evict(map, eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void evict(ConcurrentMap<UUID, CachedKey<T>> map, UUID key, CachedKey<T> cachedKey) {
+        if (!map.remove(key, cachedKey)) {
+            // Replaced or removed by another thread
+            return;
+        }
+        evictionCount.incrementAndGet();
+        EvictionListener<T> listener = this.evictionListener;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.evicted(key, cachedKey.value);
+        } catch (RuntimeException e) {
+            if (log.isWarnEnabled()) {
+                log.warn(String.format("Failed to release evicted key '%s'", key), e);
+            }
+        }
+    }
+
+    private ConcurrentMap<UUID, CachedKey<T>> cache() {
+        ConcurrentMap<UUID, CachedKey<T>> map = this.entities;
         if (map == null) {
-            this.entities = new HashMap<>();
+            // Only after construction or deserialization
+            synchronized (this) {
+                map = this.entities;
+                if (map == null) {
+                    map = new ConcurrentHashMap<>(16, 0.75f, 4);
+                    this.entities = map;
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Notified of keys that the cache drops by itself, so that they can be released.
+     */
+    public interface EvictionListener<T> {
+        void evicted(UUID key, T value);
+    }
+
+    private static final class CachedKey<T> {
+        private final T value;
+
+        private volatile long lastAccessed = System.currentTimeMillis();
+
+        CachedKey(T value) {
+            this.value = value;
         }
-        return this.entities;
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the served range tracking of {@link EventServiceImpl}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class EventServiceImplTest {
+
+    @Test
+    public void testAddRangeToNone() {
+        assertEquals("0-100", EventServiceImpl.addRange("", 0, 100));
+        assertEquals("", EventServiceImpl.addRange("", 50, 50));
+    }
+
+    @Test
+    public void testAddRangeKeepsOrder() {
+        String ranges = EventServiceImpl.addRange("", 200, 300);
+        ranges = EventServiceImpl.addRange(ranges, 0, 100);
+        assertEquals("0-100,200-300", ranges);
+    }
+
+    @Test
+    public void testAddRangeMergesTouchingAndOverlapping() {
+        assertEquals("0-300", EventServiceImpl.addRange("0-100,200-300", 100, 200));
+        assertEquals("0-350", EventServiceImpl.addRange("0-100,200-300", 50, 350));
+        assertEquals("0-100,200-300", EventServiceImpl.addRange("0-100,200-300", 20, 80));
+    }
+
+    @Test
+    public void testRestartFromZeroCoversOnce() {
+        String ranges = EventServiceImpl.addRange("", 0, 400);
+        ranges = EventServiceImpl.addRange(ranges, 0, 1000);
+        assertEquals("0-1000", ranges);
+        assertTrue(EventServiceImpl.covers(ranges, 1000));
+    }
+
+    @Test
+    public void testCovers() {
+        assertTrue(EventServiceImpl.covers("", 0));
+        assertFalse(EventServiceImpl.covers("", 10));
+        assertFalse(EventServiceImpl.covers("0-5", 10));
+        assertFalse(EventServiceImpl.covers("0-5,6-10", 10));
+        assertTrue(EventServiceImpl.covers("0-10", 10));
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.brekka.pegasus.core.dao.ReaperLeaseDAO;
+import org.brekka.pegasus.core.model.ReaperLease;
+import org.brekka.pegasus.core.services.AllocationService;
+import org.brekka.xml.pegasus.v2.config.ReaperServiceDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for the division of work by {@link ReaperLeaseManager}. The multi-node tests run several
+ * {@link ReaperServiceImpl} instances against one shared lease table, held in memory with the same statement
+ * semantics as {@link org.brekka.pegasus.core.dao.hibernate.ReaperLeaseHibernateDAO}, including a clock that only
+ * moves when told to.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class ReaperLeaseManagerTest {
+
+    private static final int LEASE_SECONDS = 60;
+
+    private SharedLeaseTable leaseTable;
+
+    private ExpiredAllocations expiredAllocations;
+
+    private final List<ReaperServiceImpl> nodes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        this.leaseTable = new SharedLeaseTable();
+        this.expiredAllocations = new ExpiredAllocations();
+    }
+
+    @After
+    public void tearDown() {
+        for (ReaperServiceImpl node : this.nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void testFairShare() {
+        assertEquals(64, ReaperLeaseManager.fairShare(64, 0));
+        assertEquals(64, ReaperLeaseManager.fairShare(64, 1));
+        assertEquals(32, ReaperLeaseManager.fairShare(64, 2));
+        assertEquals(22, ReaperLeaseManager.fairShare(64, 3));
+        assertEquals(1, ReaperLeaseManager.fairShare(64, 100));
+    }
+
+    @Test
+    public void testSharesCoverAllSlots() {
+        for (int nodes = 1; nodes <= ReaperLease.SLOT_COUNT; nodes++) {
+            assertTrue(ReaperLeaseManager.fairShare(ReaperLease.SLOT_COUNT, nodes) * nodes >= ReaperLease.SLOT_COUNT);
+        }
+    }
+
+    @Test
+    public void testSlotOfUsesLastByte() {
+        assertEquals(0, ReaperLease.slotOf(UUID.fromString("00000000-0000-4000-8000-000000000000")));
+        assertEquals(0xff % ReaperLease.SLOT_COUNT,
+                ReaperLease.slotOf(UUID.fromString("00000000-0000-4000-8000-0000000000ff")));
+        assertEquals(0x41 % ReaperLease.SLOT_COUNT,
+                ReaperLease.slotOf(UUID.fromString("ffffffff-ffff-4fff-bfff-ffffffffff41")));
+    }
+
+    @Test
+    public void testEverySlotHasOneOwner() throws Exception {
+        ReaperServiceImpl a = newNode("node-a", 1);
+        ReaperServiceImpl b = newNode("node-b", 1);
+        ReaperServiceImpl c = newNode("node-c", 1);
+
+        runRounds(2, a, b, c);
+
+        assertBalanced(a, b, c);
+    }
+
+    @Test
+    public void testRebalanceOnJoinAndLeave() throws Exception {
+        ReaperServiceImpl a = newNode("node-a", 1);
+        ReaperServiceImpl b = newNode("node-b", 1);
+        runRounds(2, a, b);
+        assertBalanced(a, b);
+
+        ReaperServiceImpl c = newNode("node-c", 1);
+        runRounds(2, a, b, c);
+        assertBalanced(a, b, c);
+
+        // Leaves cleanly, its slots are free straight away
+        c.stop();
+        runRounds(2, a, b);
+        assertBalanced(a, b);
+
+        // Stops checking in, its slots are only free once the lease lapses
+        this.leaseTable.advance(TimeUnit.SECONDS.toMillis(LEASE_SECONDS) + 1);
+        runRounds(2, a);
+        assertBalanced(a);
+    }
+
+    @Test
+    public void testNoRowClearedTwice() throws Exception {
+        Set<UUID> ids = new HashSet<>();
+        ReaperServiceImpl a = newNode("node-a", 2);
+        ReaperServiceImpl b = newNode("node-b", 2);
+        ReaperServiceImpl c = newNode("node-c", 2);
+
+        ids.addAll(this.expiredAllocations.add(1000));
+        runConcurrently(a, b);
+        ids.addAll(this.expiredAllocations.add(1000));
+        runConcurrently(a, b, c);
+        c.stop();
+        ids.addAll(this.expiredAllocations.add(1000));
+        runConcurrently(a, b);
+        runConcurrently(a, b);
+
+        assertEquals(ids, this.expiredAllocations.clearCounts.keySet());
+        for (Map.Entry<UUID, AtomicInteger> entry : this.expiredAllocations.clearCounts.entrySet()) {
+            assertEquals("Cleared " + entry.getKey(), 1, entry.getValue().get());
+        }
+        assertEquals(Collections.emptyList(), this.expiredAllocations.clearedWithoutLease);
+    }
+
+    private ReaperServiceImpl newNode(final String nodeId, final int threads) throws Exception {
+        ReaperLeaseManager reaperLeaseManager = new ReaperLeaseManager();
+        inject(reaperLeaseManager, "reaperLeaseDAO", this.leaseTable);
+        AllocationService allocationService = mock(AllocationService.class);
+        when(allocationService.clearExpiredAllocations(anyInt(), anyCollection())).thenAnswer(new Answer<Integer>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Integer answer(final InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return ReaperLeaseManagerTest.this.expiredAllocations.clear(nodeId, (Integer) args[0],
+                        (Collection<Integer>) args[1]);
+            }
+        });
+        ReaperServiceImpl node = new ReaperServiceImpl();
+        inject(node, "reaperLeaseManager", reaperLeaseManager);
+        inject(node, "allocationService", allocationService);
+        inject(node, "expiryScheduler", new ExpiryScheduler());
+        ReaperServiceDocument.ReaperService config = ReaperServiceDocument.ReaperService.Factory.newInstance();
+        config.setNodeId(nodeId);
+        config.setThreads(threads);
+        config.setAllocationBatchSize(10);
+        config.setLeaseDuration(LEASE_SECONDS);
+        node.configure(config);
+        this.nodes.add(node);
+        return node;
+    }
+
+    private static void runRounds(final int rounds, final ReaperServiceImpl... nodes) {
+        for (int i = 0; i < rounds; i++) {
+            for (ReaperServiceImpl node : nodes) {
+                node.clearAllocations();
+            }
+        }
+    }
+
+    private static void runConcurrently(final ReaperServiceImpl... nodes) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(nodes.length);
+        try {
+            List<Callable<Void>> runs = new ArrayList<>();
+            for (final ReaperServiceImpl node : nodes) {
+                runs.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        node.clearAllocations();
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(runs)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertBalanced(final ReaperServiceImpl... nodes) {
+        Set<String> nodeIds = new HashSet<>();
+        for (ReaperServiceImpl node : nodes) {
+            nodeIds.add(node.getNodeId());
+        }
+        Map<String, Integer> held = new HashMap<>();
+        for (int slot = 0; slot < ReaperLease.SLOT_COUNT; slot++) {
+            String holder = this.leaseTable.holder(slot);
+            assertNotNull("No owner for slot " + slot, holder);
+            assertTrue("Slot " + slot + " owned by " + holder, nodeIds.contains(holder));
+            Integer count = held.get(holder);
+            held.put(holder, count == null ? 1 : count + 1);
+        }
+        assertEquals(nodeIds, held.keySet());
+        int share = ReaperLeaseManager.fairShare(ReaperLease.SLOT_COUNT, nodes.length);
+        for (Map.Entry<String, Integer> entry : held.entrySet()) {
+            assertTrue(entry.getKey() + " holds " + entry.getValue(), entry.getValue() <= share);
+        }
+    }
+
+    private static void inject(final Object target, final String fieldName, final Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * The ReaperNode and ReaperLease tables. Each method is one statement (or transaction) against the database, so
+     * is synchronized.
+     */
+    private static class SharedLeaseTable implements ReaperLeaseDAO {
+
+        private final Map<String, Long> nodeExpires = new HashMap<>();
+
+        private final String[] owners = new String[ReaperLease.SLOT_COUNT];
+
+        private final long[] expires = new long[ReaperLease.SLOT_COUNT];
+
+        private int slotCount;
+
+        private long now = System.currentTimeMillis();
+
+        synchronized void advance(final long millis) {
+            this.now += millis;
+        }
+
+        /**
+         * @param slot
+         * @return the node holding an unexpired lease on the slot, or null.
+         */
+        synchronized String holder(final int slot) {
+            if (slot >= this.slotCount
+                    || this.owners[slot] == null
+                    || this.expires[slot] < this.now) {
+                return null;
+            }
+            return this.owners[slot];
+        }
+
+        @Override
+        public synchronized void checkIn(final String nodeId, final int ttlMillis) {
+            for (Iterator<Long> it = this.nodeExpires.values().iterator(); it.hasNext(); ) {
+                if (it.next() < this.now) {
+                    it.remove();
+                }
+            }
+            this.nodeExpires.put(nodeId, this.now + ttlMillis);
+        }
+
+        @Override
+        public synchronized void checkOut(final String nodeId) {
+            for (int slot = 0; slot < this.slotCount; slot++) {
+                if (nodeId.equals(this.owners[slot])) {
+                    this.owners[slot] = null;
+                }
+            }
+            this.nodeExpires.remove(nodeId);
+        }
+
+        @Override
+        public synchronized int countLiveNodes() {
+            int count = 0;
+            for (Long nodeExpiry : this.nodeExpires.values()) {
+                if (nodeExpiry > this.now) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized void createSlots(final int slotCount) {
+            this.slotCount = Math.max(this.slotCount, slotCount);
+        }
+
+        @Override
+        public synchronized List<Integer> renew(final String nodeId, final int ttlMillis) {
+            List<Integer> held = new ArrayList<>();
+            for (int slot = 0; slot < this.slotCount; slot++) {
+                if (nodeId.equals(this.owners[slot])) {
+                    this.expires[slot] = this.now + ttlMillis;
+                    held.add(slot);
+                }
+            }
+            return held;
+        }
+
+        @Override
+        public synchronized int claim(final String nodeId, final int maxCount, final int ttlMillis) {
+            int claimed = 0;
+            for (int slot = 0; slot < this.slotCount && claimed < maxCount; slot++) {
+                if (this.owners[slot] == null
+                        || this.expires[slot] < this.now) {
+                    this.owners[slot] = nodeId;
+                    this.expires[slot] = this.now + ttlMillis;
+                    claimed++;
+                }
+            }
+            return claimed;
+        }
+
+        @Override
+        public synchronized void release(final String nodeId, final List<Integer> slots) {
+            for (Integer slot : slots) {
+                if (nodeId.equals(this.owners[slot])) {
+                    this.owners[slot] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * The expired allocations, claimed by batch as SKIP LOCKED would. Records how many times each is cleared, and any
+     * cleared by a node that did not hold the lease on its slot at the time.
+     */
+    private class ExpiredAllocations {
+
+        private final List<UUID> pending = new LinkedList<>();
+
+        private final ConcurrentMap<UUID, AtomicInteger> clearCounts = new ConcurrentHashMap<>();
+
+        private final List<String> clearedWithoutLease = Collections.synchronizedList(new ArrayList<String>());
+
+        synchronized Set<UUID> add(final int count) {
+            Set<UUID> ids = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                UUID id = UUID.randomUUID();
+                this.pending.add(id);
+                ids.add(id);
+            }
+            return ids;
+        }
+
+        int clear(final String nodeId, final int maxCount, final Collection<Integer> slots) {
+            List<UUID> claimed = claim(maxCount, slots);
+            for (UUID id : claimed) {
+                int slot = ReaperLease.slotOf(id);
+                if (!nodeId.equals(ReaperLeaseManagerTest.this.leaseTable.holder(slot))) {
+                    this.clearedWithoutLease.add(Arrays.asList(nodeId, id, slot).toString());
+                }
+                AtomicInteger clearCount = this.clearCounts.putIfAbsent(id, new AtomicInteger(1));
+                if (clearCount != null) {
+                    clearCount.incrementAndGet();
+                }
+            }
+            return claimed.size();
+        }
+
+        private synchronized List<UUID> claim(final int maxCount, final Collection<Integer> slots) {
+            List<UUID> claimed = new ArrayList<>();
+            for (Iterator<UUID> it = this.pending.iterator(); it.hasNext() && claimed.size() < maxCount; ) {
+                UUID id = it.next();
+                if (slots.contains(ReaperLease.slotOf(id))) {
+                    it.remove();
+                    claimed.add(id);
+                }
+            }
+            return claimed;
+        }
+    }
+}
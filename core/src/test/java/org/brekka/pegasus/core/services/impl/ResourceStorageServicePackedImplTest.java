@@ -0,0 +1,267 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.brekka.paveway.core.model.ByteSequence;
+import org.brekka.pegasus.core.PegasusException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Tests for {@link ResourceStorageServicePackedImpl}, against segments in a temporary directory.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class ResourceStorageServicePackedImplTest {
+
+    private static final int THRESHOLD = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private ResourceStorageServiceFileSystemImpl fileSystemStorage;
+
+    @InjectMocks
+    private ResourceStorageServicePackedImpl service = new ResourceStorageServicePackedImpl();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        this.service.configurePacking(THRESHOLD, 64 * 1024 * 1024);
+        this.service.configure(this.folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        this.service.shutdown();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        UUID first = write(this.service, bytes(10, 1));
+        UUID second = write(this.service, bytes(THRESHOLD, 2));
+        UUID empty = write(this.service, new byte[0]);
+        assertArrayEquals(bytes(10, 1), read(this.service, first));
+        assertArrayEquals(bytes(THRESHOLD, 2), read(this.service, second));
+        assertArrayEquals(new byte[0], read(this.service, empty));
+        verifyZeroInteractions(this.fileSystemStorage);
+    }
+
+    @Test
+    public void testReadAcrossMappings() throws Exception {
+        // Enough to be mapped in several parts, reading as it goes
+        List<UUID> ids = new ArrayList<>();
+        int count = 3 * ResourceStorageServicePackedImpl.REMAP_STEP / THRESHOLD;
+        for (int i = 0; i < count; i++) {
+            ids.add(write(this.service, bytes(THRESHOLD, i)));
+            assertArrayEquals(bytes(THRESHOLD, i / 2), read(this.service, ids.get(i / 2)));
+        }
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(bytes(THRESHOLD, i), read(this.service, ids.get(i)));
+        }
+    }
+
+    @Test
+    public void testEraseZeroesRecord() throws Exception {
+        byte[] content = "The quick brown fox".getBytes("UTF-8");
+        UUID id = write(this.service, content);
+        UUID kept = write(this.service, bytes(100, 7));
+        this.service.remove(id);
+
+        byte[] segment = Files.readAllBytes(segmentFile(1).toPath());
+        assertEquals(-1, indexOf(segment, content));
+        // No longer packed, so passed through
+        this.service.retrieve(id);
+        verify(this.fileSystemStorage).retrieve(id);
+        assertArrayEquals(bytes(100, 7), read(this.service, kept));
+    }
+
+    @Test
+    public void testIndexRebuiltOnOpen() throws Exception {
+        UUID kept = write(this.service, bytes(100, 1));
+        UUID removed = write(this.service, bytes(100, 2));
+        this.service.remove(removed);
+        this.service.shutdown();
+
+        ResourceStorageServicePackedImpl reopened = reopen();
+        try {
+            assertArrayEquals(bytes(100, 1), read(reopened, kept));
+            reopened.retrieve(removed);
+            verify(this.fileSystemStorage).retrieve(removed);
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test
+    public void testIncompleteRecordTruncated() throws Exception {
+        UUID kept = write(this.service, bytes(100, 1));
+        this.service.shutdown();
+        File segment = segmentFile(1);
+        long length = segment.length();
+        try (OutputStream os = Files.newOutputStream(segment.toPath(), StandardOpenOption.APPEND)) {
+            // Part of a header
+            os.write(new byte[] { 0x50, 0x4B, 0x52 });
+        }
+
+        ResourceStorageServicePackedImpl reopened = reopen();
+        try {
+            assertEquals(length, segment.length());
+            assertArrayEquals(bytes(100, 1), read(reopened, kept));
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        this.service.configurePacking(THRESHOLD, 600);
+        // Four records of 32 + 100 bytes per segment
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            ids.add(write(this.service, bytes(100, i)));
+        }
+        assertTrue(segmentFile(2).exists());
+        for (int i = 0; i < 3; i++) {
+            this.service.remove(ids.get(i));
+        }
+
+        this.service.compact();
+
+        assertFalse(segmentFile(1).exists());
+        for (int i = 3; i < 8; i++) {
+            assertArrayEquals(bytes(100, i), read(this.service, ids.get(i)));
+        }
+        this.service.shutdown();
+
+        ResourceStorageServicePackedImpl reopened = reopen();
+        try {
+            for (int i = 3; i < 8; i++) {
+                assertArrayEquals(bytes(100, i), read(reopened, ids.get(i)));
+            }
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test
+    public void testInterruptedCompactionCopyErased() throws Exception {
+        byte[] content = "The quick brown fox".getBytes("UTF-8");
+        UUID id = write(this.service, content);
+        this.service.shutdown();
+        // As left by a compaction interrupted between copying the record and removing the old segment
+        Files.write(segmentFile(2).toPath(), Files.readAllBytes(segmentFile(1).toPath()));
+
+        ResourceStorageServicePackedImpl reopened = reopen();
+        try {
+            assertArrayEquals(content, read(reopened, id));
+            assertEquals(-1, indexOf(Files.readAllBytes(segmentFile(1).toPath()), content));
+            reopened.remove(id);
+            assertEquals(-1, indexOf(Files.readAllBytes(segmentFile(2).toPath()), content));
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test(expected=PegasusException.class)
+    public void testSecondNodeCannotPack() {
+        ResourceStorageServicePackedImpl other = new ResourceStorageServicePackedImpl();
+        other.configurePacking(THRESHOLD, 64 * 1024 * 1024);
+        other.configure(this.folder.getRoot().getPath());
+    }
+
+    private ResourceStorageServicePackedImpl reopen() {
+        ResourceStorageServicePackedImpl reopened = new ResourceStorageServicePackedImpl();
+        this.service = reopened;
+        MockitoAnnotations.initMocks(this);
+        reopened.configurePacking(THRESHOLD, 64 * 1024 * 1024);
+        reopened.configure(this.folder.getRoot().getPath());
+        return reopened;
+    }
+
+    private File segmentFile(final int number) {
+        return new File(new File(this.folder.getRoot(), ResourceStorageServicePackedImpl.PACK_DIR),
+                String.format("%08d.pack", number));
+    }
+
+    private static UUID write(final ResourceStorageServicePackedImpl service, final byte[] content) throws IOException {
+        UUID id = UUID.randomUUID();
+        ByteSequence sequence = service.allocate(id);
+        try (OutputStream os = sequence.getOutputStream()) {
+            os.write(content);
+        }
+        sequence.persist();
+        return id;
+    }
+
+    private static byte[] read(final ResourceStorageServicePackedImpl service, final UUID id) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream is = service.retrieve(id).getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] bytes(final int length, final int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) (seed + 1));
+        return bytes;
+    }
+
+    private static int indexOf(final byte[] data, final byte[] find) {
+        outer:
+        for (int i = 0; i <= data.length - find.length; i++) {
+            for (int j = 0; j < find.length; j++) {
+                if (data[i + j] != find[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
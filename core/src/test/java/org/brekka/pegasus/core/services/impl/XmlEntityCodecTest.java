@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.xmlbeans.XmlBeans;
+import org.apache.xmlbeans.XmlObject;
+import org.apache.xmlbeans.XmlOptions;
+import org.brekka.pegasus.core.model.XmlEntityFormat;
+import org.brekka.pegasus.core.services.impl.XmlEntityCodec.EncodingOutputStream;
+import org.brekka.xml.pegasus.v2.model.AllocationDocument;
+import org.brekka.xml.pegasus.v2.model.AllocationType;
+import org.brekka.xml.pegasus.v2.model.BundleType;
+import org.brekka.xml.pegasus.v2.model.EMailMessageDocument;
+import org.brekka.xml.pegasus.v2.model.EMailMessageType;
+import org.brekka.xml.pegasus.v2.model.EMailType;
+import org.brekka.xml.pegasus.v2.model.FileType;
+import org.brekka.xml.pegasus.v2.model.ProfileDocument;
+import org.brekka.xml.pegasus.v2.model.ProfileType;
+import org.junit.Test;
+
+/**
+ * Tests for {@link XmlEntityCodec}. Typical documents must round trip, and be stored smaller than in the original
+ * pretty printed GZIP format.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class XmlEntityCodecTest {
+
+    private final XmlEntityCodec codec = new XmlEntityCodec(
+            XmlEntityCodec.DEFAULT_COMPRESSION_LEVEL, XmlEntityCodec.DEFAULT_UNCOMPRESSED_THRESHOLD);
+
+    @Test
+    public void testTinyDocumentUncompressed() throws Exception {
+        ProfileDocument doc = ProfileDocument.Factory.newInstance();
+        doc.addNewProfile();
+        Encoded encoded = encode(doc);
+        assertEquals(XmlEntityFormat.PLAIN_XML, encoded.format);
+        assertRoundTrip(doc, encoded);
+    }
+
+    @Test
+    public void testAllocation() throws Exception {
+        assertSmaller(allocation(20));
+    }
+
+    @Test
+    public void testProfile() throws Exception {
+        assertSmaller(profile());
+    }
+
+    @Test
+    public void testEMailMessage() throws Exception {
+        assertSmaller(emailMessage(50));
+    }
+
+    @Test
+    public void testLegacyFormatReadable() throws Exception {
+        AllocationDocument doc = allocation(3);
+        byte[] legacy = legacy(doc);
+        XmlObject read = parse(XmlEntityCodec.decoder(XmlEntityFormat.GZIP_XML, new ByteArrayInputStream(legacy)));
+        assertEquals(doc.xmlText(), read.xmlText());
+    }
+
+    private void assertSmaller(final XmlObject doc) throws Exception {
+        Encoded encoded = encode(doc);
+        assertEquals(XmlEntityFormat.DEFLATE_XML, encoded.format);
+        assertRoundTrip(doc, encoded);
+        assertTrue(encoded.data.length < legacy(doc).length);
+    }
+
+    private void assertRoundTrip(final XmlObject doc, final Encoded encoded) throws Exception {
+        XmlObject read = parse(XmlEntityCodec.decoder(encoded.format, new ByteArrayInputStream(encoded.data)));
+        assertEquals(doc.xmlText(), read.xmlText());
+    }
+
+    private Encoded encode(final XmlObject doc) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XmlOptions opts = new XmlOptions();
+        opts.setSaveAggressiveNamespaces();
+        opts.setSaveNamespacesFirst();
+        try (EncodingOutputStream eos = this.codec.encoder(baos)) {
+            doc.save(eos, opts);
+            eos.close();
+            return new Encoded(baos.toByteArray(), eos.getFormat());
+        }
+    }
+
+    private static byte[] legacy(final XmlObject doc) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XmlOptions opts = new XmlOptions();
+        opts.setSavePrettyPrint();
+        opts.setSaveAggressiveNamespaces();
+        opts.setSaveNamespacesFirst();
+        try (GZIPOutputStream gos = new GZIPOutputStream(baos)) {
+            doc.save(gos, opts);
+        }
+        return baos.toByteArray();
+    }
+
+    private static XmlObject parse(final InputStream is) throws Exception {
+        try (InputStream in = is) {
+            return XmlBeans.getContextTypeLoader().parse(in, null, null);
+        }
+    }
+
+    private static AllocationDocument allocation(final int files) {
+        AllocationDocument doc = AllocationDocument.Factory.newInstance();
+        AllocationType allocation = doc.addNewAllocation();
+        allocation.addNewDetails().setSubject("Quarterly figures");
+        allocation.getDetails().setComment("Please find the figures for the last quarter attached.");
+        BundleType bundle = allocation.addNewBundle();
+        for (int i = 0; i < files; i++) {
+            FileType file = bundle.addNewFile();
+            file.setUUID(UUID.randomUUID().toString());
+            file.setName("figures-" + i + ".xlsx");
+            file.setLength(1024L * (i + 1));
+            file.setMimeType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+            file.setKey(UUID.randomUUID().toString().getBytes());
+        }
+        return doc;
+    }
+
+    private static ProfileDocument profile() {
+        ProfileDocument doc = ProfileDocument.Factory.newInstance();
+        ProfileType profile = doc.addNewProfile();
+        profile.setFullName("Joe Bloggs");
+        for (int i = 0; i < 5; i++) {
+            EMailType email = profile.addNewEMail();
+            email.setUUID(UUID.randomUUID().toString());
+            email.setAddress("joe.bloggs" + i + "@example.com");
+        }
+        for (int i = 0; i < 5; i++) {
+            profile.addNewInbox().setUUID(UUID.randomUUID().toString());
+            profile.getInboxArray(i).setName("Inbox " + i);
+        }
+        return doc;
+    }
+
+    private static EMailMessageDocument emailMessage(final int recipients) {
+        EMailMessageDocument doc = EMailMessageDocument.Factory.newInstance();
+        EMailMessageType message = doc.addNewEMailMessage();
+        message.setUUID(UUID.randomUUID().toString());
+        message.setSubject("Files are available for download");
+        EMailType sender = message.addNewSender();
+        sender.setUUID(UUID.randomUUID().toString());
+        sender.setAddress("noreply@example.com");
+        for (int i = 0; i < recipients; i++) {
+            EMailType recipient = message.addNewRecipient();
+            recipient.setUUID(UUID.randomUUID().toString());
+            recipient.setAddress("recipient" + i + "@example.com");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            sb.append("You have been sent some files, follow the link below to download them.\n");
+        }
+        message.addNewContent().setStringValue(sb.toString());
+        return doc;
+    }
+
+    private static final class Encoded {
+        private final byte[] data;
+        private final XmlEntityFormat format;
+
+        Encoded(final byte[] data, final XmlEntityFormat format) {
+            this.data = data;
+            this.format = format;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.brekka.pegasus.core.PegasusErrorCode;
+import org.brekka.pegasus.core.PegasusException;
+import org.brekka.pegasus.core.services.XmlEntityService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Tests for {@link XmlEntityCompactor}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class XmlEntityCompactorTest {
+
+    @Mock
+    private XmlEntityService xmlEntityService;
+
+    @InjectMocks
+    private XmlEntityCompactor compactor = new XmlEntityCompactor();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        this.compactor.setRetainMillis(TimeUnit.DAYS.toMillis(1));
+        this.compactor.setMaxVersions(10);
+    }
+
+    @Test
+    public void testFailedVersionDoesNotStopOthers() {
+        UUID first = UUID.randomUUID();
+        UUID failing = UUID.randomUUID();
+        UUID last = UUID.randomUUID();
+        when(this.xmlEntityService.retrieveSupersededVersions(any(Date.class), eq(10)))
+            .thenReturn(Arrays.asList(first, failing, last));
+        doThrow(new PegasusException(PegasusErrorCode.PG401, "Still referenced"))
+            .when(this.xmlEntityService).delete(failing);
+
+        long before = System.currentTimeMillis();
+        this.compactor.compact();
+
+        ArgumentCaptor<Date> supersededBefore = ArgumentCaptor.forClass(Date.class);
+        verify(this.xmlEntityService).retrieveSupersededVersions(supersededBefore.capture(), eq(10));
+        long retained = before - supersededBefore.getValue().getTime();
+        assertTrue(retained >= TimeUnit.DAYS.toMillis(1) - 1000 && retained <= TimeUnit.DAYS.toMillis(1));
+        verify(this.xmlEntityService).delete(first);
+        verify(this.xmlEntityService).delete(failing);
+        verify(this.xmlEntityService).delete(last);
+    }
+}
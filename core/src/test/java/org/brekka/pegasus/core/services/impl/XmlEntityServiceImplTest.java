@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import javax.sql.rowset.serial.SerialBlob;
+
+import org.apache.commons.io.IOUtils;
+import org.brekka.paveway.core.services.ResourceStorageService;
+import org.brekka.pegasus.core.dao.XmlEntityDAO;
+import org.brekka.pegasus.core.model.XmlEntity;
+import org.brekka.xml.pegasus.v2.config.XmlEntityServiceDocument;
+import org.brekka.xml.pegasus.v2.model.EMailType;
+import org.brekka.xml.pegasus.v2.model.ProfileDocument;
+import org.brekka.xml.pegasus.v2.model.ProfileType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Tests for the versions of plain XML entities stored as deltas by {@link XmlEntityServiceImpl}, and their removal.
+ * Versions are written by one instance and read back by another, so that they are not simply taken from the bean
+ * cache of the writer.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class XmlEntityServiceImplTest {
+
+    @Mock
+    private XmlEntityDAO xmlEntityDAO;
+
+    @Mock
+    private ResourceStorageService resourceStorageService;
+
+    @InjectMocks
+    private XmlEntityServiceImpl writer = new XmlEntityServiceImpl();
+
+    @InjectMocks
+    private XmlEntityServiceImpl reader = new XmlEntityServiceImpl();
+
+    /**
+     * The versions of the series stored so far.
+     */
+    private final TreeMap<Integer, XmlEntity<?>> versions = new TreeMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        this.writer.configured(config(3));
+        this.reader.configured(config(3));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                XmlEntity<?> entity = (XmlEntity<?>) invocation.getArguments()[0];
+                InputStream is = (InputStream) invocation.getArguments()[1];
+                entity.setData(new SerialBlob(IOUtils.toByteArray(is)));
+                XmlEntityServiceImplTest.this.versions.put(entity.getVersion(), entity);
+                return null;
+            }
+        }).when(this.xmlEntityDAO).create(any(XmlEntity.class), any(InputStream.class), anyLong());
+        when(this.xmlEntityDAO.retrieveBySerialVersions(any(UUID.class), anyInt(), anyInt())).thenAnswer(
+                new Answer<List<XmlEntity<?>>>() {
+            @Override
+            public List<XmlEntity<?>> answer(final InvocationOnMock invocation) throws Throwable {
+                int fromVersion = (Integer) invocation.getArguments()[1];
+                int toVersion = (Integer) invocation.getArguments()[2];
+                return new ArrayList<XmlEntity<?>>(
+                        XmlEntityServiceImplTest.this.versions.subMap(fromVersion, true, toVersion, true).values());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.writer.shutdown();
+        this.reader.shutdown();
+    }
+
+    @Test
+    public void testUpdateStoredAsDelta() throws Exception {
+        XmlEntity<ProfileDocument> first = this.writer.persistPlainEntity(profile("Joe Bloggs"), false);
+        XmlEntity<ProfileDocument> second = update(first, "Jane Bloggs");
+
+        assertEquals(0, first.getDeltaDepth());
+        assertEquals(1, second.getDeltaDepth());
+        assertEquals(2, second.getVersion());
+        String stored = IOUtils.toString(XmlEntityCodec.decoder(second.getFormat(), second.getData().getBinaryStream()),
+                "UTF-8");
+        assertTrue(stored.contains("+") && stored.contains("Jane Bloggs"));
+        // Only the changed line and its context
+        assertFalse(stored.contains("person9@example.com"));
+    }
+
+    @Test
+    public void testFullDocumentAfterMaxDeltaChain() throws Exception {
+        XmlEntity<ProfileDocument> current = this.writer.persistPlainEntity(profile("Name 1"), false);
+        int[] expectedDepths = { 1, 2, 3, 0, 1 };
+        for (int i = 0; i < expectedDepths.length; i++) {
+            current = update(current, "Name " + (i + 2));
+            assertEquals(expectedDepths[i], current.getDeltaDepth());
+        }
+    }
+
+    @Test
+    public void testReconstructFromFullDocument() throws Exception {
+        writeVersions(4);
+        for (int version = 1; version <= 4; version++) {
+            assertEquals("Name " + version, this.reader.extractXml(version(version), ProfileDocument.class, null)
+                    .getProfile().getFullName());
+        }
+    }
+
+    @Test
+    public void testReconstructFromCachedDelta() throws Exception {
+        writeVersions(4);
+        assertEquals("Name 2", this.reader.extractXml(version(2), ProfileDocument.class, null)
+                .getProfile().getFullName());
+        // Must now start from the cached second version, neither it nor anything before it can be read again
+        version(1).setData(new SerialBlob(new byte[0]));
+        version(2).setData(new SerialBlob(new byte[0]));
+
+        assertEquals("Name 4", this.reader.extractXml(version(4), ProfileDocument.class, null)
+                .getProfile().getFullName());
+        assertEquals("Name 3", this.reader.extractXml(version(3), ProfileDocument.class, null)
+                .getProfile().getFullName());
+    }
+
+    @Test
+    public void testReconstructFromCachedFullDocument() throws Exception {
+        writeVersions(3);
+        assertEquals("Name 1", this.reader.extractXml(version(1), ProfileDocument.class, null)
+                .getProfile().getFullName());
+        version(1).setData(new SerialBlob(new byte[0]));
+
+        assertEquals("Name 3", this.reader.extractXml(version(3), ProfileDocument.class, null)
+                .getProfile().getFullName());
+    }
+
+    @Test
+    public void testDeleteRemovesExternalDataAfterCommit() throws Exception {
+        UUID id = UUID.randomUUID();
+        XmlEntity<ProfileDocument> entity = new XmlEntity<>();
+        entity.setId(id);
+        entity.setExternalData(true);
+        when(this.xmlEntityDAO.retrieveById(id)).thenReturn(entity);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            this.writer.delete(id);
+            verify(this.xmlEntityDAO).delete(id);
+            // Still needed should the delete be rolled back
+            verifyZeroInteractions(this.resourceStorageService);
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+            verify(this.resourceStorageService).remove(id);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private void writeVersions(final int count) {
+        XmlEntity<ProfileDocument> current = this.writer.persistPlainEntity(profile("Name 1"), false);
+        for (int i = 2; i <= count; i++) {
+            current = update(current, "Name " + i);
+        }
+    }
+
+    private XmlEntity<ProfileDocument> update(final XmlEntity<ProfileDocument> current, final String fullName) {
+        XmlEntity<ProfileDocument> updated = new XmlEntity<>();
+        updated.setSerial(current.getSerial());
+        updated.setVersion(current.getVersion());
+        updated.setBean(profile(fullName));
+        return this.writer.updateEntity(updated, current, ProfileDocument.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private XmlEntity<ProfileDocument> version(final int version) {
+        return (XmlEntity<ProfileDocument>) this.versions.get(version);
+    }
+
+    private static XmlEntityServiceDocument.XmlEntityService config(final int maxDeltaChain) {
+        XmlEntityServiceDocument.XmlEntityService config = XmlEntityServiceDocument.XmlEntityService.Factory.newInstance();
+        config.setReleaseThreads(1);
+        config.setMaxDeltaChain(maxDeltaChain);
+        return config;
+    }
+
+    private static ProfileDocument profile(final String fullName) {
+        ProfileDocument doc = ProfileDocument.Factory.newInstance();
+        ProfileType profile = doc.addNewProfile();
+        profile.setFullName(fullName);
+        for (int i = 0; i < 10; i++) {
+            EMailType email = profile.addNewEMail();
+            email.setUUID(new UUID(0, i).toString());
+            email.setAddress("person" + i + "@example.com");
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.support;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brekka.pegasus.core.PegasusException;
+import org.brekka.pegasus.core.model.FirewallAction;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FirewallRuleIndex} and the address parsing of {@link CidrBlock}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class FirewallRuleIndexTest {
+
+    @Test
+    public void testLowestPriorityWins() {
+        FirewallRuleIndex index = new FirewallRuleIndex.Builder(FirewallAction.DENY)
+            .add("10.0.0.0/8", 5, FirewallAction.ALLOW)
+            .add("10.1.0.0/16", 1, FirewallAction.DENY)
+            .add("10.2.0.0/16", 9, FirewallAction.DENY)
+            .build();
+        assertEquals(FirewallAction.ALLOW, index.evaluate("10.0.0.1"));
+        assertEquals(FirewallAction.DENY, index.evaluate("10.1.0.1"));
+        // Less specific, but higher priority
+        assertEquals(FirewallAction.ALLOW, index.evaluate("10.2.0.1"));
+    }
+
+    @Test
+    public void testDefaultAction() {
+        FirewallRuleIndex index = new FirewallRuleIndex.Builder(FirewallAction.DENY)
+            .add("192.168.0.0/24", 1, FirewallAction.ALLOW)
+            .build();
+        assertEquals(FirewallAction.DENY, index.evaluate("192.168.1.1"));
+        assertEquals(FirewallAction.ALLOW, index.evaluate(" 192.168.0.254 "));
+    }
+
+    @Test
+    public void testEqualPriorityMostSpecific() {
+        FirewallRuleIndex index = new FirewallRuleIndex.Builder(FirewallAction.ALLOW)
+            .add("0.0.0.0/0", 1, FirewallAction.ALLOW)
+            .add("127.0.0.1/32", 1, FirewallAction.DENY)
+            .build();
+        assertEquals(FirewallAction.DENY, index.evaluate("127.0.0.1"));
+        assertEquals(FirewallAction.ALLOW, index.evaluate("127.0.0.2"));
+    }
+
+    @Test
+    public void testIPv6() {
+        FirewallRuleIndex index = new FirewallRuleIndex.Builder(FirewallAction.DENY)
+            .add("2001:db8::/32", 1, FirewallAction.ALLOW)
+            .add("10.0.0.0/8", 1, FirewallAction.ALLOW)
+            .build();
+        assertEquals(FirewallAction.ALLOW, index.evaluate("2001:db8:1::5"));
+        assertEquals(FirewallAction.DENY, index.evaluate("2001:db9::5"));
+        // IPv4 rules do not apply to mapped addresses (consistent with PostgreSQL)
+        assertEquals(FirewallAction.DENY, index.evaluate("::ffff:10.0.0.1"));
+    }
+
+    @Test
+    public void testCanonicalBlocks() {
+        assertEquals("10.0.0.0/8", CidrBlock.parse("10.1.2.3/8").toString());
+        assertEquals("192.168.1.7/32", CidrBlock.parse("192.168.1.7").toString());
+        assertEquals("2001:db8::/32", CidrBlock.parse("2001:db8::/32").toString());
+        assertEquals("fe80::/64", CidrBlock.parse("fe80::1:2:3:4/64").toString());
+        assertEquals("1:0:0:2::3/128", CidrBlock.parse("1:0:0:2:0:0:0:3").toString());
+        assertEquals("::ffff:102:304/128", CidrBlock.parse("::ffff:1.2.3.4").toString());
+    }
+
+    @Test
+    public void testAggregate() {
+        assertEquals("[10.0.0.0/22, 10.0.8.0/24, 2001:db8::/32]", aggregate(
+                "10.0.1.0/24", "10.0.0.0/24", "10.0.2.0/23", "10.0.2.7", "10.0.8.0/24", "2001:db8:1::/48",
+                "2001:db8::/32", "10.0.0.0/24"));
+    }
+
+    @Test
+    public void testAggregateDoesNotMergeUnaligned() {
+        // Adjacent, but not halves of the same /23
+        assertEquals("[10.0.1.0/24, 10.0.2.0/24]", aggregate("10.0.2.0/24", "10.0.1.0/24"));
+    }
+
+    @Test(expected = PegasusException.class)
+    public void testInvalidAddress() {
+        new FirewallRuleIndex.Builder(FirewallAction.DENY).build().evaluate("1.2.3");
+    }
+
+    @Test(expected = PegasusException.class)
+    public void testInvalidIPv6Address() {
+        new FirewallRuleIndex.Builder(FirewallAction.DENY).build().evaluate("1::2::3");
+    }
+
+    private static String aggregate(final String... blocks) {
+        List<CidrBlock> parsed = new ArrayList<>();
+        for (String block : blocks) {
+            parsed.add(CidrBlock.parse(block));
+        }
+        return CidrBlock.aggregate(parsed).toString();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.pegasus.core.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimingWheel}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testDueInOrderAcrossLevels() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 0);
+        wheel.schedule("a", 5000);
+        wheel.schedule("b", 70 * 1000);
+        wheel.schedule("c", 5000 * 1000);
+        wheel.schedule("d", 300000 * 1000L);
+        assertEquals(4, wheel.size());
+
+        assertEquals(Collections.<String>emptyList(), advance(wheel, 4999));
+        assertEquals(Arrays.asList("a"), advance(wheel, 5000));
+        assertEquals(Collections.<String>emptyList(), advance(wheel, 69999));
+        assertEquals(Arrays.asList("b"), advance(wheel, 70000));
+        assertEquals(Collections.<String>emptyList(), advance(wheel, 4999999));
+        assertEquals(Arrays.asList("c"), advance(wheel, 5000000));
+        assertEquals(Arrays.asList("d"), advance(wheel, 300000 * 1000L));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRoundsUpToTheTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 0);
+        wheel.schedule("a", 1500);
+        assertEquals(Collections.<String>emptyList(), advance(wheel, 1999));
+        assertEquals(Arrays.asList("a"), advance(wheel, 2000));
+    }
+
+    @Test
+    public void testAlreadyDue() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 10000);
+        assertTrue(wheel.schedule("a", 5000));
+        assertFalse(wheel.schedule("b", 10000));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testRescheduleAndCancel() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 0);
+        wheel.schedule("a", 10000);
+        wheel.schedule("a", 200000);
+        wheel.schedule("b", 10000);
+        wheel.cancel("b");
+        assertEquals(Collections.<String>emptyList(), advance(wheel, 100000));
+        assertEquals(Arrays.asList("a"), advance(wheel, 200000));
+    }
+
+    @Test
+    public void testBeyondHorizonNotHeld() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 0);
+        assertFalse(wheel.schedule("a", (1L << 24) * 1000));
+        assertEquals(0, wheel.size());
+    }
+
+    private static List<String> advance(final TimingWheel<String> wheel, final long nowMillis) {
+        List<String> due = new ArrayList<>();
+        wheel.advance(nowMillis, due);
+        return due;
+    }
+}